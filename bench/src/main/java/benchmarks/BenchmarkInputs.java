@@ -0,0 +1,96 @@
+package benchmarks;
+
+import image.Image;
+
+import javax.imageio.ImageIO;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Random;
+
+/**
+ * Inputs shared by the benchmarks: the example images and synthetic images of controlled sizes.
+ *
+ * @author inbar.el and stavzok
+ */
+final class BenchmarkInputs {
+
+    /* System property naming the directory of the example images. */
+    private static final String EXAMPLES_PROPERTY = "examples.dir";
+    private static final String[] DEFAULT_EXAMPLE_DIRS = {"examples", "../examples"};
+
+    /* Seed of the synthetic images, so every run measures the same pixels. */
+    private static final long SEED = 42;
+
+    /* Charsets of increasing size used by the matching benchmarks. */
+    static final String DIGITS = "0123456789";
+    static final String ALPHANUMERIC = "0123456789abcdefghijklmnopqrstuvwxyzABCDEFGHIJKLMNOPQRSTUVWXYZ";
+
+    private BenchmarkInputs() {
+    }
+
+    /**
+     * Finds an example image.
+     *
+     * @param name The file name of the image, such as "cat.jpeg".
+     * @return The path of the image.
+     * @throws FileNotFoundException If the image isn't found.
+     */
+    static String example(String name) throws FileNotFoundException {
+        String configured = System.getProperty(EXAMPLES_PROPERTY);
+        String[] dirs = configured != null ? new String[]{configured} : DEFAULT_EXAMPLE_DIRS;
+        for (String dir : dirs) {
+            File file = new File(dir, name);
+            if (file.isFile()) {
+                return file.getPath();
+            }
+        }
+        throw new FileNotFoundException(name + " (set -D" + EXAMPLES_PROPERTY + "=DIR)");
+    }
+
+    /**
+     * Creates a synthetic image: a diagonal gradient with noise, so both smooth and busy
+     * areas are measured.
+     *
+     * @param width  The width in pixels.
+     * @param height The height in pixels.
+     * @return The image.
+     */
+    static Image synthetic(int width, int height) {
+        Random random = new Random(SEED);
+        Color[][] pixels = new Color[height][width];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int gradient = (x + y) * 255 / Math.max(1, width + height - 2);
+                int value = Math.min(255, Math.max(0, gradient + random.nextInt(64) - 32));
+                pixels[y][x] = new Color(value, value, value);
+            }
+        }
+        return new Image(pixels, width, height);
+    }
+
+    /**
+     * Writes a synthetic image to a PNG file, so it can be decoded like any image file.
+     *
+     * @param directory The directory of the file.
+     * @param width     The width in pixels.
+     * @param height    The height in pixels.
+     * @return The written file.
+     * @throws IOException If the file can't be written.
+     */
+    static File writeSynthetic(Path directory, int width, int height) throws IOException {
+        Image image = synthetic(width, height);
+        BufferedImage pixels = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                pixels.setRGB(x, y, image.getPixel(y, x).getRGB());
+            }
+        }
+        File file = directory.resolve(width + "x" + height + ".png").toFile();
+        ImageIO.write(pixels, "png", file);
+        return file;
+    }
+}
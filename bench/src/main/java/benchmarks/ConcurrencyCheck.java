@@ -0,0 +1,179 @@
+package benchmarks;
+
+import ascii_art.AsciiArtAlgorithm;
+import ascii_art.SharedAssets;
+import image.Cancellation;
+import image.ImageConverter;
+import image.Luminance;
+import image.PaddedImage;
+import image.SubCellConverter;
+import image_char_matching.SubImgCharMatcher;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Checks that concurrent sessions sharing assets render what a single session renders. Every
+ * render decodes its image and normalizes its charset through a SharedAssets, and matches by
+ * brightness or by shape, with gamma-encoded or linear luminance, so the sessions share images,
+ * matchers and glyphs. The concurrent renders use assets too small to hold all the images and
+ * charsets, and some of them release their image first, so entries are evicted and released
+ * while other threads read them. Run after packaging the benchmarks:
+ * <pre>
+ *     java -cp bench/target/benchmarks.jar benchmarks.ConcurrencyCheck
+ * </pre>
+ * The exit status is 1 if a concurrent render differs from its sequential result.
+ *
+ * @author inbar.el and stavzok
+ */
+public final class ConcurrencyCheck {
+
+    /* Sizes of the synthetic images. */
+    private static final int[][] SIZES = {{320, 240}, {480, 480}, {640, 360}};
+
+    /* Charsets and resolutions the images are rendered with. */
+    private static final String[] CHARSETS = {BenchmarkInputs.DIGITS, BenchmarkInputs.ALPHANUMERIC, " .:-=+*#%@"};
+    private static final int[] RESOLUTIONS = {16, 64};
+
+    /* Threads rendering concurrently and the renders of every thread. */
+    private static final int THREADS = 8;
+    private static final int RENDERS_PER_THREAD = 40;
+
+    /* Every this many renders, a thread releases the image before rendering it. */
+    private static final int RELEASE_INTERVAL = 5;
+
+    /* Assets of the concurrent renders, fewer than the images and charsets, so they are evicted. */
+    private static final int SMALL_IMAGE_CACHE = 2;
+    private static final int SMALL_CHARSET_CACHE = 2;
+
+    /* Assets of the sequential renders, holding everything. */
+    private static final int LARGE_CACHE = 64;
+
+    /* Steps between the cases a thread renders, coprime to their number, so the threads cover them all. */
+    private static final int CASE_STRIDE = 7;
+
+    /* A combination of settings rendered by the check. */
+    private record Case(String path, String chars, int resolution, Luminance luminance, boolean shapes) {
+    }
+
+    private ConcurrencyCheck() {
+    }
+
+    /**
+     * Renders every case sequentially, then all of them concurrently, and compares the results.
+     *
+     * @param args Unused.
+     * @throws IOException If the synthetic images can't be written.
+     * @throws InterruptedException If waiting for the renders is interrupted.
+     */
+    public static void main(String[] args) throws IOException, InterruptedException {
+        Path directory = Files.createTempDirectory("concurrency");
+        List<File> files = new ArrayList<>();
+        boolean passed;
+        try {
+            for (int[] size : SIZES) {
+                files.add(BenchmarkInputs.writeSynthetic(directory, size[0], size[1]));
+            }
+            List<Case> cases = new ArrayList<>();
+            for (File file : files) {
+                for (String chars : CHARSETS) {
+                    for (int resolution : RESOLUTIONS) {
+                        for (Luminance luminance : Luminance.values()) {
+                            cases.add(new Case(file.getPath(), chars, resolution, luminance, false));
+                            cases.add(new Case(file.getPath(), chars, resolution, luminance, true));
+                        }
+                    }
+                }
+            }
+            passed = check(cases);
+        } finally {
+            for (File file : files) {
+                Files.deleteIfExists(file.toPath());
+            }
+            Files.delete(directory);
+        }
+        System.exit(passed ? 0 : 1);
+    }
+
+    /*
+     * Renders the cases sequentially and concurrently and prints the comparison.
+     *
+     * @return True if every concurrent render matches its sequential result.
+     */
+    private static boolean check(List<Case> cases) throws InterruptedException {
+        SharedAssets sequentialAssets = new SharedAssets(LARGE_CACHE, LARGE_CACHE);
+        List<char[][]> expected = new ArrayList<>();
+        for (Case renderCase : cases) {
+            try {
+                expected.add(render(renderCase, sequentialAssets));
+            } catch (IOException | ExecutionException e) {
+                System.out.println("Sequential render failed: " + renderCase + ": " + e.getMessage());
+                return false;
+            }
+        }
+
+        SharedAssets sharedAssets = new SharedAssets(SMALL_IMAGE_CACHE, SMALL_CHARSET_CACHE);
+        AtomicInteger mismatches = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        try {
+            List<Future<?>> threads = new ArrayList<>();
+            for (int thread = 0; thread < THREADS; thread++) {
+                int first = thread;
+                threads.add(executor.submit(() -> {
+                    for (int i = 0; i < RENDERS_PER_THREAD; i++) {
+                        int index = (first + i * CASE_STRIDE) % cases.size();
+                        Case renderCase = cases.get(index);
+                        if (i % RELEASE_INTERVAL == 0) {
+                            sharedAssets.releaseImage(renderCase.path());
+                        }
+                        if (!Arrays.deepEquals(render(renderCase, sharedAssets), expected.get(index))) {
+                            mismatches.incrementAndGet();
+                            System.out.println("Mismatch: " + renderCase);
+                        }
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> thread : threads) {
+                try {
+                    thread.get();
+                } catch (ExecutionException e) {
+                    mismatches.incrementAndGet();
+                    System.out.println("Concurrent render failed: " + e.getCause());
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        System.out.printf("%d threads made %d renders of %d cases: %d mismatches%n",
+                THREADS, THREADS * RENDERS_PER_THREAD, cases.size(), mismatches.get());
+        System.out.println(sharedAssets);
+        return mismatches.get() == 0;
+    }
+
+    /*
+     * Renders a case through the shared assets, as a session does.
+     */
+    private static char[][] render(Case renderCase, SharedAssets assets) throws IOException, ExecutionException {
+        PaddedImage paddedImage = new PaddedImage(assets.getImage(renderCase.path(), renderCase.luminance()));
+        SubImgCharMatcher matcher = assets.getNormalizedCharset(renderCase.chars());
+        if (renderCase.shapes()) {
+            int grid = SubImgCharMatcher.SHAPE_GRID;
+            return matcher.matchShapes(new SubCellConverter(paddedImage, renderCase.resolution(), grid, grid,
+                    Cancellation.NEVER), Cancellation.NEVER);
+        }
+        ImageConverter imageConverter = new ImageConverter(paddedImage, renderCase.resolution());
+        return new AsciiArtAlgorithm(renderCase.resolution(), matcher, "abs", imageConverter).run();
+    }
+}
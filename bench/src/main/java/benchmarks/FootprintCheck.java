@@ -0,0 +1,356 @@
+package benchmarks;
+
+import ascii_art.AsciiArtAlgorithm;
+import ascii_art.SharedAssets;
+import image.Image;
+import image.ImageConverter;
+import image.Luminance;
+import image.PaddedImage;
+import image_char_matching.SubImgCharMatcher;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintWriter;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.ref.Reference;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Checks the memory footprint of the conversion pipeline against recorded budgets, so changes to
+ * the image, matching and algorithm packages can't silently make renders allocate or keep more.
+ * Every scenario decodes a synthetic image file, pads it, computes its brightness grid and
+ * matches it to a charset, like the shell does, and measures:
+ * <ul>
+ *     <li>allocated: the bytes allocated by all threads during the render, the least of a few
+ *     runs after warming up, so the parallel stages are counted too;</li>
+ *     <li>retained: the growth of the heap after a full collection, while the ASCII art is
+ *     still held as a caller would hold it, the least of a few runs. Every run opens an image
+ *     file of its own, so an image kept by a cache counts too.</li>
+ * </ul>
+ * Besides rendering on its own, every image is rendered through the assets shared by the
+ * process, like a shell session, so images, charsets and glyphs the shared caches keep count
+ * against the budgets. The heap is measured on the serial collector, whose full collections
+ * leave exactly the live objects; started with another collector, the check restarts itself.
+ * The budgets are read from footprint-budgets.properties. The verify phase of the benchmarks
+ * build runs the check and fails when a scenario exceeds its budget; it can also be run after
+ * packaging the benchmarks:
+ * <pre>
+ *     java -cp bench/target/benchmarks.jar benchmarks.FootprintCheck
+ * </pre>
+ * The exit status is 1 if a scenario exceeds its budget. With --record FILE, the measurements,
+ * with some headroom, are written to FILE as the new budgets instead.
+ *
+ * @author inbar.el and stavzok
+ */
+public final class FootprintCheck {
+
+    /* The budgets, a resource next to this class. */
+    private static final String BUDGETS_RESOURCE = "/footprint-budgets.properties";
+    private static final String RECORD_OPTION = "--record";
+
+    /* Suffixes of the budget keys of a scenario. */
+    private static final String ALLOCATED_SUFFIX = ".allocated";
+    private static final String RETAINED_SUFFIX = ".retained";
+
+    /* Sizes of the synthetic images and the resolutions every one is rendered at. */
+    private static final int[][] SIZES = {{640, 480}, {1024, 1024}, {1920, 1080}};
+    private static final int[] RESOLUTIONS = {16, 128, 512};
+
+    /* The scenario rendering every image through the shared assets, and its resolution. */
+    private static final String SHARED_SCENARIO = ".shared.res";
+    private static final int SHARED_RESOLUTION = 128;
+
+    /* Prefix of the copies of the image files opened by the retained readings. */
+    private static final String COPY_PREFIX = "copy";
+
+    /* The full collector of the serial collector, and the option choosing it. */
+    private static final String SERIAL_FULL_COLLECTOR = "MarkSweepCompact";
+    private static final String SERIAL_COLLECTOR_OPTION = "-XX:+UseSerialGC";
+
+    /* Renders before measuring, and measured renders of which the least allocation counts. */
+    private static final int WARMUP_RUNS = 3;
+    private static final int MEASURED_RUNS = 5;
+
+    /* Renders whose retained heap is measured, of which the least counts. */
+    private static final int RETAINED_RUNS = 3;
+
+    /*
+     * Full collections of which the least heap left in use counts. A collection may leave dead
+     * objects in place rather than move the live ones, but compacts fully every few collections.
+     */
+    private static final int COLLECTIONS = 4;
+
+    /* Recorded budgets exceed the measurements by this factor, rounded up to a kilobyte. */
+    private static final double HEADROOM = 1.25;
+    private static final long KILOBYTE = 1024;
+
+    private static final com.sun.management.ThreadMXBean THREADS =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    /* A measured scenario. */
+    private record Measurement(String name, long allocated, long retained) {
+    }
+
+    /* Renders an image file in the way of a scenario. */
+    private interface Renderer {
+        char[][] render(String path) throws IOException;
+    }
+
+    private FootprintCheck() {
+    }
+
+    /**
+     * Measures every scenario and checks it against its budget, or records the budgets.
+     *
+     * @param args Nothing, or --record FILE.
+     * @throws IOException If the synthetic images or the budgets can't be read or written.
+     * @throws InterruptedException If waiting for the check restarted on the serial collector
+     *                              is interrupted.
+     */
+    public static void main(String[] args) throws IOException, InterruptedException {
+        boolean record = args.length == 2 && args[0].equals(RECORD_OPTION);
+        if (args.length != 0 && !record) {
+            System.err.println("Usage: FootprintCheck [" + RECORD_OPTION + " FILE]");
+            System.exit(2);
+        }
+        if (!usesSerialCollector()) {
+            System.exit(restartOnSerialCollector(args));
+        }
+        THREADS.setThreadAllocatedMemoryEnabled(true);
+        SubImgCharMatcher matcher = new SubImgCharMatcher(BenchmarkInputs.DIGITS.toCharArray());
+        matcher.normalizeBrightness();
+
+        List<Measurement> measurements = new ArrayList<>();
+        Path directory = Files.createTempDirectory("footprint");
+        try {
+            for (int[] size : SIZES) {
+                File file = BenchmarkInputs.writeSynthetic(directory, size[0], size[1]);
+                String name = size[0] + "x" + size[1];
+                for (int resolution : RESOLUTIONS) {
+                    measurements.add(measure(name + ".res" + resolution, file.toPath(),
+                            path -> render(path, resolution, matcher)));
+                }
+                measurements.add(measure(name + SHARED_SCENARIO + SHARED_RESOLUTION, file.toPath(),
+                        path -> renderShared(path, SHARED_RESOLUTION)));
+                Files.delete(file.toPath());
+            }
+        } finally {
+            Files.delete(directory);
+        }
+
+        if (record) {
+            writeBudgets(args[1], measurements);
+            return;
+        }
+        System.exit(check(measurements, readBudgets()) ? 0 : 1);
+    }
+
+    /*
+     * Renders an image file through the whole pipeline.
+     */
+    private static char[][] render(String path, int resolution, SubImgCharMatcher matcher) throws IOException {
+        PaddedImage paddedImage = new PaddedImage(new Image(path));
+        ImageConverter imageConverter = new ImageConverter(paddedImage, resolution);
+        return new AsciiArtAlgorithm(resolution, matcher, "abs", imageConverter).run();
+    }
+
+    /*
+     * Renders an image file like a shell session: the image and the normalized charset come from
+     * the assets shared by the process, and the image is released once rendered.
+     */
+    private static char[][] renderShared(String path, int resolution) throws IOException {
+        SubImgCharMatcher matcher;
+        try {
+            matcher = SharedAssets.SHARED.getNormalizedCharset(BenchmarkInputs.DIGITS);
+        } catch (ExecutionException e) {
+            throw new IOException(e.getCause());
+        }
+        PaddedImage paddedImage = new PaddedImage(SharedAssets.SHARED.getImage(path, Luminance.GAMMA_ENCODED));
+        ImageConverter imageConverter = new ImageConverter(paddedImage, resolution);
+        char[][] asciiArt = new AsciiArtAlgorithm(resolution, matcher, "abs", imageConverter).run();
+        SharedAssets.SHARED.releaseImage(path);
+        return asciiArt;
+    }
+
+    /*
+     * Measures the allocation and retained heap of a scenario.
+     */
+    private static Measurement measure(String name, Path file, Renderer renderer) throws IOException {
+        for (int i = 0; i < WARMUP_RUNS; i++) {
+            renderer.render(file.toString());
+        }
+        long allocated = Long.MAX_VALUE;
+        for (int i = 0; i < MEASURED_RUNS; i++) {
+            long before = allocatedByAllThreads();
+            renderer.render(file.toString());
+            allocated = Math.min(allocated, allocatedByAllThreads() - before);
+        }
+        long retained = Long.MAX_VALUE;
+        for (int i = 0; i < RETAINED_RUNS; i++) {
+            retained = Math.min(retained, retainedBy(file, i, renderer));
+        }
+        return new Measurement(name, allocated, retained);
+    }
+
+    /*
+     * Measures the heap retained by the result of a render, held only by this call's frame.
+     * The render opens a copy of the image file of its own, like a session opening a new image,
+     * so an image kept by a cache of the process counts too.
+     */
+    private static long retainedBy(Path file, int reading, Renderer renderer) throws IOException {
+        Path copy = file.resolveSibling(COPY_PREFIX + reading + "-" + file.getFileName());
+        Files.copy(file, copy);
+        try {
+            long usedBefore = usedHeapAfterCollection();
+            char[][] asciiArt = renderer.render(copy.toString());
+            long retained = usedHeapAfterCollection() - usedBefore;
+            // Keep the result reachable until the heap was measured
+            Reference.reachabilityFence(asciiArt);
+            return Math.max(0, retained);
+        } finally {
+            Files.delete(copy);
+        }
+    }
+
+    /*
+     * Tells whether the heap is managed by the serial collector, whose full collections leave
+     * exactly the live objects once they compact fully.
+     */
+    private static boolean usesSerialCollector() {
+        for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+            if (collector.getName().equals(SERIAL_FULL_COLLECTOR)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /*
+     * Runs the check again in a JVM using the serial collector, with the same options otherwise.
+     *
+     * @return The exit status of the check.
+     */
+    private static int restartOnSerialCollector(String[] args) throws IOException, InterruptedException {
+        List<String> command = new ArrayList<>();
+        command.add(Path.of(System.getProperty("java.home"), "bin", "java").toString());
+        for (String option : ManagementFactory.getRuntimeMXBean().getInputArguments()) {
+            // Drop the choice of another collector
+            if (!(option.startsWith("-XX:+Use") && option.endsWith("GC"))) {
+                command.add(option);
+            }
+        }
+        command.add(SERIAL_COLLECTOR_OPTION);
+        command.addAll(List.of("-cp", System.getProperty("java.class.path"), FootprintCheck.class.getName()));
+        command.addAll(Arrays.asList(args));
+        return new ProcessBuilder(command).inheritIO().start().waitFor();
+    }
+
+    /*
+     * Sums the bytes allocated so far by the live threads, including the workers of parallel
+     * stages, which stay alive between renders.
+     */
+    private static long allocatedByAllThreads() {
+        long total = 0;
+        for (long allocated : THREADS.getThreadAllocatedBytes(THREADS.getAllThreadIds())) {
+            total += Math.max(0, allocated);
+        }
+        return total;
+    }
+
+    /*
+     * Collects the garbage and reads the least heap the collections left in use, not counting
+     * what was allocated since.
+     */
+    private static long usedHeapAfterCollection() {
+        long least = Long.MAX_VALUE;
+        for (int i = 0; i < COLLECTIONS; i++) {
+            System.gc();
+            long used = 0;
+            for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+                if (pool.getType() == MemoryType.HEAP && pool.getCollectionUsage() != null) {
+                    used += pool.getCollectionUsage().getUsed();
+                }
+            }
+            least = Math.min(least, used);
+        }
+        return least;
+    }
+
+    /*
+     * Reads the budgets of the scenarios.
+     */
+    private static Properties readBudgets() throws IOException {
+        Properties budgets = new Properties();
+        try (InputStream stream = FootprintCheck.class.getResourceAsStream(BUDGETS_RESOURCE)) {
+            if (stream == null) {
+                throw new IOException("Missing " + BUDGETS_RESOURCE);
+            }
+            budgets.load(stream);
+        }
+        return budgets;
+    }
+
+    /*
+     * Prints every scenario against its budgets.
+     *
+     * @return True if no scenario exceeds its budgets.
+     */
+    private static boolean check(List<Measurement> measurements, Properties budgets) {
+        boolean passed = true;
+        System.out.printf("%-24s %14s %14s %14s %14s%n", "scenario", "allocated", "budget", "retained", "budget");
+        for (Measurement measurement : measurements) {
+            long allocatedBudget = budget(budgets, measurement.name() + ALLOCATED_SUFFIX);
+            long retainedBudget = budget(budgets, measurement.name() + RETAINED_SUFFIX);
+            boolean withinBudget = measurement.allocated() <= allocatedBudget &&
+                    measurement.retained() <= retainedBudget;
+            passed &= withinBudget;
+            System.out.printf("%-24s %14d %14d %14d %14d%s%n", measurement.name(),
+                    measurement.allocated(), allocatedBudget, measurement.retained(), retainedBudget,
+                    withinBudget ? "" : "  OVER BUDGET");
+        }
+        System.out.println(passed ? "All scenarios within budget." : "Footprint exceeds the budget.");
+        return passed;
+    }
+
+    /*
+     * Reads a budget; a missing budget is exceeded by any measurement.
+     */
+    private static long budget(Properties budgets, String key) {
+        String value = budgets.getProperty(key);
+        return value == null ? -1 : Long.parseLong(value.trim());
+    }
+
+    /*
+     * Writes the measurements, with headroom, as the budgets.
+     */
+    private static void writeBudgets(String path, List<Measurement> measurements) throws IOException {
+        try (PrintWriter writer = new PrintWriter(new FileWriter(path))) {
+            writer.println("# Footprint budgets of the conversion pipeline, in bytes, checked by FootprintCheck.");
+            writer.println("# Recorded with " + RECORD_OPTION + ": the measurements times " + HEADROOM + ".");
+            for (Measurement measurement : measurements) {
+                writer.println(measurement.name() + ALLOCATED_SUFFIX + "=" + withHeadroom(measurement.allocated()));
+                writer.println(measurement.name() + RETAINED_SUFFIX + "=" + withHeadroom(measurement.retained()));
+            }
+        }
+        System.out.println("Recorded the budgets of " + measurements.size() + " scenarios in " + path);
+    }
+
+    /*
+     * Adds the headroom to a measurement, rounded up to a kilobyte, and at least a kilobyte.
+     */
+    private static long withHeadroom(long bytes) {
+        long budget = (long) Math.ceil(bytes * HEADROOM);
+        return Math.max(KILOBYTE, (budget + KILOBYTE - 1) / KILOBYTE * KILOBYTE);
+    }
+}
@@ -0,0 +1,127 @@
+package benchmarks;
+
+import image.Cancellation;
+import image.EdgeConverter;
+import image.Image;
+import image.ImageConverter;
+import image.Luminance;
+import image.PaddedImage;
+import image.SubCellConverter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks of the image stages: decoding, padding, the brightness grid and the edges.
+ *
+ * @author inbar.el and stavzok
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ImageBenchmark {
+
+    /**
+     * An example image file.
+     */
+    @State(Scope.Benchmark)
+    public static class ExampleFile {
+        @Param({"cat.jpeg", "board.jpeg"})
+        public String name;
+
+        String path;
+
+        @Setup
+        public void setup() throws IOException {
+            path = BenchmarkInputs.example(name);
+        }
+    }
+
+    /**
+     * A synthetic image of a given size; sizes that are already powers of two aren't padded.
+     */
+    @State(Scope.Benchmark)
+    public static class SyntheticImage {
+        @Param({"256x256", "640x480", "1024x1024", "1920x1080"})
+        public String size;
+
+        Image image;
+
+        @Setup
+        public void setup() {
+            String[] dimensions = size.split("x");
+            image = BenchmarkInputs.synthetic(Integer.parseInt(dimensions[0]), Integer.parseInt(dimensions[1]));
+        }
+    }
+
+    /**
+     * A padded example image, converted at a given resolution, with the brightness of its pixels
+     * weighed directly or in linear light.
+     */
+    @State(Scope.Benchmark)
+    public static class PaddedExample {
+        @Param({"cat.jpeg", "board.jpeg"})
+        public String name;
+
+        @Param({"2", "32", "128", "512"})
+        public int resolution;
+
+        @Param({"GAMMA_ENCODED", "LINEAR"})
+        public Luminance luminance;
+
+        PaddedImage paddedImage;
+        ImageConverter converter;
+
+        @Setup
+        public void setup() throws IOException {
+            paddedImage = new PaddedImage(new Image(BenchmarkInputs.example(name)).withLuminance(luminance));
+            if (resolution > paddedImage.getWidth()) {
+                resolution = paddedImage.getWidth();
+            }
+            converter = new ImageConverter(paddedImage, resolution);
+        }
+    }
+
+    @Benchmark
+    public Image decode(ExampleFile file) throws IOException {
+        return new Image(file.path);
+    }
+
+    @Benchmark
+    public PaddedImage pad(SyntheticImage synthetic) {
+        return new PaddedImage(synthetic.image);
+    }
+
+    @Benchmark
+    public ImageConverter brightnessGrid(PaddedExample example) {
+        return new ImageConverter(example.paddedImage, example.resolution);
+    }
+
+    @Benchmark
+    public EdgeConverter edges(PaddedExample example) {
+        return new EdgeConverter(example.paddedImage, example.resolution, Cancellation.NEVER);
+    }
+
+    @Benchmark
+    public SubCellConverter brailleSamples(PaddedExample example) {
+        return new SubCellConverter(example.paddedImage, example.resolution, 2, 4, Cancellation.NEVER);
+    }
+
+    @Benchmark
+    public ImageConverter equalize(PaddedExample example) {
+        return example.converter.withContrast(ImageConverter.Contrast.EQUALIZE);
+    }
+}
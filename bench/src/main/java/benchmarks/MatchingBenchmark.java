@@ -0,0 +1,113 @@
+package benchmarks;
+
+import ascii_art.AsciiArtAlgorithm;
+import image.Image;
+import image.ImageConverter;
+import image.PaddedImage;
+import image_char_matching.GlyphIndex;
+import image_char_matching.SubImgCharMatcher;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks of the charset and matching stages: building a matcher, looking up a single
+ * brightness or shape, and running the whole algorithm with every rounding method.
+ *
+ * @author inbar.el and stavzok
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MatchingBenchmark {
+
+    /* Number of brightness values looked up per invocation. */
+    private static final int LOOKUPS = 1024;
+
+    /**
+     * A charset, and a normalized matcher of it.
+     */
+    @State(Scope.Benchmark)
+    public static class Charset {
+        @Param({BenchmarkInputs.DIGITS, BenchmarkInputs.ALPHANUMERIC})
+        public String chars;
+
+        SubImgCharMatcher matcher;
+
+        /* Random shapes to look up, one after the other. */
+        double[] shapes;
+
+        @Setup
+        public void setup() {
+            matcher = new SubImgCharMatcher(chars.toCharArray());
+            matcher.normalizeBrightness();
+            shapes = new Random(0).doubles((long) LOOKUPS * matcher.getGlyphIndex().getDimensions()).toArray();
+        }
+    }
+
+    /**
+     * The brightness grid of an example image, and a matcher for a rounding method.
+     */
+    @State(Scope.Benchmark)
+    public static class Render {
+        @Param({"cat.jpeg", "board.jpeg"})
+        public String name;
+
+        @Param({"64", "256"})
+        public int resolution;
+
+        @Param({"abs", "up", "down"})
+        public String roundMethod;
+
+        AsciiArtAlgorithm algo;
+
+        @Setup
+        public void setup() throws IOException {
+            PaddedImage paddedImage = new PaddedImage(new Image(BenchmarkInputs.example(name)));
+            int res = Math.min(resolution, paddedImage.getWidth());
+            SubImgCharMatcher matcher = new SubImgCharMatcher(BenchmarkInputs.DIGITS.toCharArray());
+            matcher.normalizeBrightness();
+            algo = new AsciiArtAlgorithm(res, matcher, roundMethod, new ImageConverter(paddedImage, res));
+        }
+    }
+
+    @Benchmark
+    public SubImgCharMatcher buildMatcher(Charset charset) {
+        return new SubImgCharMatcher(charset.chars.toCharArray());
+    }
+
+    @Benchmark
+    public void charByBrightness(Charset charset, Blackhole blackhole) {
+        for (int i = 0; i < LOOKUPS; i++) {
+            blackhole.consume(charset.matcher.getCharByImageBrightness((double) i / LOOKUPS));
+        }
+    }
+
+    @Benchmark
+    public void charByShape(Charset charset, Blackhole blackhole) {
+        GlyphIndex index = charset.matcher.getGlyphIndex();
+        for (int i = 0; i < LOOKUPS; i++) {
+            blackhole.consume(index.nearest(charset.shapes, i * index.getDimensions()));
+        }
+    }
+
+    @Benchmark
+    public char[][] runAlgorithm(Render render) {
+        return render.algo.run();
+    }
+}
@@ -0,0 +1,102 @@
+package benchmarks;
+
+import ascii_art.AsciiArtAlgorithm;
+import ascii_output.AsciiOutput;
+import ascii_output.BinaryAsciiOutput;
+import ascii_output.ConsoleAsciiOutput;
+import ascii_output.HtmlAsciiOutput;
+import ascii_output.PngAsciiOutput;
+import ascii_output.StreamingHtmlAsciiOutput;
+import image.Image;
+import image.ImageConverter;
+import image.PaddedImage;
+import image_char_matching.SubImgCharMatcher;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks of every AsciiOutput, writing the ASCII art of an example image to a temporary
+ * directory, or to a discarding stream for the console.
+ *
+ * @author inbar.el and stavzok
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class OutputBenchmark {
+
+    private static final String FONT = "Courier new";
+
+    @Param({"console", "html", "streamingHtml", "html.gz", "binary", "png"})
+    public String output;
+
+    @Param({"cat.jpeg", "board.jpeg"})
+    public String name;
+
+    @Param({"128"})
+    public int resolution;
+
+    private char[][] asciiImage;
+    private Path directory;
+    private AsciiOutput asciiOutput;
+
+    @Setup
+    public void setup() throws IOException {
+        PaddedImage paddedImage = new PaddedImage(new Image(BenchmarkInputs.example(name)));
+        int res = Math.min(resolution, paddedImage.getWidth());
+        SubImgCharMatcher matcher = new SubImgCharMatcher(BenchmarkInputs.DIGITS.toCharArray());
+        matcher.normalizeBrightness();
+        asciiImage = new AsciiArtAlgorithm(res, matcher, "abs", new ImageConverter(paddedImage, res)).run();
+
+        directory = Files.createTempDirectory("ascii-bench");
+        String file = directory.resolve("out").toString();
+        asciiOutput = switch (output) {
+            case "console" -> new ConsoleAsciiOutput(
+                    new PrintStream(OutputStream.nullOutputStream(), false, StandardCharsets.UTF_8));
+            case "html" -> new HtmlAsciiOutput(file + ".html", FONT);
+            case "streamingHtml" -> new StreamingHtmlAsciiOutput(file + ".html", FONT);
+            case "html.gz" -> new StreamingHtmlAsciiOutput(file + ".html.gz", FONT);
+            case "binary" -> new BinaryAsciiOutput(file + ".ascb");
+            case "png" -> new PngAsciiOutput(file + ".png");
+            default -> throw new IllegalArgumentException(output);
+        };
+    }
+
+    @TearDown
+    public void tearDown() {
+        File[] files = directory.toFile().listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.toFile().delete();
+    }
+
+    @Benchmark
+    public void write() {
+        asciiOutput.out(asciiImage);
+    }
+}
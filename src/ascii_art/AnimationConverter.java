@@ -0,0 +1,148 @@
+package ascii_art;
+
+import ascii_output.AsciiAnimationOutput;
+import image.FrameSequence;
+import image.Luminance;
+import image_char_matching.SubImgCharMatcher;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * AnimationConverter converts a sequence of frames into an ASCII animation.
+ * The frames are split into square cells of (width / resolution) pixels; after the first frame,
+ * only the cells whose pixels changed since the previous frame are measured and matched again,
+ * and the output is told which cells changed.
+ *
+ * @author inbar.el and stavzok
+ */
+public class AnimationConverter {
+
+    /* The maximum possible RGB score for normalization. */
+    private static final int MAX_RGB_SCORE = 255;
+
+    private static final double NANOS_PER_SECOND = 1_000_000_000.0;
+
+    private final int resolution;
+
+    /* How the brightness of the pixels and cells is calculated from their colors. */
+    private final Luminance luminance;
+
+    /* Matches the brightness of the cells with the shared charset and rounding method. */
+    private final AsciiArtAlgorithm matcher;
+
+    /* Statistics of the last conversion. */
+    private int frameCount;
+    private long changedCells;
+    private long totalCells;
+    private double conversionSeconds;
+    private double totalSeconds;
+
+    /**
+     * Constructs an animation converter.
+     *
+     * @param resolution        The number of columns of the animation.
+     * @param subImgCharMatcher A matcher with normalized brightness.
+     * @param roundMethod       The rounding method for brightness matching.
+     * @param luminance         How the brightness of the pixels is calculated, as for images.
+     */
+    public AnimationConverter(int resolution, SubImgCharMatcher subImgCharMatcher, String roundMethod,
+                              Luminance luminance) {
+        this.resolution = resolution;
+        this.luminance = luminance;
+        this.matcher = new AsciiArtAlgorithm(resolution, subImgCharMatcher, roundMethod, null);
+    }
+
+    /**
+     * Converts all frames of a sequence and streams them to the output.
+     *
+     * @param frames The frames to convert.
+     * @param output The output receiving the frames.
+     * @throws IOException If a frame can't be decoded.
+     */
+    public void convert(FrameSequence frames, AsciiAnimationOutput output) throws IOException {
+        int width = frames.getWidth();
+        int cellSize = Math.max(1, width / resolution);
+        int cols = width / cellSize;
+        int rows = frames.getHeight() / cellSize;
+
+        int[] previousPixels = new int[width * frames.getHeight()];
+        char[][] chars = new char[rows][cols];
+        boolean[][] changed = new boolean[rows][cols];
+        frameCount = 0;
+        changedCells = 0;
+        totalCells = 0;
+        long conversionNanos = 0;
+        long start = System.nanoTime();
+
+        output.begin(rows, cols);
+        while (frames.next()) {
+            long frameStart = System.nanoTime();
+            int[] pixels = frames.getPixels();
+            boolean firstFrame = frameCount == 0;
+            for (int row = 0; row < rows; row++) {
+                for (int col = 0; col < cols; col++) {
+                    boolean cellChanged = firstFrame ||
+                            cellDiffers(pixels, previousPixels, width, row, col, cellSize);
+                    changed[row][col] = cellChanged;
+                    if (cellChanged) {
+                        double brightness = cellBrightness(pixels, width, row, col, cellSize);
+                        chars[row][col] = matcher.matchBrightness(brightness);
+                        changedCells++;
+                    }
+                }
+            }
+            System.arraycopy(pixels, 0, previousPixels, 0, pixels.length);
+            totalCells += (long) rows * cols;
+            frameCount++;
+            conversionNanos += System.nanoTime() - frameStart;
+            output.outFrame(chars, changed, frames.getDelayMillis());
+        }
+        output.end();
+        conversionSeconds = conversionNanos / NANOS_PER_SECOND;
+        totalSeconds = (System.nanoTime() - start) / NANOS_PER_SECOND;
+    }
+
+    /*
+     * Checks whether any pixel of a cell differs between two frames.
+     */
+    private static boolean cellDiffers(int[] pixels, int[] previousPixels, int width,
+                                       int row, int col, int cellSize) {
+        int x = col * cellSize;
+        for (int y = row * cellSize; y < (row + 1) * cellSize; y++) {
+            int from = y * width + x;
+            if (Arrays.mismatch(pixels, from, from + cellSize, previousPixels, from, from + cellSize) >= 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /*
+     * Calculates the average grayscale brightness of a cell, normalized to [0, 1], the way
+     * ImageConverter calculates that of a sub-image.
+     */
+    private double cellBrightness(int[] pixels, int width, int row, int col, int cellSize) {
+        double graySum = 0;
+        int x = col * cellSize;
+        for (int y = row * cellSize; y < (row + 1) * cellSize; y++) {
+            int offset = y * width + x;
+            for (int i = 0; i < cellSize; i++) {
+                int rgb = pixels[offset + i];
+                graySum += luminance.gray((rgb >> 16) & 0xFF, (rgb >> 8) & 0xFF, rgb & 0xFF);
+            }
+        }
+        return luminance.encode(graySum / ((double) cellSize * cellSize * MAX_RGB_SCORE));
+    }
+
+    /**
+     * @return A line with the frame rates and the share of cells recomputed in the last conversion.
+     */
+    public String report() {
+        return String.format("%d frames: %.1f frames/s converted, %.1f frames/s with output, " +
+                        "%.1f%% of cells recomputed",
+                frameCount, conversionSeconds > 0 ? frameCount / conversionSeconds : 0,
+                totalSeconds > 0 ? frameCount / totalSeconds : 0,
+                totalCells > 0 ? 100.0 * changedCells / totalCells : 0);
+    }
+}
@@ -1,11 +1,14 @@
 package ascii_art;
 
+import ascii_output.AsciiRowOutput;
+import image.Cancellation;
 import image.ImageConverter;
+import image_char_matching.EdgeGlyphMatcher;
 import image_char_matching.SubImgCharMatcher;
-import java.awt.*;
-import java.util.ArrayList;
+import pipeline_stats.StageStats;
+import pipeline_stats.StageTimer;
+import java.util.Arrays;
 import java.util.HashMap;
-import java.util.Map;
 
 /**
  * The AsciiArtAlgorithm class generates ASCII art from an image.
@@ -50,6 +53,10 @@ public class AsciiArtAlgorithm {
      */
     private final String roundMethod;
 
+    /*
+     * Directional glyph of every sub-image with a strong edge, or null to match all by brightness.
+     */
+    private final char[] edgeGlyphs;
 
     /**
      * Constructs an AsciiArtAlgorithm instance.
@@ -57,95 +64,91 @@ public class AsciiArtAlgorithm {
      * @param resolution         The number of columns in the ASCII output.
      * @param subImgCharMatcher  A matcher for comparing brightness values.
      * @param roundMethod        The rounding method for brightness matching (e.g., "up", "down", "abs").
-     * @param imageConverter     The converter for splitting the image into sub-images.
+     * @param imageConverter     The converter holding the brightness of the sub-images.
      */
     public AsciiArtAlgorithm(int resolution, SubImgCharMatcher subImgCharMatcher,
                              String roundMethod, ImageConverter imageConverter) {
+        this(resolution, subImgCharMatcher, roundMethod, imageConverter, null);
+    }
+
+    /**
+     * Constructs an AsciiArtAlgorithm instance drawing strong edges with directional glyphs.
+     * Sub-images without a glyph are matched by brightness.
+     *
+     * @param resolution         The number of columns in the ASCII output.
+     * @param subImgCharMatcher  A matcher for comparing brightness values.
+     * @param roundMethod        The rounding method for brightness matching (e.g., "up", "down", "abs").
+     * @param imageConverter     The converter holding the brightness of the sub-images.
+     * @param edgeGlyphs         The glyph of every sub-image, or EdgeGlyphMatcher.NO_GLYPH, row by row,
+     *                           or null to match all sub-images by brightness.
+     */
+    public AsciiArtAlgorithm(int resolution, SubImgCharMatcher subImgCharMatcher,
+                             String roundMethod, ImageConverter imageConverter, char[] edgeGlyphs) {
         this.resolution = resolution;
         this.subImgCharMatcher = subImgCharMatcher;
         this.imageConverter = imageConverter;
         this.roundMethod = roundMethod;
+        this.edgeGlyphs = edgeGlyphs;
     }
 
     /*
-     * Matches each sub-image to its closest ASCII character based on brightness.
+     * Finds the closest character to a given brightness value. The matcher searches an index
+     * of the charset sorted by brightness, so the cost grows with the logarithm of its size.
      *
-     * @param subImages A map of sub-images and their corresponding brightness values.
-     * @param asciiMap  A map of ASCII characters and their normalized brightness values.
-     * @return A map of sub-images and their matched ASCII characters.
-     */
-    private HashMap<Color[][], Character> matchAsciiToSubImage(
-            HashMap<Color[][], Double> subImages,
-            HashMap<Character, Double> asciiMap) {
-        HashMap<Color[][], Character> resultMap = new HashMap<>();
-
-        for (Map.Entry<Color[][], Double> subImageEntry : subImages.entrySet()) {
-            Color[][] subImage = subImageEntry.getKey();
-            Double subImageBrightness = subImageEntry.getValue();
-
-            // Find the closest character for the sub-image brightness
-            Character closestChar = findClosestCharacters(asciiMap, subImageBrightness);
-            resultMap.put(subImage, closestChar); // Store the closest character
+     * @param targetBrightness The brightness value of the sub-image.
+     * @return The closest character based on the selected rounding method.
+     */
+    private Character findClosestCharacters(double targetBrightness) {
+        switch (roundMethod) {
+            case ROUND_METHOD_UP: // Find the smallest value bigger than or equal to the target
+                return subImgCharMatcher.getCharRoundedUp(targetBrightness);
+
+            case ROUND_METHOD_DOWN: // Find the largest value smaller than or equal to the target
+                return subImgCharMatcher.getCharRoundedDown(targetBrightness);
+
+            case ROUND_METHOD_ABS: // Find the value closest to the target
+            default: // Unknown methods match the closest value too
+                return subImgCharMatcher.getCharByImageBrightness(targetBrightness);
         }
-        return resultMap;
     }
 
     /*
-     * Finds the closest ASCII character to a given brightness value.
+     * Matches a single brightness value with the rounding method of this algorithm.
+     * Does not use the image converter, which may be null for callers computing their own brightness.
      *
-     * @param asciiMap         A map of ASCII characters and their brightness values.
-     * @param targetBrightness The brightness value of the sub-image.
-     * @return The closest ASCII character based on the selected rounding method.
+     * @param brightness The brightness value to match, between 0 and 1.
+     * @return The matching ASCII character.
      */
-    private Character findClosestCharacters(HashMap<Character, Double> asciiMap, Double targetBrightness) {
-        Character closestChar = null;
-        double minDifference = Double.MAX_VALUE;
-
-        // Use absolute matching if roundMethod is "abs"
-        if (roundMethod.equals(ROUND_METHOD_ABS)){
-            return subImgCharMatcher.getCharByImageBrightness(targetBrightness);
-        }
-
-        // Find the closest character based on the selected rounding method
-        for (Map.Entry<Character, Double> asciiEntry : asciiMap.entrySet()) {
-            char asciiChar = asciiEntry.getKey();
-            Double asciiBrightness = asciiEntry.getValue();
-
-            double difference = Math.abs(asciiBrightness - targetBrightness);
-
-            // Check rounding mode to decide the closest match
-            switch (roundMethod) {
-
-                case ROUND_METHOD_UP: // Find the smallest value bigger than or equal to the target
-                    if (asciiBrightness >= targetBrightness && difference < minDifference) {
-                        closestChar = asciiChar;
-                        minDifference = difference;
-                    }
-                    break;
+    char matchBrightness(double brightness) {
+        return findClosestCharacters(brightness);
+    }
 
-                case ROUND_METHOD_DOWN: // Find the largest value smaller than or equal to the target
-                    if (asciiBrightness <= targetBrightness && difference < minDifference) {
-                        closestChar = asciiChar;
-                        minDifference = difference;
-                    }
-                    break;
-            }
+    /*
+     * Matches a sub-image to its edge glyph, or to the closest character by brightness.
+     *
+     * @param brightnessGrid The brightness of every sub-image, row by row.
+     * @param subImageIndex  The index of the sub-image in the grid.
+     * @return The matching character.
+     */
+    private char matchSubImage(double[] brightnessGrid, int subImageIndex) {
+        if (edgeGlyphs != null && edgeGlyphs[subImageIndex] != EdgeGlyphMatcher.NO_GLYPH) {
+            return edgeGlyphs[subImageIndex];
         }
-
-        return closestChar;
+        return findClosestCharacters(brightnessGrid[subImageIndex]);
     }
 
     /*
-     * Creates a 2D ASCII art representation from matched sub-images and characters.
+     * Creates a 2D ASCII art representation by matching every sub-image brightness
+     * to its closest character.
      *
-     * @param resultMap A map of sub-images and their matched ASCII characters.
+     * @param brightnessGrid The brightness of every sub-image, row by row.
+     * @param cancellation   Checked every few rows.
      * @return A 2D char array representing the ASCII art.
      */
-
-    private char[][] createAsciiImage(HashMap<Color[][], Character> resultMap) {
+    private char[][] createAsciiImage(double[] brightnessGrid, Cancellation cancellation) {
         // Create char array with the same dimensions as the padded image
-        int paddedWidth = imageConverter.getPaddedImage().getImage().getWidth();
-        int paddedHeight = imageConverter.getPaddedImage().getImage().getHeight();
+        int paddedWidth = imageConverter.getPaddedImage().getWidth();
+        int paddedHeight = imageConverter.getPaddedImage().getHeight();
         char[][] asciiArt = new char[paddedHeight][paddedWidth];
 
         // Fill with spaces initially
@@ -155,33 +158,123 @@ public class AsciiArtAlgorithm {
             }
         }
         int numOfCols = resolution;
-        int numOfRows = paddedHeight / (paddedWidth / resolution);
+        int numOfRows = numOfArtRows(paddedWidth, paddedHeight);
 
         // Calculate starting position to center the ASCII art
         int startX = (paddedWidth - numOfCols) / 2;
         int startY = (paddedHeight - numOfRows) / 2;
 
         int subImageIndex = 0;
-        ArrayList<Color[][]> orderedSubImages = imageConverter.getSubImagesArray();
         for (int row = 0; row < numOfRows; row++) {
+            if (row % Cancellation.CHECK_INTERVAL == 0) {
+                cancellation.check();
+            }
             for (int col = 0; col < numOfCols; col++) {
-                char matchedChar = resultMap.get(orderedSubImages.get(subImageIndex));
-                asciiArt[startY + row][startX + col] = matchedChar;
+                asciiArt[startY + row][startX + col] = matchSubImage(brightnessGrid, subImageIndex);
                 subImageIndex++;
             }
         }
         return asciiArt;
     }
 
+    /*
+     * Calculates the number of rows of the ASCII art, at most the number of sub-image rows.
+     *
+     * @param paddedWidth  The width of the padded image.
+     * @param paddedHeight The height of the padded image.
+     * @return The number of rows of the ASCII art.
+     */
+    private int numOfArtRows(int paddedWidth, int paddedHeight) {
+        return Math.min(paddedHeight / (paddedWidth / resolution), imageConverter.getGridRows());
+    }
+
     /**
      * Runs the ASCII art generation process.
      *
      * @return A 2D char array representing the generated ASCII art.
      */
     public char [][] run(){
-        HashMap<Color[][],Double> subImages = imageConverter.getNewResolutionArray();
+        return run(Cancellation.NEVER);
+    }
+
+    /**
+     * Runs the ASCII art generation process, checking for cancellation every few rows.
+     *
+     * @param cancellation Checked every few rows.
+     * @return A 2D char array representing the generated ASCII art.
+     * @throws java.util.concurrent.CancellationException If the generation is cancelled.
+     */
+    public char[][] run(Cancellation cancellation) {
+        try (StageTimer timer = StageStats.start(StageStats.Stage.MATCH)) {
+            double[] brightnessGrid = imageConverter.getBrightnessGrid();
+            HashMap<Character, Double> asciiMap = subImgCharMatcher.getNormalizedBrightnessMap();
+            timer.resolution(resolution).charsetSize(asciiMap.size()).cells(brightnessGrid.length);
+            return createAsciiImage(brightnessGrid, cancellation);
+        }
+    }
+
+    /**
+     * Runs the ASCII art generation process and streams the result row by row,
+     * so each row is written as soon as its characters are matched.
+     * The rows are the same as those of the array returned by run().
+     * Matching and writing are recorded as separate stages.
+     *
+     * @param output The output receiving the rows.
+     */
+    public void run(AsciiRowOutput output) {
+        run(output, Cancellation.NEVER);
+    }
+
+    /**
+     * Streams the ASCII art row by row like run(AsciiRowOutput), checking for cancellation
+     * every few rows. A cancelled output is still ended, so files are closed, but holds only
+     * the rows written before the cancellation.
+     *
+     * @param output       The output receiving the rows.
+     * @param cancellation Checked every few rows.
+     * @throws java.util.concurrent.CancellationException If the generation is cancelled.
+     */
+    public void run(AsciiRowOutput output, Cancellation cancellation) {
+        double[] brightnessGrid = imageConverter.getBrightnessGrid();
         HashMap<Character, Double> asciiMap = subImgCharMatcher.getNormalizedBrightnessMap();
-        HashMap<Color[][], Character> resultMap = matchAsciiToSubImage(subImages, asciiMap);
-        return createAsciiImage(resultMap);
+        int paddedWidth = imageConverter.getPaddedImage().getWidth();
+        int paddedHeight = imageConverter.getPaddedImage().getHeight();
+        int numOfCols = resolution;
+        int numOfRows = numOfArtRows(paddedWidth, paddedHeight);
+        int startX = (paddedWidth - numOfCols) / 2;
+        int startY = (paddedHeight - numOfRows) / 2;
+
+        char[] row = new char[paddedWidth];
+        long matchNanos = 0, matchBytes = 0;
+        try (StageTimer timer = StageStats.start(StageStats.Stage.OUTPUT)) {
+            timer.image(paddedWidth, paddedHeight).resolution(resolution).charsetSize(asciiMap.size())
+                    .cells((long) paddedWidth * paddedHeight);
+            output.begin(paddedHeight, paddedWidth);
+            try {
+                for (int y = 0; y < paddedHeight; y++) {
+                    if (y % Cancellation.CHECK_INTERVAL == 0) {
+                        cancellation.check();
+                    }
+                    long rowNanos = System.nanoTime();
+                    long rowBytes = StageStats.allocatedBytes();
+                    Arrays.fill(row, ' ');
+                    int artRow = y - startY;
+                    if (artRow >= 0 && artRow < numOfRows) {
+                        for (int col = 0; col < numOfCols; col++) {
+                            row[startX + col] = matchSubImage(brightnessGrid, artRow * numOfCols + col);
+                        }
+                    }
+                    matchNanos += System.nanoTime() - rowNanos;
+                    matchBytes += StageStats.allocatedBytes() - rowBytes;
+                    output.outRow(row);
+                }
+            }
+            finally {
+                output.end();
+            }
+            // Matching is interleaved with writing, so it is recorded as its own stage
+            timer.exclude(matchNanos, matchBytes);
+        }
+        StageStats.record(StageStats.Stage.MATCH, matchNanos, matchBytes);
     }
 }
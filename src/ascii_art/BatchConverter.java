@@ -0,0 +1,328 @@
+package ascii_art;
+
+import ascii_output.AsciiOutput;
+import ascii_output.AsciiRowOutput;
+import ascii_output.BinaryAsciiOutput;
+import ascii_output.ConsoleAsciiOutput;
+import ascii_output.PngAsciiOutput;
+import ascii_output.StreamingHtmlAsciiOutput;
+import ascii_output.WriteErrorLog;
+import image.Image;
+import image.ImageConverter;
+import image.PaddedImage;
+import image_char_matching.SubImgCharMatcher;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+
+/**
+ * BatchConverter converts every image of a directory, or every file matching a glob, with the
+ * settings of a profile. Every image runs as its own task on a pool of two threads per core, so
+ * only a bounded number of images is decoded at a time; the CPU-bound stages are limited to one
+ * task per core, so the other threads can write outputs meanwhile. Outputs streamed row by row
+ * are matched while they are written, so they are written within the limit. All tasks share a single
+ * normalized charset.
+ *
+ * The profile is a properties file with the keys res, chars, round, output
+ * (console, html, html.gz, binary or png) and outDir, all optional.
+ *
+ * @author inbar.el and stavzok
+ */
+public class BatchConverter {
+
+    /* Profile keys and their defaults, same as those of the shell. */
+    private static final String RESOLUTION_KEY = "res";
+    private static final String CHARS_KEY = "chars";
+    private static final String ROUND_KEY = "round";
+    private static final String OUTPUT_KEY = "output";
+    private static final String OUT_DIR_KEY = "outDir";
+    private static final String DEFAULT_RESOLUTION = "2";
+    private static final String DEFAULT_CHARS = "0123456789";
+    private static final String DEFAULT_ROUND_METHOD = "abs";
+    private static final String DEFAULT_OUTPUT = "html";
+    private static final String DEFAULT_OUT_DIR = ".";
+
+    /* Rounding methods other than the default. */
+    private static final String ROUND_UP = "up";
+    private static final String ROUND_DOWN = "down";
+
+    /* Output methods and the extensions of the files they write. */
+    private static final String CONSOLE_OUTPUT = "console";
+    private static final String HTML_OUTPUT = "html";
+    private static final String COMPRESSED_HTML_OUTPUT = "html.gz";
+    private static final String BINARY_OUTPUT = "binary";
+    private static final String IMAGE_OUTPUT = "png";
+    private static final String CONSOLE_EXTENSION = ".txt";
+    private static final String BINARY_EXTENSION = ".ascb";
+
+    /* Font used for HTML output. */
+    private static final String FONT = "Courier new";
+
+    /* Files converted when a directory is given. */
+    private static final String IMAGE_GLOB = "glob:*.{jpg,jpeg,png,gif,bmp,JPG,JPEG,PNG,GIF,BMP}";
+
+    private static final double NANOS_PER_SECOND = 1_000_000_000.0;
+
+    /* Threads converting images per core, so that writes overlap the CPU-bound stages. */
+    private static final int THREADS_PER_CORE = 2;
+
+    /* Error messages. */
+    private static final String RES_BOUNDARIES_ERROR = "resolution exceeds boundaries";
+    private static final String CHARS_TOO_SMALL = "Charset is too small";
+    private static final String OUTPUT_ERROR = "Unknown output method: ";
+    private static final String ROUND_ERROR = "Unknown rounding method: ";
+    private static final String WRITE_ERROR = "Failed to write to ";
+
+    private final int resolution;
+    private final String roundMethod;
+    private final String outputMethod;
+    private final Path outDir;
+
+    /* The charset shared by all tasks, normalized once. */
+    private final SubImgCharMatcher subImgCharMatcher;
+
+    /* Limits the CPU-bound stages to one task per core. */
+    private final Semaphore cpuPermits = new Semaphore(Runtime.getRuntime().availableProcessors());
+
+    /* Latencies of the converted images. */
+    private final LatencyStats latencies = new LatencyStats();
+
+    /**
+     * Constructs a batch converter from a profile.
+     *
+     * @param profile The conversion settings.
+     * @throws IllegalArgumentException If a setting is invalid.
+     */
+    public BatchConverter(Properties profile) {
+        resolution = Integer.parseInt(profile.getProperty(RESOLUTION_KEY, DEFAULT_RESOLUTION).trim());
+        roundMethod = profile.getProperty(ROUND_KEY, DEFAULT_ROUND_METHOD).trim();
+        if (!roundMethod.equals(DEFAULT_ROUND_METHOD) && !roundMethod.equals(ROUND_UP) &&
+                !roundMethod.equals(ROUND_DOWN)) {
+            throw new IllegalArgumentException(ROUND_ERROR + roundMethod);
+        }
+        outputMethod = profile.getProperty(OUTPUT_KEY, DEFAULT_OUTPUT).trim();
+        if (extensionOf(outputMethod) == null) {
+            throw new IllegalArgumentException(OUTPUT_ERROR + outputMethod);
+        }
+        outDir = Path.of(profile.getProperty(OUT_DIR_KEY, DEFAULT_OUT_DIR).trim());
+        char[] chars = profile.getProperty(CHARS_KEY, DEFAULT_CHARS).chars().distinct()
+                .collect(StringBuilder::new, StringBuilder::appendCodePoint, StringBuilder::append)
+                .toString().toCharArray();
+        if (chars.length < 2) {
+            throw new IllegalArgumentException(CHARS_TOO_SMALL);
+        }
+        subImgCharMatcher = new SubImgCharMatcher(chars);
+        subImgCharMatcher.normalizeBrightness();
+    }
+
+    /**
+     * Lists the images to convert.
+     *
+     * @param source A directory, or a glob of file names such as "examples/*.jpeg".
+     * @return The matching files.
+     * @throws IOException If the directory can't be listed.
+     */
+    public static List<Path> findImages(String source) throws IOException {
+        Path path = Path.of(source);
+        Path directory;
+        PathMatcher matcher;
+        if (Files.isDirectory(path)) {
+            directory = path;
+            matcher = path.getFileSystem().getPathMatcher(IMAGE_GLOB);
+        } else {
+            directory = path.getParent() != null ? path.getParent() : Path.of(".");
+            matcher = path.getFileSystem().getPathMatcher("glob:" + path.getFileName());
+        }
+        List<Path> images = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory)) {
+            for (Path file : stream) {
+                if (Files.isRegularFile(file) && matcher.matches(file.getFileName())) {
+                    images.add(file);
+                }
+            }
+        }
+        images.sort(null);
+        return images;
+    }
+
+    /**
+     * Converts all the given images concurrently and prints a report.
+     *
+     * @param images The images to convert.
+     * @return The number of images that failed.
+     * @throws IOException If the output directory can't be created.
+     */
+    public int convertAll(List<Path> images) throws IOException {
+        Files.createDirectories(outDir);
+        long start = System.nanoTime();
+        WriteErrorLog writeErrors = new WriteErrorLog();
+        ExecutorService executor = Executors.newFixedThreadPool(
+                THREADS_PER_CORE * Runtime.getRuntime().availableProcessors());
+        int failures = 0;
+        try {
+            List<Future<?>> tasks = new ArrayList<>();
+            for (Path image : images) {
+                tasks.add(executor.submit(() -> {
+                    convert(image, writeErrors);
+                    return null;
+                }));
+            }
+            for (int i = 0; i < tasks.size(); i++) {
+                try {
+                    tasks.get(i).get();
+                } catch (ExecutionException e) {
+                    failures++;
+                    System.err.println(images.get(i) + ": " + e.getCause().getMessage());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    failures += tasks.size() - i;
+                    break;
+                }
+            }
+        } finally {
+            // Stops the tasks still queued if waiting for them was interrupted
+            executor.shutdownNow();
+            writeErrors.close();
+        }
+
+        double seconds = (System.nanoTime() - start) / NANOS_PER_SECOND;
+        int converted = images.size() - failures;
+        System.out.printf("Converted %d of %d images in %.2fs (%.2f images/s)%n",
+                converted, images.size(), seconds, seconds > 0 ? converted / seconds : 0);
+        System.out.println("Per image: " + latencies);
+        return failures;
+    }
+
+    /*
+     * Converts a single image and writes its output.
+     *
+     * @param imagePath   The image to convert.
+     * @param writeErrors The errors the outputs log, which fail the image.
+     * @throws IOException If the image can't be read or its output can't be written.
+     */
+    private void convert(Path imagePath, WriteErrorLog writeErrors) throws IOException, InterruptedException {
+        long start = System.nanoTime();
+        AsciiArtAlgorithm algo;
+        cpuPermits.acquire();
+        try {
+            Image image = new Image(imagePath.toString());
+            int maxResolution = image.getWidth();
+            int minResolution = Math.max(1, image.getWidth() / image.getHeight());
+            if (resolution > maxResolution || resolution < minResolution) {
+                throw new IllegalArgumentException(RES_BOUNDARIES_ERROR);
+            }
+            ImageConverter imageConverter = new ImageConverter(new PaddedImage(image), resolution);
+            algo = new AsciiArtAlgorithm(resolution, subImgCharMatcher, roundMethod, imageConverter);
+        } finally {
+            cpuPermits.release();
+        }
+
+        String baseName = imagePath.getFileName().toString().replaceFirst("\\.[^.]*$", "");
+        Path outputPath = outDir.resolve(baseName + extensionOf(outputMethod));
+        if (outputMethod.equals(CONSOLE_OUTPUT)) {
+            try (PrintStream stream = new PrintStream(outputPath.toFile(), StandardCharsets.UTF_8)) {
+                new ConsoleAsciiOutput(stream).out(runLimited(algo));
+                if (stream.checkError()) {
+                    throw new IOException(WRITE_ERROR + outputPath);
+                }
+            }
+        } else {
+            AsciiOutput output = createOutput(outputPath.toString());
+            // The outputs report failed writes only through the global logger
+            writeErrors.take();
+            if (output instanceof AsciiRowOutput rowOutput) {
+                streamLimited(algo, rowOutput);
+            } else {
+                output.out(runLimited(algo));
+            }
+            String writeError = writeErrors.take();
+            if (writeError != null) {
+                throw new IOException(writeError);
+            }
+        }
+        latencies.record(System.nanoTime() - start);
+    }
+
+    /*
+     * Runs the matching stage within the CPU limit.
+     */
+    private char[][] runLimited(AsciiArtAlgorithm algo) throws InterruptedException {
+        cpuPermits.acquire();
+        try {
+            return algo.run();
+        } finally {
+            cpuPermits.release();
+        }
+    }
+
+    /*
+     * Streams the matching stage into a row output within the CPU limit. Matching is interleaved
+     * with the writes, so the permit is held until the output is written.
+     */
+    private void streamLimited(AsciiArtAlgorithm algo, AsciiRowOutput output) throws InterruptedException {
+        cpuPermits.acquire();
+        try {
+            algo.run(output);
+        } finally {
+            cpuPermits.release();
+        }
+    }
+
+    /*
+     * Creates the file output of the profile's output method.
+     */
+    private AsciiOutput createOutput(String filename) {
+        return switch (outputMethod) {
+            case HTML_OUTPUT, COMPRESSED_HTML_OUTPUT -> new StreamingHtmlAsciiOutput(filename, FONT);
+            case BINARY_OUTPUT -> new BinaryAsciiOutput(filename);
+            default -> new PngAsciiOutput(filename);
+        };
+    }
+
+    /*
+     * Finds the extension of the files an output method writes.
+     *
+     * @return The extension, or null if the output method is unknown.
+     */
+    private static String extensionOf(String outputMethod) {
+        return switch (outputMethod) {
+            case CONSOLE_OUTPUT -> CONSOLE_EXTENSION;
+            case HTML_OUTPUT, COMPRESSED_HTML_OUTPUT, IMAGE_OUTPUT -> "." + outputMethod;
+            case BINARY_OUTPUT -> BINARY_EXTENSION;
+            default -> null;
+        };
+    }
+
+    /**
+     * Loads a profile from a properties file.
+     *
+     * @param profileName The properties file.
+     * @return The loaded profile.
+     * @throws IOException If the file can't be read.
+     */
+    public static Properties loadProfile(String profileName) throws IOException {
+        Properties profile = new Properties();
+        if (!Files.isRegularFile(Path.of(profileName))) {
+            throw new FileNotFoundException(profileName);
+        }
+        try (Reader reader = Files.newBufferedReader(Path.of(profileName))) {
+            profile.load(reader);
+        }
+        return profile;
+    }
+}
@@ -0,0 +1,128 @@
+package ascii_art;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+/**
+ * A thread-safe cache holding at most a fixed number of entries, evicting the least recently
+ * used one. A value is computed once even when several threads ask for it at the same time,
+ * and the computation runs outside the cache's lock.
+ *
+ * Lookups of cached values take no lock: the entries are kept in a concurrent map, and every
+ * lookup stamps its entry with the time it was used. Only adding an entry locks the cache, to
+ * evict the entry used longest ago once there are too many.
+ *
+ * @param <K> The type of the keys.
+ * @param <V> The type of the values.
+ * @author inbar.el and stavzok
+ */
+public class BoundedCache<K, V> {
+
+    /* A cached value, possibly still being computed, and the time it was last used. */
+    private static final class Entry<V> {
+        private final CompletableFuture<V> future = new CompletableFuture<>();
+        private volatile long lastUsed = System.nanoTime();
+    }
+
+    /* The number of entries kept. */
+    private final int maxEntries;
+
+    /* The cached values. */
+    private final ConcurrentHashMap<K, Entry<V>> entries = new ConcurrentHashMap<>();
+
+    /* Number of lookups that found their value and number that computed it. */
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    /**
+     * Constructs an empty cache.
+     *
+     * @param maxEntries The number of entries kept.
+     */
+    public BoundedCache(int maxEntries) {
+        this.maxEntries = maxEntries;
+    }
+
+    /**
+     * Retrieves the value of a key, computing it if it isn't cached.
+     * A failed computation is not cached.
+     *
+     * @param key     The key to look up.
+     * @param compute Computes the value of the key.
+     * @return The value of the key.
+     * @throws ExecutionException If the computation failed.
+     */
+    public V get(K key, Function<K, V> compute) throws ExecutionException {
+        Entry<V> entry = entries.get(key);
+        if (entry == null) {
+            Entry<V> added = new Entry<>();
+            entry = entries.putIfAbsent(key, added);
+            if (entry == null) {
+                misses.increment();
+                try {
+                    added.future.complete(compute.apply(key));
+                } catch (RuntimeException e) {
+                    added.future.completeExceptionally(e);
+                    entries.remove(key, added);
+                }
+                // The new entry is the one used last, so it isn't evicted for a slow computation
+                added.lastUsed = System.nanoTime();
+                evictEldest();
+                return await(added);
+            }
+        }
+        hits.increment();
+        entry.lastUsed = System.nanoTime();
+        return await(entry);
+    }
+
+    /**
+     * Removes the entries of the matching keys. Callers already holding their values keep them.
+     *
+     * @param keys Matches the keys to remove.
+     */
+    public void removeKeys(Predicate<K> keys) {
+        entries.keySet().removeIf(keys);
+    }
+
+    /*
+     * Waits for the value of an entry.
+     */
+    private V await(Entry<V> entry) throws ExecutionException {
+        try {
+            return entry.future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ExecutionException(e);
+        }
+    }
+
+    /*
+     * Evicts the entries used longest ago while there are too many. Eviction is rare and the
+     * cache small, so the eldest entry is found by a scan.
+     */
+    private synchronized void evictEldest() {
+        while (entries.size() > maxEntries) {
+            Map.Entry<K, Entry<V>> eldest = null;
+            for (Map.Entry<K, Entry<V>> candidate : entries.entrySet()) {
+                if (eldest == null || candidate.getValue().lastUsed < eldest.getValue().lastUsed) {
+                    eldest = candidate;
+                }
+            }
+            entries.remove(eldest.getKey(), eldest.getValue());
+        }
+    }
+
+    /**
+     * @return A line describing the size and hit rate of the cache.
+     */
+    @Override
+    public String toString() {
+        return String.format("entries=%d hits=%d misses=%d", entries.size(), hits.sum(), misses.sum());
+    }
+}
@@ -0,0 +1,330 @@
+package ascii_art;
+
+import ascii_output.ConsoleAsciiOutput;
+import ascii_output.StreamingHtmlAsciiOutput;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import image.Cancellation;
+import image.Image;
+import image.ImageConverter;
+import image.Luminance;
+import image.PaddedImage;
+import image.ProgressiveConverter;
+import image_char_matching.SubImgCharMatcher;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * ConversionServer runs the ASCII art conversion as a local HTTP service.
+ * Every request is a session of its own, converting against the decoded images and normalized
+ * charsets of a SharedAssets, shared with other requests and sessions of the process.
+ *
+ * GET or POST /convert?image=PATH&amp;res=N&amp;chars=CHARS&amp;round=abs|up|down&amp;output=console|html
+ * converts the image at PATH, or the image uploaded as the body of a POST without an image parameter.
+ * An optional deadline=MS&amp;ondeadline=abort|fallback bounds the conversion: past the deadline it
+ * is aborted with status 503, or falls back to the finest lower resolution finished in time, which
+ * is reported in the X-Resolution header.
+ * GET /metrics reports the request latencies and the cache statistics.
+ *
+ * @author inbar.el and stavzok
+ */
+public class ConversionServer {
+
+    /* Default port of the service. */
+    public static final int DEFAULT_PORT = 8080;
+
+    /* Default conversion settings, same as those of the shell. */
+    private static final int DEFAULT_RESOLUTION = 2;
+    private static final String DEFAULT_CHARS = "0123456789";
+    private static final String DEFAULT_ROUND_METHOD = "abs";
+    private static final String DEFAULT_OUTPUT = "console";
+
+    /* Font used for HTML output. */
+    private static final String FONT = "Courier new";
+
+    /* Request parameter names. */
+    private static final String IMAGE_PARAM = "image";
+    private static final String RESOLUTION_PARAM = "res";
+    private static final String CHARS_PARAM = "chars";
+    private static final String ROUND_PARAM = "round";
+    private static final String OUTPUT_PARAM = "output";
+    private static final String DEADLINE_PARAM = "deadline";
+    private static final String ON_DEADLINE_PARAM = "ondeadline";
+
+    /* Accepted values of the round and output parameters. */
+    private static final String ROUND_UP = "up";
+    private static final String ROUND_DOWN = "down";
+    private static final String HTML_OUTPUT = "html";
+    private static final String ABORT_ON_DEADLINE = "abort";
+    private static final String FALLBACK_ON_DEADLINE = "fallback";
+
+    /* Response header holding the resolution the image was converted at. */
+    private static final String RESOLUTION_HEADER = "X-Resolution";
+
+    /* HTTP status codes. */
+    private static final int OK = 200;
+    private static final int BAD_REQUEST = 400;
+    private static final int NOT_FOUND = 404;
+    private static final int SERVER_ERROR = 500;
+    private static final int SERVICE_UNAVAILABLE = 503;
+
+    /* Error messages returned for invalid requests. */
+    private static final String IMAGE_ERROR = "Could not read the image.";
+    private static final String RES_ERROR = "Resolution is not a number or exceeds the boundaries.";
+    private static final String CHARS_TOO_SMALL = "Charset is too small.";
+    private static final String ROUND_ERROR = "Unknown rounding method.";
+    private static final String OUTPUT_ERROR = "Unknown output method.";
+    private static final String DEADLINE_ERROR = "Deadline is not a positive number.";
+    private static final String ON_DEADLINE_ERROR = "Unknown deadline behavior.";
+    private static final String DEADLINE_EXCEEDED = "Conversion exceeded its deadline.";
+
+    private final HttpServer server;
+
+    /* Executes the requests, one thread per request. */
+    private final ExecutorService executor;
+
+    /* The decoded images and normalized charsets shared by the requests. */
+    private final SharedAssets assets;
+
+    /* Latencies of the conversion requests. */
+    private final LatencyStats latencies = new LatencyStats();
+
+    /**
+     * Constructs a server listening on the given local port, sharing the assets of the process.
+     * The server is not started.
+     *
+     * @param port The port to listen on.
+     * @throws IOException If the port can't be bound.
+     */
+    public ConversionServer(int port) throws IOException {
+        this(port, SharedAssets.SHARED);
+    }
+
+    /**
+     * Constructs a server listening on the given local port. The server is not started.
+     *
+     * @param port   The port to listen on.
+     * @param assets The decoded images and normalized charsets shared by the requests.
+     * @throws IOException If the port can't be bound.
+     */
+    public ConversionServer(int port, SharedAssets assets) throws IOException {
+        this.assets = assets;
+        server = HttpServer.create(new InetSocketAddress("localhost", port), 0);
+        executor = Executors.newCachedThreadPool();
+        server.setExecutor(executor);
+        server.createContext("/convert", this::handleConvert);
+        server.createContext("/metrics", this::handleMetrics);
+    }
+
+    /**
+     * Starts serving requests.
+     */
+    public void start() {
+        server.start();
+        System.out.println("Listening on http://localhost:" + server.getAddress().getPort() + "/convert");
+    }
+
+    /**
+     * Stops serving requests.
+     */
+    public void stop() {
+        server.stop(0);
+        executor.shutdown();
+    }
+
+    /*
+     * Handles a conversion request.
+     */
+    private void handleConvert(HttpExchange exchange) throws IOException {
+        long start = System.nanoTime();
+        try (exchange) {
+            HashMap<String, String> params = parseQuery(exchange.getRequestURI().getRawQuery());
+
+            Image image;
+            try {
+                image = loadImage(exchange, params.get(IMAGE_PARAM));
+            } catch (IOException e) {
+                sendText(exchange, BAD_REQUEST, IMAGE_ERROR);
+                return;
+            }
+
+            int resolution;
+            try {
+                resolution = Integer.parseInt(params.getOrDefault(RESOLUTION_PARAM,
+                        String.valueOf(DEFAULT_RESOLUTION)));
+            } catch (NumberFormatException e) {
+                resolution = -1;
+            }
+            int maxResolution = image.getWidth();
+            int minResolution = Math.max(1, image.getWidth() / image.getHeight());
+            if (resolution > maxResolution || resolution < minResolution) {
+                sendText(exchange, BAD_REQUEST, RES_ERROR);
+                return;
+            }
+
+            String roundMethod = params.getOrDefault(ROUND_PARAM, DEFAULT_ROUND_METHOD);
+            if (!roundMethod.equals(DEFAULT_ROUND_METHOD) && !roundMethod.equals(ROUND_UP) &&
+                    !roundMethod.equals(ROUND_DOWN)) {
+                sendText(exchange, BAD_REQUEST, ROUND_ERROR);
+                return;
+            }
+
+            String output = params.getOrDefault(OUTPUT_PARAM, DEFAULT_OUTPUT);
+            if (!output.equals(DEFAULT_OUTPUT) && !output.equals(HTML_OUTPUT)) {
+                sendText(exchange, BAD_REQUEST, OUTPUT_ERROR);
+                return;
+            }
+
+            String chars = params.getOrDefault(CHARS_PARAM, DEFAULT_CHARS);
+            if (SharedAssets.sortedChars(chars).length() < 2) {
+                sendText(exchange, BAD_REQUEST, CHARS_TOO_SMALL);
+                return;
+            }
+            SubImgCharMatcher matcher;
+            try {
+                matcher = assets.getNormalizedCharset(chars);
+            } catch (ExecutionException e) {
+                sendText(exchange, SERVER_ERROR, e.getCause().toString());
+                return;
+            }
+
+            long deadline;
+            try {
+                deadline = Long.parseLong(params.getOrDefault(DEADLINE_PARAM, "0"));
+            } catch (NumberFormatException e) {
+                deadline = -1;
+            }
+            if (deadline < 0 || (params.containsKey(DEADLINE_PARAM) && deadline == 0)) {
+                sendText(exchange, BAD_REQUEST, DEADLINE_ERROR);
+                return;
+            }
+
+            String onDeadline = params.getOrDefault(ON_DEADLINE_PARAM, ABORT_ON_DEADLINE);
+            if (!onDeadline.equals(ABORT_ON_DEADLINE) && !onDeadline.equals(FALLBACK_ON_DEADLINE)) {
+                sendText(exchange, BAD_REQUEST, ON_DEADLINE_ERROR);
+                return;
+            }
+            // Lower levels exist only for powers of two, other resolutions are always aborted
+            boolean fallback = onDeadline.equals(FALLBACK_ON_DEADLINE) && Integer.bitCount(resolution) == 1;
+            Cancellation cancellation = deadline > 0 ? Cancellation.create(deadline, () -> false) :
+                    Cancellation.NEVER;
+
+            // Convert before sending the headers, so a late conversion can still be reported
+            ImageConverter imageConverter;
+            try {
+                PaddedImage paddedImage = new PaddedImage(image);
+                imageConverter = fallback ?
+                        ProgressiveConverter.convertWithin(paddedImage, resolution, cancellation) :
+                        new ImageConverter(paddedImage, resolution, cancellation);
+            } catch (CancellationException e) {
+                sendText(exchange, SERVICE_UNAVAILABLE, DEADLINE_EXCEEDED);
+                return;
+            }
+            // A fallback grid is output in full, even past the deadline
+            Cancellation outputCancellation = fallback ? Cancellation.NEVER : cancellation;
+            AsciiArtAlgorithm algo = new AsciiArtAlgorithm(imageConverter.getResolution(), matcher, roundMethod,
+                    imageConverter);
+            exchange.getResponseHeaders().set(RESOLUTION_HEADER, String.valueOf(imageConverter.getResolution()));
+            if (output.equals(HTML_OUTPUT)) {
+                exchange.getResponseHeaders().set("Content-Type", "text/html; charset=utf-8");
+                exchange.sendResponseHeaders(OK, 0);
+                try {
+                    algo.run(new StreamingHtmlAsciiOutput(exchange.getResponseBody(), FONT, false),
+                            outputCancellation);
+                } catch (CancellationException e) {
+                    // The status was already sent, so the page is cut short
+                    return;
+                }
+            } else {
+                char[][] asciiImage;
+                try {
+                    asciiImage = algo.run(outputCancellation);
+                } catch (CancellationException e) {
+                    sendText(exchange, SERVICE_UNAVAILABLE, DEADLINE_EXCEEDED);
+                    return;
+                }
+                exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+                exchange.sendResponseHeaders(OK, 0);
+                PrintStream stream = new PrintStream(exchange.getResponseBody(), false, StandardCharsets.UTF_8);
+                new ConsoleAsciiOutput(stream).out(asciiImage);
+                stream.flush();
+            }
+            latencies.record(System.nanoTime() - start);
+        }
+    }
+
+    /*
+     * Handles a metrics request.
+     */
+    private void handleMetrics(HttpExchange exchange) throws IOException {
+        try (exchange) {
+            if (!exchange.getRequestURI().getPath().equals("/metrics")) {
+                sendText(exchange, NOT_FOUND, "");
+                return;
+            }
+            sendText(exchange, OK, "requests " + latencies + "\n" + assets);
+        }
+    }
+
+    /*
+     * Loads the image of a request, from the cache for images given by path.
+     *
+     * @param exchange The request.
+     * @param path     The path of the image, or null to decode the request body.
+     * @return The decoded image.
+     */
+    private Image loadImage(HttpExchange exchange, String path) throws IOException {
+        if (path == null) {
+            BufferedImage uploaded = ImageIO.read(exchange.getRequestBody());
+            if (uploaded == null) {
+                throw new IOException(IMAGE_ERROR);
+            }
+            return new Image(uploaded);
+        }
+        return assets.getImage(path, Luminance.GAMMA_ENCODED);
+    }
+
+    /*
+     * Parses a raw query string into its decoded parameters.
+     */
+    private static HashMap<String, String> parseQuery(String query) {
+        HashMap<String, String> params = new HashMap<>();
+        if (query == null) {
+            return params;
+        }
+        for (String pair : query.split("&")) {
+            int separator = pair.indexOf('=');
+            if (separator > 0) {
+                params.put(URLDecoder.decode(pair.substring(0, separator), StandardCharsets.UTF_8),
+                        URLDecoder.decode(pair.substring(separator + 1), StandardCharsets.UTF_8));
+            }
+        }
+        return params;
+    }
+
+    /*
+     * Sends a plain text response.
+     */
+    private static void sendText(HttpExchange exchange, int status, String text) throws IOException {
+        byte[] body = text.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+        exchange.sendResponseHeaders(status, body.length == 0 ? -1 : body.length);
+        if (body.length > 0) {
+            try (OutputStream stream = exchange.getResponseBody()) {
+                stream.write(body);
+            }
+        }
+    }
+}
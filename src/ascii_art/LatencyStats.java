@@ -0,0 +1,87 @@
+package ascii_art;
+
+import java.util.Arrays;
+
+/**
+ * Thread-safe record of operation latencies, reporting their count, mean and percentiles.
+ * Percentiles are computed over the most recent samples only.
+ *
+ * @author inbar.el and stavzok
+ */
+public class LatencyStats {
+
+    /* Default number of recent samples kept for percentiles. */
+    private static final int DEFAULT_WINDOW = 4096;
+
+    private static final double NANOS_PER_MILLI = 1_000_000.0;
+
+    /* The most recent samples in nanoseconds, as a ring buffer. */
+    private final long[] window;
+
+    /* Total number of samples, sum and maximum of all samples in nanoseconds. */
+    private long count;
+    private long totalNanos;
+    private long maxNanos;
+
+    /**
+     * Constructs an empty record with the default window.
+     */
+    public LatencyStats() {
+        this(DEFAULT_WINDOW);
+    }
+
+    /**
+     * Constructs an empty record.
+     *
+     * @param windowSize The number of recent samples kept for percentiles.
+     */
+    public LatencyStats(int windowSize) {
+        this.window = new long[windowSize];
+    }
+
+    /**
+     * Records one sample.
+     *
+     * @param nanos The latency of the operation in nanoseconds.
+     */
+    public synchronized void record(long nanos) {
+        window[(int) (count % window.length)] = nanos;
+        count++;
+        totalNanos += nanos;
+        maxNanos = Math.max(maxNanos, nanos);
+    }
+
+    /**
+     * @return The number of samples recorded.
+     */
+    public synchronized long getCount() {
+        return count;
+    }
+
+    /**
+     * Finds a percentile of the recent samples.
+     *
+     * @param percentile The percentile, between 0 and 100.
+     * @return The percentile in milliseconds, or 0 if there are no samples.
+     */
+    public synchronized double percentileMillis(double percentile) {
+        int size = (int) Math.min(count, window.length);
+        if (size == 0) {
+            return 0;
+        }
+        long[] sorted = Arrays.copyOf(window, size);
+        Arrays.sort(sorted);
+        int index = (int) Math.ceil(percentile / 100 * size) - 1;
+        return sorted[Math.max(0, Math.min(size - 1, index))] / NANOS_PER_MILLI;
+    }
+
+    /**
+     * @return A line with the count, mean, p50, p99 and maximum of the samples, in milliseconds.
+     */
+    @Override
+    public synchronized String toString() {
+        double mean = count == 0 ? 0 : totalNanos / NANOS_PER_MILLI / count;
+        return String.format("count=%d mean=%.2fms p50=%.2fms p99=%.2fms max=%.2fms",
+                count, mean, percentileMillis(50), percentileMillis(99), maxNanos / NANOS_PER_MILLI);
+    }
+}
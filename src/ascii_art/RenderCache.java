@@ -0,0 +1,230 @@
+package ascii_art;
+
+import image.ImageConverter;
+import image.Luminance;
+import image.PaddedImage;
+
+import java.awt.Rectangle;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeSet;
+
+/**
+ * RenderCache keeps the results of earlier renders so that returning to an earlier resolution or
+ * charset doesn't recompute them: brightness grids by image, region, resolution and luminance, and normalized
+ * charsets by their content. Grids are kept without the image they were computed from, so the
+ * cache never holds an image alive and its size is that of the grids. Entries are evicted least
+ * recently used first once their approximate size exceeds the byte budget. The cache is
+ * thread-safe, so it can be filled ahead of time on another thread.
+ *
+ * @author inbar.el and stavzok
+ */
+class RenderCache {
+
+    /* Approximate sizes used to estimate the memory held by an entry. */
+    private static final long ENTRY_OVERHEAD_BYTES = 64;
+    private static final long CHAR_ENTRY_BYTES = 64;
+
+    private static final double BYTES_PER_KILOBYTE = 1024.0;
+
+    /* A cached value and its approximate size. */
+    private record Entry(Object value, long bytes) {
+    }
+
+    /* A cached brightness grid and the size of the padded image it was computed from. */
+    private record Grid(double[] brightness, int paddedWidth, int paddedHeight) {
+    }
+
+    /* Key of a brightness grid. */
+    private record GridKey(String imageName, Rectangle region, int resolution, Luminance luminance) {
+    }
+
+    /* Key of a normalized charset: its chars, sorted. */
+    private record CharsetKey(String sortedChars) {
+    }
+
+    /* All entries, least recently used first. */
+    private final LinkedHashMap<Object, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+    /* The number of bytes the entries may hold. */
+    private final long byteBudget;
+
+    private long usedBytes;
+    private long gridHits;
+    private long gridMisses;
+    private long charsetHits;
+    private long charsetMisses;
+    private long evictions;
+
+    /**
+     * Constructs an empty cache.
+     *
+     * @param byteBudget The approximate number of bytes the cached values may hold.
+     */
+    RenderCache(long byteBudget) {
+        this.byteBudget = byteBudget;
+    }
+
+    /**
+     * Looks up the brightness grid of a region of an image at a resolution, and wraps it in a
+     * converter of the current padded image of the region.
+     *
+     * @param imageName   The name of the image.
+     * @param region      The region, or null for the whole image.
+     * @param resolution  The resolution.
+     * @param paddedImage The padded image of the region, decoded with the luminance of the grid.
+     * @return The converter holding the grid, or null if it isn't cached.
+     */
+    synchronized ImageConverter getGrid(String imageName, Rectangle region, int resolution, PaddedImage paddedImage) {
+        Entry entry = entries.get(gridKey(imageName, region, resolution, paddedImage.getLuminance()));
+        // A grid of another padded size is of another image by the same name
+        if (entry == null || !(entry.value() instanceof Grid grid) ||
+                grid.paddedWidth() != paddedImage.getWidth() || grid.paddedHeight() != paddedImage.getHeight()) {
+            gridMisses++;
+            return null;
+        }
+        gridHits++;
+        return new ImageConverter(paddedImage, resolution, grid.brightness());
+    }
+
+    /**
+     * Caches the brightness grid of a region of an image at the resolution of its converter.
+     * Only the grid is kept, not the image.
+     *
+     * @param imageName      The name of the image.
+     * @param region         The region, or null for the whole image.
+     * @param imageConverter The converter holding the grid.
+     */
+    synchronized void putGrid(String imageName, Rectangle region, ImageConverter imageConverter) {
+        PaddedImage paddedImage = imageConverter.getPaddedImage();
+        double[] brightness = imageConverter.getBrightnessGrid();
+        long bytes = ENTRY_OVERHEAD_BYTES + (long) brightness.length * Double.BYTES;
+        put(gridKey(imageName, region, imageConverter.getResolution(), paddedImage.getLuminance()),
+                new Grid(brightness, paddedImage.getWidth(), paddedImage.getHeight()), bytes);
+    }
+
+    /**
+     * Drops the brightness grids of an image decoded with a luminance, of every region and
+     * resolution, once the image is released.
+     *
+     * @param imageName The name of the image.
+     * @param luminance How the brightness of the pixels was calculated.
+     */
+    synchronized void removeGrids(String imageName, Luminance luminance) {
+        Iterator<Map.Entry<Object, Entry>> iterator = entries.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<Object, Entry> entry = iterator.next();
+            if (entry.getKey() instanceof GridKey key && key.imageName().equals(imageName) &&
+                    key.luminance() == luminance) {
+                usedBytes -= entry.getValue().bytes();
+                iterator.remove();
+            }
+        }
+    }
+
+    /**
+     * Looks up the normalized brightness of a charset.
+     *
+     * @param charSet The chars of the charset.
+     * @return A copy of the normalized brightness of the chars, or null if it isn't cached.
+     */
+    synchronized HashMap<Character, Double> getCharset(Collection<Character> charSet) {
+        Entry entry = entries.get(charsetKey(charSet));
+        if (entry == null) {
+            charsetMisses++;
+            return null;
+        }
+        charsetHits++;
+        @SuppressWarnings("unchecked")
+        HashMap<Character, Double> normalized = (HashMap<Character, Double>) entry.value();
+        // The matcher changes its map in place, so it gets a copy
+        return new HashMap<>(normalized);
+    }
+
+    /**
+     * Caches the normalized brightness of a charset.
+     *
+     * @param normalizedBrightnessMap The normalized brightness of every char of the charset.
+     */
+    synchronized void putCharset(HashMap<Character, Double> normalizedBrightnessMap) {
+        long bytes = ENTRY_OVERHEAD_BYTES + normalizedBrightnessMap.size() * CHAR_ENTRY_BYTES;
+        put(charsetKey(normalizedBrightnessMap.keySet()), new HashMap<>(normalizedBrightnessMap), bytes);
+    }
+
+    /**
+     * Checks whether the brightness grid of a region of an image at a resolution is cached,
+     * without counting a hit or a miss or refreshing the entry.
+     *
+     * @param imageName  The name of the image.
+     * @param region     The region, or null for the whole image.
+     * @param resolution The resolution.
+     * @param luminance  How the brightness of the pixels is calculated.
+     * @return True if the grid is cached.
+     */
+    synchronized boolean containsGrid(String imageName, Rectangle region, int resolution, Luminance luminance) {
+        return entries.containsKey(gridKey(imageName, region, resolution, luminance));
+    }
+
+    /**
+     * Checks whether the normalized brightness of a charset is cached, without counting a hit
+     * or a miss or refreshing the entry.
+     *
+     * @param charSet The chars of the charset.
+     * @return True if the charset is cached.
+     */
+    synchronized boolean containsCharset(Collection<Character> charSet) {
+        return entries.containsKey(charsetKey(charSet));
+    }
+
+    /*
+     * Adds an entry and evicts least recently used entries while over budget.
+     */
+    private void put(Object key, Object value, long bytes) {
+        Entry old = entries.put(key, new Entry(value, bytes));
+        if (old != null) {
+            usedBytes -= old.bytes();
+        }
+        usedBytes += bytes;
+        Iterator<Map.Entry<Object, Entry>> eldest = entries.entrySet().iterator();
+        // Never evict the entry just added
+        while (usedBytes > byteBudget && entries.size() > 1) {
+            Map.Entry<Object, Entry> evicted = eldest.next();
+            usedBytes -= evicted.getValue().bytes();
+            eldest.remove();
+            evictions++;
+        }
+    }
+
+    /*
+     * Builds the key of a grid, copying the region so later changes to it don't affect the key.
+     */
+    private static GridKey gridKey(String imageName, Rectangle region, int resolution, Luminance luminance) {
+        return new GridKey(imageName, region == null ? null : new Rectangle(region), resolution, luminance);
+    }
+
+    /*
+     * Builds the content key of a charset.
+     */
+    private static CharsetKey charsetKey(Collection<Character> charSet) {
+        StringBuilder sortedChars = new StringBuilder();
+        for (char c : new TreeSet<>(charSet)) {
+            sortedChars.append(c);
+        }
+        return new CharsetKey(sortedChars.toString());
+    }
+
+    /**
+     * @return Lines describing the hits, misses and memory use of the cache.
+     */
+    @Override
+    public synchronized String toString() {
+        return String.format("Brightness grids: %d hits, %d misses%n" +
+                        "Charsets: %d hits, %d misses%n" +
+                        "Entries: %d, evictions: %d, memory: %.1f of %.1f KB",
+                gridHits, gridMisses, charsetHits, charsetMisses, entries.size(), evictions,
+                usedBytes / BYTES_PER_KILOBYTE, byteBudget / BYTES_PER_KILOBYTE);
+    }
+}
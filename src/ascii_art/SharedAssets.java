@@ -0,0 +1,153 @@
+package ascii_art;
+
+import image.Image;
+import image.Luminance;
+import image_char_matching.GlyphStore;
+import image_char_matching.SubImgCharMatcher;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * SharedAssets holds the read-only assets that conversion sessions share: decoded images and
+ * normalized charsets, while the glyphs of the characters are shared by all matchers through
+ * GlyphStore. A session, such as a shell or a request of the conversion server, keeps only its
+ * own settings and refers to these assets, which are never changed once created, so any number
+ * of sessions can convert concurrently. Looking up a cached asset takes no lock.
+ *
+ * @author inbar.el and stavzok
+ */
+public class SharedAssets {
+
+    /* Number of decoded images and normalized charsets kept by the shared assets. */
+    private static final int IMAGE_CACHE_SIZE = 16;
+    private static final int CHARSET_CACHE_SIZE = 64;
+
+    /**
+     * The assets shared by all sessions of the process.
+     */
+    public static final SharedAssets SHARED = new SharedAssets(IMAGE_CACHE_SIZE, CHARSET_CACHE_SIZE);
+
+    private static final String IMAGE_ERROR = "Could not read the image: ";
+
+    /* Separates the path of an image from its modification time in the cache keys. */
+    private static final String MODIFIED_SEPARATOR = "@";
+
+    /* Decoded images by path and modification time. */
+    private final BoundedCache<String, Image> images;
+
+    /* Normalized matchers by their sorted chars. */
+    private final BoundedCache<String, SubImgCharMatcher> charsets;
+
+    /**
+     * Constructs an empty set of assets.
+     *
+     * @param imageCacheSize   The number of decoded images kept.
+     * @param charsetCacheSize The number of normalized charsets kept.
+     */
+    public SharedAssets(int imageCacheSize, int charsetCacheSize) {
+        this.images = new BoundedCache<>(imageCacheSize);
+        this.charsets = new BoundedCache<>(charsetCacheSize);
+    }
+
+    /**
+     * Retrieves a decoded image file, decoding it if it isn't cached or changed since.
+     *
+     * @param path      The path of the image file.
+     * @param luminance How the brightness of the pixels is calculated.
+     * @return A view of the decoded image with the given luminance. Its pixels must not be changed.
+     * @throws IOException If the file can't be read.
+     */
+    public Image getImage(String path, Luminance luminance) throws IOException {
+        File file = new File(path);
+        if (!file.isFile()) {
+            throw new IOException(IMAGE_ERROR + path);
+        }
+        try {
+            // Include the modification time so that a changed file is decoded again
+            return images.get(keyPrefix(path) + file.lastModified(), key -> {
+                try {
+                    return new Image(path);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }).withLuminance(luminance);
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof UncheckedIOException unchecked ?
+                    unchecked.getCause() : new IOException(IMAGE_ERROR + path, e.getCause());
+        }
+    }
+
+    /**
+     * Drops the decoded images of a file from the cache, so they are freed once the sessions
+     * holding them release them. A session that edits or replaces its image calls this, so the
+     * cache doesn't keep the image for it.
+     *
+     * @param path The path of the image file.
+     */
+    public void releaseImage(String path) {
+        String prefix = keyPrefix(path);
+        images.removeKeys(key -> key.startsWith(prefix));
+    }
+
+    /*
+     * Builds the start of the cache keys of an image file, the same for every name of the file.
+     */
+    private static String keyPrefix(String path) {
+        return Path.of(path).toAbsolutePath().normalize() + MODIFIED_SEPARATOR;
+    }
+
+    /**
+     * Retrieves a matcher of a charset with normalized brightness, creating it if it isn't cached.
+     * The matcher is shared, so it must not be changed.
+     *
+     * @param chars The chars of the charset, in any order and possibly repeated.
+     * @return The normalized matcher.
+     * @throws ExecutionException If the matcher can't be created.
+     */
+    public SubImgCharMatcher getNormalizedCharset(String chars) throws ExecutionException {
+        return charsets.get(sortedChars(chars), SharedAssets::normalizedMatcher);
+    }
+
+    /*
+     * Creates a matcher of the given chars with normalized brightness, without printing the
+     * shell's progress line, as the assets also serve the HTTP service.
+     */
+    private static SubImgCharMatcher normalizedMatcher(String chars) {
+        SubImgCharMatcher matcher = new SubImgCharMatcher(chars.toCharArray());
+        matcher.setNormalizedBrightnessMap(SubImgCharMatcher.normalize(matcher.getBrightnessMap()));
+        return matcher;
+    }
+
+    /**
+     * Sorts the distinct chars of a string, so equal charsets share a key.
+     *
+     * @param chars The chars.
+     * @return The distinct chars, sorted.
+     */
+    public static String sortedChars(String chars) {
+        TreeSet<Character> sorted = new TreeSet<>();
+        for (char c : chars.toCharArray()) {
+            sorted.add(c);
+        }
+        StringBuilder builder = new StringBuilder();
+        for (char c : sorted) {
+            builder.append(c);
+        }
+        return builder.toString();
+    }
+
+    /**
+     * @return Lines describing the sizes and hit rates of the caches.
+     */
+    @Override
+    public String toString() {
+        return "imageCache " + images + "\n" +
+                "charsetCache " + charsets + "\n" +
+                "glyphs " + GlyphStore.SHARED.size() + "\n";
+    }
+}
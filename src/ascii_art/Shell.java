@@ -1,16 +1,58 @@
 package ascii_art;
 
+import ascii_output.AsciiAnimationOutput;
 import ascii_output.AsciiOutput;
+import ascii_output.AsciiRowOutput;
+import ascii_output.AsyncAsciiOutput;
+import ascii_output.BinaryAsciiOutput;
+import ascii_output.ConsoleAnimationOutput;
 import ascii_output.ConsoleAsciiOutput;
+import ascii_output.HtmlAnimationOutput;
 import ascii_output.HtmlAsciiOutput;
+import ascii_output.PngAsciiOutput;
+import ascii_output.StreamingHtmlAsciiOutput;
+import ascii_output.WriteErrorLog;
+import image.Cancellation;
+import image.EdgeConverter;
+import image.FrameSequence;
 import image.Image;
 import image.ImageConverter;
+import image.Luminance;
+import image.OffHeapImage;
 import image.PaddedImage;
+import image.PixelSource;
+import image.ProgressiveConverter;
+import image.RegionConverter;
+import image.RegionImage;
+import image.SubCellConverter;
+import image_char_matching.CharConverter;
+import image_char_matching.EdgeGlyphMatcher;
+import image_char_matching.SubCellGlyphMatcher;
 import image_char_matching.SubImgCharMatcher;
-import java.awt.*;
+import pipeline_stats.StageStats;
+import pipeline_stats.StageTimer;
+
+import java.awt.Dimension;
+import java.awt.Rectangle;
+import java.io.BufferedReader;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 
 /**
@@ -21,6 +63,48 @@ import java.util.HashSet;
  */
 public class Shell {
 
+    /* Approximate number of bytes the render cache may hold. */
+    private static final long RENDER_CACHE_BYTES = 64L * 1024 * 1024;
+
+    /* Approximate number of bytes the tiles of cropped renders may hold. */
+    private static final long TILE_CACHE_BYTES = 64L * 1024 * 1024;
+
+    /* Images with more pixels than this are decoded off the heap. */
+    private static final long OFF_HEAP_PIXELS = 1L << 24;
+
+    /* Name of the thread precomputing the next render. */
+    private static final String SPECULATION_THREAD_NAME = "shell-speculation";
+
+    /* Command-line flag running the conversion as an HTTP service. */
+    private static final String SERVER_MODE = "--server";
+
+    /* Error printed when the port of the HTTP service isn't a number. */
+    private static final String SERVER_USAGE_ERROR = "Usage: --server [port], with a numeric port.";
+
+    /* Command-line flag running a script of commands. */
+    private static final String SCRIPT_MODE = "--script";
+
+    /* Command-line flag converting a directory of images. */
+    private static final String BATCH_MODE = "--batch";
+
+    /* Command-line flag converting an animation. */
+    private static final String ANIMATION_MODE = "--animate";
+
+    /* Output file name of HTML animations. */
+    private static final String ANIMATION_OUTPUT_FILE = "out.html";
+
+    /* Script name standing for the standard input. */
+    private static final String STANDARD_INPUT = "-";
+
+    /* Prefix of comment lines in scripts. */
+    private static final String SCRIPT_COMMENT = "#";
+
+    /* Prefix of errors found while reading a script. */
+    private static final String SCRIPT_LINE_ERROR = "Line ";
+
+    /* Result of executing a single command. */
+    private enum CommandResult { SUCCESS, FAILURE, EXIT }
+
     /* Default resolution for ASCII art generation. */
     private final int DEFAULT_RESOLUTION = 2;
 
@@ -51,17 +135,102 @@ public class Shell {
     /* Output file name for HTML output. */
     private final String outputFile = "out.html";
 
+    /* Output file name for compressed HTML output. */
+    private final String compressedOutputFile = "out.html.gz";
+
+    /* Output file name for binary frame output. */
+    private final String binaryOutputFile = "out.ascb";
+
+    /* Output file name for image output. */
+    private final String imageOutputFile = "out.png";
+
     /* Matcher to map sub-images to ASCII characters based on brightness. */
     private SubImgCharMatcher subImgCharMatcher;
 
     /* Image converter for generating ASCII-compatible sub-images. */
     private ImageConverter imageConverter;
 
-    /* Image padded to fit the resolution constraints. */
+    /* The decoded image and its padded view fitting the resolution constraints, created by getPaddedImage(). */
+    private PixelSource imageSource;
     private PaddedImage paddedImage;
 
-    /* A snapshot of the previous state to optimize performance. */
-    private Memento memento;
+    /* Converts cropped regions of the image through cached tiles, created by getRegionConverter(). */
+    private RegionConverter regionConverter;
+
+    /* The region of the image to render, or null for the whole image. */
+    private Rectangle cropRegion;
+
+    /* Computes the grid and charset of the current state while waiting for the next command. */
+    private final ExecutorService speculationExecutor = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, SPECULATION_THREAD_NAME);
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /* The running speculative precomputation, and the state it computes. */
+    private Future<?> speculation;
+    private int speculationResolution;
+    private Rectangle speculationRegion;
+    private HashSet<Character> speculationCharSet;
+
+    /* The decoded images shared with the other sessions of the process. */
+    private final SharedAssets assets;
+
+    /* Brightness grids and normalized charsets of earlier renders. */
+    private final RenderCache renderCache = new RenderCache(RENDER_CACHE_BYTES);
+
+    /* The name of the image file to process. */
+    private String imageName;
+
+    /* The dimensions of the image, read from its header. */
+    private Dimension imageSize;
+
+    /* The resolution bounds allowed by the image, or by the cropped region. */
+    private int maxResolution;
+    private int minResolution;
+
+    /* Whether commands are run from a script, without prompt. */
+    private boolean scriptMode;
+
+    /* Whether a write to a file failed, which fails a script. */
+    private boolean outputFailed;
+
+    /* Stage counters of the last render, and whether to print them after every render. */
+    private StageStats.Snapshot lastRenderStats = StageStats.snapshot().since(StageStats.snapshot());
+    private boolean printRenderStats;
+
+    /* Whether asciiArt renders a preview first and refines it. */
+    private boolean progressive;
+
+    /* Whether strong edges are drawn with directional glyphs. */
+    private boolean edgeMode;
+
+    /* Matches the edges of sub-images to directional glyphs. */
+    private final EdgeGlyphMatcher edgeGlyphMatcher = new EdgeGlyphMatcher();
+
+    /* How the brightness of the pixels is calculated; the image is decoded again when it changes. */
+    private Luminance luminance = Luminance.GAMMA_ENCODED;
+
+    /* How the contrast of the sub-images is adjusted before matching. */
+    private ImageConverter.Contrast contrast = ImageConverter.Contrast.NONE;
+
+    /* Whether sub-images are matched to chars by the shape of their glyphs rather than brightness. */
+    private boolean shapeMatching;
+
+    /* Draws every sub-image with a braille or block char, or null to match it to the charset. */
+    private SubCellGlyphMatcher subCellGlyphMatcher;
+
+    /* Time in milliseconds a render may take, or 0 for no deadline. */
+    private long deadlineMillis;
+
+    /* Whether a render past its deadline falls back to a lower resolution instead of failing. */
+    private boolean deadlineFallback;
+
+    /* The charset to apply at the next asciiArt command in script mode, null otherwise. */
+    private HashSet<Character> pendingCharSet;
+
+    /* The output format to set at the next asciiArt command in script mode, if changed. */
+    private AsciiOutput pendingOutputFormat;
 
     /* Upper bound of printable ASCII characters. */
     private final char UPPER_ASCII_BOUND = '~';
@@ -75,6 +244,12 @@ public class Shell {
     /* Command string for adding/removing the space character. */
     private final String SPACE = "space";
 
+    /* An add or remove argument of a code point or a range of them, such as "U+2500-U+257F". */
+    private final Pattern CODE_POINT_RANGE = Pattern.compile("[Uu]\\+(\\p{XDigit}{1,4})(?:-[Uu]\\+(\\p{XDigit}{1,4}))?");
+
+    /* Radix of code points. */
+    private final int HEXADECIMAL = 16;
+
     /* Command string for increasing the resolution. */
     private final String UP = "up";
 
@@ -87,6 +262,15 @@ public class Shell {
     /* Command string for HTML output mode. */
     private final String HTML_OUTPUT = "html";
 
+    /* Command string for compressed HTML output mode. */
+    private final String COMPRESSED_HTML_OUTPUT = "html.gz";
+
+    /* Command string for binary frame output mode. */
+    private final String BINARY_OUTPUT = "binary";
+
+    /* Command string for image output mode. */
+    private final String IMAGE_OUTPUT = "png";
+
     /* Prompt displayed to the user in the command-line interface. */
     private final String WRITE_TO_STRING = ">>> ";
 
@@ -114,6 +298,74 @@ public class Shell {
     /* Command to generate ASCII art. */
     private final String ASCII_ART_COMMAND = "asciiArt";
 
+    /* Command to display the render cache statistics. */
+    private final String STATS_COMMAND = "stats";
+
+    /* Command to display the time and allocations of the pipeline stages. */
+    private final String TIMINGS_COMMAND = "timings";
+
+    /* Command to turn progressive rendering on or off. */
+    private final String PROGRESSIVE_COMMAND = "progressive";
+
+    /* Command to turn the edge glyphs on or off. */
+    private final String EDGES_COMMAND = "edges";
+
+    /* Command to turn gamma-correct brightness on or off. */
+    private final String GAMMA_COMMAND = "gamma";
+
+    /* Command to choose the contrast adjustment. */
+    private final String CONTRAST_COMMAND = "contrast";
+
+    /* Arguments of the contrast command. */
+    private final String CONTRAST_NONE = "none";
+    private final String CONTRAST_STRETCH = "stretch";
+    private final String CONTRAST_EQUALIZE = "equalize";
+
+    /* Command to choose how sub-images are matched to the charset. */
+    private final String MATCH_COMMAND = "match";
+
+    /* Arguments of the match command. */
+    private final String MATCH_BRIGHTNESS = "brightness";
+    private final String MATCH_SHAPE = "shape";
+
+    /* Command to choose the kind of chars the sub-images are drawn with. */
+    private final String GLYPHS_COMMAND = "glyphs";
+
+    /* Arguments of the glyphs command. */
+    private final String GLYPHS_ASCII = "ascii";
+    private final String GLYPHS_BRAILLE = "braille";
+    private final String GLYPHS_BLOCKS = "blocks";
+
+    /* Command to set the deadline of every render. */
+    private final String DEADLINE_COMMAND = "deadline";
+
+    /* Command to render a region of the image. */
+    private final String CROP_COMMAND = "crop";
+
+    /* Command to halve or double the rendered region around its center. */
+    private final String ZOOM_COMMAND = "zoom";
+
+    /* Arguments of the zoom command. */
+    private final String ZOOM_IN = "in";
+    private final String ZOOM_OUT = "out";
+
+    /* Number of arguments of a crop command setting the region: x, y, width and height. */
+    private final int CROP_ARGUMENTS = 4;
+
+    /* Arguments of the deadline command choosing what happens past the deadline. */
+    private final String DEADLINE_ABORT = "abort";
+    private final String DEADLINE_FALLBACK = "fallback";
+
+    /* Arguments of the timings, progressive, edges and gamma commands turning them on and off. */
+    private final String TOGGLE_ON = "on";
+    private final String TOGGLE_OFF = "off";
+
+    /* Commands accepted in scripts. */
+    private final Set<String> SCRIPT_COMMANDS = Set.of(EXIT_COMMAND, CHARS_COMMAND, ADD_COMMAND,
+            REMOVE_COMMAND, RESOLUTION_COMMAND, ROUND_METHOD_COMMAND, OUTPUT_METHOD_COMMAND, ASCII_ART_COMMAND,
+            STATS_COMMAND, TIMINGS_COMMAND, PROGRESSIVE_COMMAND, DEADLINE_COMMAND, CROP_COMMAND, ZOOM_COMMAND,
+            EDGES_COMMAND, CONTRAST_COMMAND, GLYPHS_COMMAND, MATCH_COMMAND, GAMMA_COMMAND);
+
     /* Error message for invalid resolution format. */
     private final String RES_FORMAT_ERROR = "Did not change resolution due to incorrect format.";
 
@@ -135,16 +387,86 @@ public class Shell {
     /* Error message for invalid output method format. */
     private final String OUTPUT_METHOD_ERROR = "Did not change output method due to incorrect format.";
 
+    /* Error message for an invalid timings argument. */
+    private final String TIMINGS_ERROR = "Did not change timings due to incorrect format.";
+
     /* Error message for charset being too small. */
     private final String CHARS_TOO_SMALL = "Did not execute. Charset is too small";
 
+    /* Error message for an invalid progressive argument. */
+    private final String PROGRESSIVE_ERROR = "Did not change progressive rendering due to incorrect format.";
+
+    /* Message printed when a new command stops the refinement. */
+    private final String REFINEMENT_CANCELLED = "Refinement stopped at resolution ";
+
+    /* Error message for an invalid edges argument. */
+    private final String EDGES_ERROR = "Did not change edge mode due to incorrect format.";
+
+    /* Error message for an invalid gamma argument. */
+    private final String GAMMA_ERROR = "Did not change gamma correction due to incorrect format.";
+
+    /* Error message for an invalid contrast argument. */
+    private final String CONTRAST_ERROR = "Did not change contrast due to incorrect format.";
+
+    /* Error message for an invalid glyphs argument. */
+    private final String GLYPHS_ERROR = "Did not change glyphs due to incorrect format.";
+
+    /* Error message for an invalid match argument. */
+    private final String MATCH_ERROR = "Did not change matching due to incorrect format.";
+
+    /* Error message for an invalid crop command. */
+    private final String CROP_ERROR = "Did not change region due to incorrect format.";
+
+    /* Error message for an invalid zoom command. */
+    private final String ZOOM_ERROR = "Did not zoom due to incorrect format.";
+
+    /* Error message for a region exceeding the image. */
+    private final String REGION_BOUNDARIES_ERROR = "Did not change region due to exceeding boundaries";
+
+    /* Message indicating a region change. */
+    private final String CHANGED_REGION_MESSAGE = "Region set to ";
+
+    /* Describes the region covering the whole image. */
+    private final String WHOLE_IMAGE = "the whole image";
+
+    /* Error message for an invalid deadline argument. */
+    private final String DEADLINE_ERROR = "Did not change deadline due to incorrect format.";
+
+    /* Error message for a render stopped by a new command. */
+    private final String RENDER_CANCELLED = "Did not execute. Rendering was cancelled.";
+
+    /* Error message for a render aborted at its deadline. */
+    private final String DEADLINE_EXCEEDED = "Did not execute due to exceeding the deadline.";
+
+    /* Message printed when a render falls back to a lower resolution at its deadline. */
+    private final String DEADLINE_FALLBACK_MESSAGE = "Deadline reached, rendered at resolution ";
+
+    /* Reports of a file written while rendering, the same as those of the background writes. */
+    private final String WRITE_SUCCESS_REPORT = "Finished writing ASCII art.";
+    private final String WRITE_FAILURE_REPORT = "Failed writing ASCII art: ";
+
+    /* Error message for an image file that can't be decoded. */
+    private final String IMAGE_ERROR = "Did not execute due to problem with image file.";
+
     /* Error message for incorrect command format. */
     private final String EXECUTION_FORMAT_ERROR = "Did not execute due to incorrect command.";
 
     /**
-     * Constructs a new Shell instance with default parameters.
+     * Constructs a new Shell instance with default parameters, sharing the assets of the process.
      */
     public Shell() {
+        this(SharedAssets.SHARED);
+    }
+
+    /**
+     * Constructs a new Shell instance with default parameters. The shell is a session of its own:
+     * its settings are its own, while decoded images and glyphs are shared with other sessions,
+     * so several shells can run concurrently on different threads.
+     *
+     * @param assets The decoded images shared with other sessions.
+     */
+    public Shell(SharedAssets assets) {
+        this.assets = assets;
         this.ASCII_CHARS = buildAsciiChars();
         this.resolution = DEFAULT_RESOLUTION;
         this.roundMethod = DEFAULT_ROUNDING_MODE;
@@ -170,7 +492,7 @@ public class Shell {
      */
     private void printCharArray() {
         // Print the sorted characters
-        HashSet<Character> charSet = subImgCharMatcher.getCharSet();
+        HashSet<Character> charSet = pendingCharSet != null ? pendingCharSet : subImgCharMatcher.getCharSet();
         char[] sortedChars = charSet.stream()
                 .sorted() // Sort the stream of characters
                 .map(String::valueOf) // Convert each Character to String
@@ -192,39 +514,7 @@ public class Shell {
      * @throws IllegalArgumentException If the command format is invalid.
      */
     private void handleAdd(String command) {
-        if (command.equals(ALL)) {
-            for (char c : ASCII_CHARS) {
-                subImgCharMatcher.addChar(c);
-            }
-        }
-
-        else if (command.equals(SPACE)) {
-            subImgCharMatcher.addChar(LOWER_ASCII_BOUND);
-        }
-
-        else if (command.length() == 1 && ASCII_CHARS.contains(command.charAt(0))) {
-            subImgCharMatcher.addChar(command.charAt(0));
-        }
-
-        else if (command.length() == 3 && ASCII_CHARS.contains(command.charAt(0)) &&
-                ASCII_CHARS.contains(command.charAt(2)) && command.charAt(1) == '-') {
-            char start = command.charAt(0);
-            char end = command.charAt(2);
-
-            // Ensure start is the smaller character
-            if (start > end) {
-                char temp = start;
-                start = end;
-                end = temp;
-            }
-            for (char c = start; c <= end; c++) {
-                subImgCharMatcher.addChar(c);
-            }
-        }
-
-        else {
-            throw new IllegalArgumentException();
-        }
+        addChars(parseChars(command));
     }
 
     /*
@@ -234,18 +524,34 @@ public class Shell {
      * @throws IllegalArgumentException If the command format is invalid.
      */
     private void handleRemove(String command) {
+        for (char c : parseChars(command)) {
+            removeChar(c);
+        }
+    }
+
+    /*
+     * Parses the characters of an add or remove command: "all", "space", a printable ASCII
+     * character, a range of them such as "a-z", a code point such as "U+2588" or a range of
+     * code points such as "U+2500-U+257F". Code points the font has no glyph for, and control
+     * characters, are left out of ranges.
+     *
+     * @param command The argument of the command.
+     * @return The characters.
+     * @throws IllegalArgumentException If the command format is invalid.
+     */
+    private List<Character> parseChars(String command) {
+        List<Character> chars = new ArrayList<>();
+        Matcher codePoints = CODE_POINT_RANGE.matcher(command);
         if (command.equals(ALL)) {
-            for (char c : ASCII_CHARS) {
-                subImgCharMatcher.removeChar(c);
-            }
+            chars.addAll(ASCII_CHARS);
         }
 
         else if (command.equals(SPACE)) {
-            subImgCharMatcher.removeChar(' ');
+            chars.add(LOWER_ASCII_BOUND);
         }
 
         else if (command.length() == 1 && ASCII_CHARS.contains(command.charAt(0))) {
-            subImgCharMatcher.removeChar(command.charAt(0));
+            chars.add(command.charAt(0));
         }
 
         else if (command.length() == 3 && ASCII_CHARS.contains(command.charAt(0)) &&
@@ -260,12 +566,41 @@ public class Shell {
                 end = temp;
             }
             for (char c = start; c <= end; c++) {
-                subImgCharMatcher.removeChar(c);
+                chars.add(c);
             }
         }
+
+        else if (codePoints.matches()) {
+            char start = (char) Integer.parseInt(codePoints.group(1), HEXADECIMAL);
+            if (codePoints.group(2) == null) {
+                if (!isRenderable(start)) {
+                    throw new IllegalArgumentException();
+                }
+                chars.add(start);
+            }
+            else {
+                char end = (char) Integer.parseInt(codePoints.group(2), HEXADECIMAL);
+                for (int c = Math.min(start, end); c <= Math.max(start, end); c++) {
+                    if (isRenderable((char) c)) {
+                        chars.add((char) c);
+                    }
+                }
+            }
+        }
+
         else {
             throw new IllegalArgumentException();
         }
+        return chars;
+    }
+
+    /*
+     * Checks whether a character can be matched: a defined, non-control character that the
+     * font has a glyph for.
+     */
+    private boolean isRenderable(char c) {
+        return Character.isDefined(c) && !Character.isISOControl(c) && !Character.isSurrogate(c) &&
+                CharConverter.canDisplay(c);
     }
 
     /*
@@ -306,208 +641,1136 @@ public class Shell {
 
     /*
      * Handles changes to the output format for the ASCII art.
+     * In script mode, only the last output method before an asciiArt command is set.
      *
-     * @param command The new output method ("console" for console output or "html" for HTML file output).
+     * @param command The new output method ("console" for console output, "html" for HTML file output
+     *                "html.gz" for compressed HTML file output, "binary" for a binary frame file
+     *                or "png" for an image file).
      * @throws IOException If the provided command is invalid.
      */
     private void handleOutputMethod(String command) {
-        switch (command) {
-            case CONSOLE_OUTPUT -> outputFormat = new ConsoleAsciiOutput();
-            case HTML_OUTPUT -> outputFormat = new HtmlAsciiOutput(outputFile, font);
+        AsciiOutput newOutputFormat = switch (command) {
+            case CONSOLE_OUTPUT -> new ConsoleAsciiOutput();
+            case HTML_OUTPUT -> new HtmlAsciiOutput(outputFile, font);
+            case COMPRESSED_HTML_OUTPUT -> new StreamingHtmlAsciiOutput(compressedOutputFile, font);
+            case BINARY_OUTPUT -> new BinaryAsciiOutput(binaryOutputFile);
+            case IMAGE_OUTPUT -> new PngAsciiOutput(imageOutputFile);
             default -> throw new IllegalArgumentException();
+        };
+        if (scriptMode) {
+            pendingOutputFormat = newOutputFormat;
+        }
+        else {
+            setOutputFormat(newOutputFormat);
+        }
+    }
+
+    /*
+     * Replaces the output format, first finishing the writes of the current one.
+     * File outputs are written in the background, so the prompt returns before the file is done,
+     * except those written row by row, which are written while the rows are matched.
+     *
+     * @param newOutputFormat The new output format.
+     */
+    private void setOutputFormat(AsciiOutput newOutputFormat) {
+        closeOutputFormat();
+        if (newOutputFormat instanceof ConsoleAsciiOutput || newOutputFormat instanceof AsciiRowOutput) {
+            outputFormat = newOutputFormat;
+        }
+        else {
+            outputFormat = new AsyncAsciiOutput(newOutputFormat);
+        }
+    }
+
+    /*
+     * Waits for the background writes of the current output format, if any, and reports them.
+     * A failed write is remembered in outputFailed.
+     */
+    private void closeOutputFormat() {
+        if (outputFormat instanceof AsyncAsciiOutput asyncOutput) {
+            asyncOutput.close();
+            outputFailed |= asyncOutput.hasFailed();
+        }
+        printOutputReports();
+    }
+
+    /*
+     * Prints the results of the background writes finished since the last command.
+     */
+    private void printOutputReports() {
+        if (outputFormat instanceof AsyncAsciiOutput asyncOutput) {
+            for (String report : asyncOutput.pollReports()) {
+                System.out.println(report);
+            }
         }
     }
 
-    private void handleResolutionCommand(String command, int maxResolution, int minResolution) {
+    /*
+     * Handles a resolution command.
+     *
+     * @param command The argument of the command, empty to keep the resolution.
+     * @return True if the resolution was set, false if the command failed.
+     */
+    private boolean handleResolutionCommand(String command) {
         int newRes = resolution;
         if (!command.isEmpty()) {
             try {
                 newRes = handleResChange(command);
             } catch (IllegalArgumentException e) {
-                System.out.println(RES_FORMAT_ERROR);
-                return;
+                printError(RES_FORMAT_ERROR);
+                return false;
             }
         }
 
         if (newRes > maxResolution || newRes < minResolution) {
-            System.out.println(RES_BOUNDARIES_ERROR);
-            return;
+            printError(RES_BOUNDARIES_ERROR);
+            return false;
         }
 
         resolution = newRes;
-        System.out.println(CHANGED_RES_MESSAGE + resolution);
+        if (!scriptMode) {
+            System.out.println(CHANGED_RES_MESSAGE + resolution);
+        }
+        return true;
     }
 
-    private void handleAsciiArtCommand(Image image) {
+    /*
+     * Handles an asciiArt command, first applying the changes deferred in script mode.
+     *
+     * @return True if the ASCII art was generated, false if the command failed.
+     */
+    private boolean handleAsciiArtCommand() {
+        applyPendingChanges();
         if (subImgCharMatcher.getCharSet().size() < 2) {
-            System.out.println(CHARS_TOO_SMALL);
-            return;
+            printError(CHARS_TOO_SMALL);
+            return false;
         }
+        StageStats.Snapshot before = StageStats.snapshot();
 
-        boolean[] mementoComparison = compareToMemento();
-        if (!mementoComparison[0]) {
-            paddedImage = new PaddedImage(image);
-            imageConverter = new ImageConverter(paddedImage, resolution);
+        // Reuse the brightness grid and the normalized charset of an earlier render if possible
+        boolean refine = progressive && !renderCache.containsGrid(imageName, cropRegion, resolution, luminance);
+        if (refine) {
+            // Don't wait for the exact grid; the preview is computed from a few of its pixels
+            cancelSpeculation();
+        }
+        else {
+            awaitSpeculation();
         }
 
-        if (!mementoComparison[1]) {
+        HashMap<Character, Double> normalizedBrightnessMap = renderCache.getCharset(subImgCharMatcher.getCharSet());
+        if (normalizedBrightnessMap != null) {
+            subImgCharMatcher.setNormalizedBrightnessMap(normalizedBrightnessMap);
+        }
+        else {
             subImgCharMatcher.normalizeBrightness();
+            renderCache.putCharset(subImgCharMatcher.getNormalizedBrightnessMap());
         }
 
-        AsciiArtAlgorithm algo = new AsciiArtAlgorithm(resolution, subImgCharMatcher,
-                roundMethod, imageConverter);
-        char[][] asciiImage = algo.run();
-        outputFormat.out(asciiImage);
-        memento = saveToMemento();
+        Cancellation cancellation = newCancellation(deadlineMillis);
+        try {
+            if (refine) {
+                renderProgressively(cancellation);
+            }
+            else {
+                // The cache keeps only grids, so a hit is rebuilt over the current image
+                imageConverter = renderCache.getGrid(imageName, cropRegion, resolution,
+                        getRenderedImage(cancellation));
+                if (imageConverter != null) {
+                    render(imageConverter, cancellation);
+                }
+                else if (deadlineFallback && deadlineMillis > 0) {
+                    renderWithinDeadline(cancellation);
+                }
+                else {
+                    imageConverter = convert(cropRegion, resolution, cancellation);
+                    renderCache.putGrid(imageName, cropRegion, imageConverter);
+                    render(imageConverter, cancellation);
+                }
+            }
+        }
+        catch (IOException e) {
+            printError(IMAGE_ERROR);
+            return false;
+        }
+        catch (CancellationException e) {
+            printError(cancellation.isPastDeadline() ? DEADLINE_EXCEEDED : RENDER_CANCELLED);
+            return false;
+        }
+        catch (IllegalStateException e) {
+            // An image closed under the render fails it without ending the session
+            printError(IMAGE_ERROR);
+            return false;
+        }
+        lastRenderStats = StageStats.snapshot().since(before);
+        if (printRenderStats) {
+            System.out.println(StageStats.formatLine(lastRenderStats));
+        }
         resolution = DEFAULT_RESOLUTION;
+        return true;
     }
 
+    /*
+     * Creates the cancellation of a render. Interactively, a command typed during the render
+     * cancels it, so a slow render never blocks the shell.
+     *
+     * @param timeoutMillis The time the render may take, or 0 for no deadline.
+     * @return The cancellation.
+     */
+    private Cancellation newCancellation(long timeoutMillis) {
+        return Cancellation.create(timeoutMillis, () -> !scriptMode && isInputPending());
+    }
 
-    /**
-     * Runs the command-line interface for generating ASCII art.
+    /*
+     * Matches the grid of a converter to chars and writes them to the output.
      *
-     * @param imageName The name of the image file to process.
+     * @param converter    The converter holding the grid, at the resolution to render.
+     * @param cancellation Checked every few rows while matching and writing.
+     * @throws CancellationException If the render is cancelled.
      */
-    public void run(String imageName) {
+    private void render(ImageConverter converter, Cancellation cancellation) {
+        if (subCellGlyphMatcher != null) {
+            SubCellGlyphMatcher.Pattern pattern = subCellGlyphMatcher.getPattern();
+            char[][] glyphs = subCellGlyphMatcher.match(new SubCellConverter(converter.getPaddedImage(),
+                    converter.getResolution(), pattern.getSampleCols(), pattern.getSampleRows(), cancellation));
+            writeOutput(centerInFrame(glyphs, converter.getPaddedImage()), converter.getResolution());
+            return;
+        }
+        if (shapeMatching) {
+            int grid = SubImgCharMatcher.SHAPE_GRID;
+            writeOutput(subImgCharMatcher.matchShapes(new SubCellConverter(converter.getPaddedImage(),
+                    converter.getResolution(), grid, grid, cancellation), cancellation), converter.getResolution());
+            return;
+        }
+        // The adjusted grid is a copy, so the cached grid keeps the measured brightness
+        converter = converter.withContrast(contrast);
+        char[] edgeGlyphs = null;
+        if (edgeMode) {
+            edgeGlyphs = edgeGlyphMatcher.match(new EdgeConverter(converter.getPaddedImage(),
+                    converter.getResolution(), cancellation));
+        }
+        AsciiArtAlgorithm algo = new AsciiArtAlgorithm(converter.getResolution(), subImgCharMatcher,
+                roundMethod, converter, edgeGlyphs);
+        if (outputFormat instanceof AsciiRowOutput rowOutput) {
+            // Write the rows while the rest of them are still being matched
+            try (WriteErrorLog writeErrors = new WriteErrorLog()) {
+                algo.run(rowOutput, cancellation);
+                reportWrite(writeErrors.take());
+            }
+        }
+        else {
+            writeOutput(algo.run(cancellation), converter.getResolution());
+        }
+    }
 
-        Image image;
-        try {
-            image = new Image(imageName);
-            int maxResolution = image.getWidth();
-            int minResolution = Math.max(1, image.getWidth() / image.getHeight());
-
-            while (true) {
-                System.out.print(WRITE_TO_STRING);
-                String inputAnswer = KeyboardInput.readLine();
-                String command = (inputAnswer.split(" ").length > 1) ? inputAnswer.split(" ")[1] : "";
-                switch (inputAnswer.split(" ")[0]) {
-                    case EXIT_COMMAND:
-                        return;
-                    case CHARS_COMMAND:
-                        printCharArray();
-                        break;
-                    case RESOLUTION_COMMAND:
-                        handleResolutionCommand(command, maxResolution, minResolution);
-                        break;
-                    case ADD_COMMAND:
-                        try {
-                            handleAdd(command);
-                        }
-                        catch (IllegalArgumentException e) {
-                            System.out.println(ADD_ERROR);
-                        }
-                        break;
-                    case REMOVE_COMMAND:
-                        try {
-                            handleRemove(command);
-                        }
-                        catch (IllegalArgumentException e) {
-                            System.out.println(REMOVE_ERROR);
-                        }
-                        break;
-
-                    case ROUND_METHOD_COMMAND:
-                    try {
-                        handleRound(command);
-                    }
-                    catch (IllegalArgumentException e) {
-                        System.out.println(ROUND_METHOD_ERROR);
+    /*
+     * Reports a write made on the shell's thread like the background writes, remembering a failure
+     * in outputFailed.
+     *
+     * @param writeError The error the output logged, or null if the write succeeded.
+     */
+    private void reportWrite(String writeError) {
+        if (writeError == null) {
+            System.out.println(WRITE_SUCCESS_REPORT);
+        }
+        else {
+            outputFailed = true;
+            System.out.println(WRITE_FAILURE_REPORT + writeError);
+        }
+    }
 
-                    }
-                    break;
-                    case OUTPUT_METHOD_COMMAND:
-                        try {
-                            handleOutputMethod(command);
-                        }
-                        catch (IllegalArgumentException e) {
-                            System.out.println(OUTPUT_METHOD_ERROR);
-                        }
-                        break;
-
-                    case ASCII_ART_COMMAND:
-                        handleAsciiArtCommand(image);
-                        break;
-
-                    default:
-                        // replace with try catch?
-                        System.out.println(EXECUTION_FORMAT_ERROR);
+    /*
+     * Places a grid of chars in the middle of a frame of spaces the size of the padded image,
+     * as the charset path lays out its chars.
+     *
+     * @param grid        The chars, row by row.
+     * @param paddedImage The image the chars were matched from.
+     * @return The framed chars.
+     */
+    private char[][] centerInFrame(char[][] grid, PaddedImage paddedImage) {
+        int paddedWidth = paddedImage.getWidth();
+        int paddedHeight = paddedImage.getHeight();
+        char[][] frame = new char[paddedHeight][paddedWidth];
+        for (char[] row : frame) {
+            Arrays.fill(row, ' ');
+        }
+        int numOfCols = grid.length == 0 ? 0 : grid[0].length;
+        int startX = (paddedWidth - numOfCols) / 2;
+        int startY = (paddedHeight - grid.length) / 2;
+        for (int row = 0; row < grid.length; row++) {
+            System.arraycopy(grid[row], 0, frame[startY + row], startX, numOfCols);
+        }
+        return frame;
+    }
+
+    /*
+     * Writes a whole grid of chars to the output.
+     *
+     * @param asciiImage The chars, row by row.
+     * @param resolution The resolution the chars were matched at.
+     */
+    private void writeOutput(char[][] asciiImage, int resolution) {
+        // Asynchronous outputs are timed up to the hand-off to their writer thread
+        try (StageTimer timer = StageStats.start(StageStats.Stage.OUTPUT)) {
+            timer.resolution(resolution).charsetSize(subImgCharMatcher.getCharSet().size())
+                    .cells((long) asciiImage.length * (asciiImage.length == 0 ? 0 : asciiImage[0].length));
+            outputFormat.out(asciiImage);
+        }
+    }
+
+    /*
+     * Renders a quick preview at a lower resolution, then refines it level by level up to the
+     * current resolution, writing every level to the output. Every level reuses the pixels
+     * sampled by the previous ones. A cancellation, by a new command typed interactively or
+     * by the deadline, stops the refinement and keeps the last level written in full.
+     *
+     * @param cancellation Checked every few rows.
+     * @throws IOException If the image can't be decoded.
+     * @throws CancellationException If the render is cancelled before any level is written.
+     */
+    private void renderProgressively(Cancellation cancellation) throws IOException {
+        ProgressiveConverter converter = new ProgressiveConverter(getRenderedImage(cancellation), resolution);
+        int writtenResolution = 0;
+        while (converter.hasNext()) {
+            boolean last = converter.isNextFinal();
+            try {
+                imageConverter = converter.next(cancellation);
+                render(imageConverter, cancellation);
+            }
+            catch (CancellationException e) {
+                if (writtenResolution == 0) {
+                    throw e;
                 }
+                System.out.println(REFINEMENT_CANCELLED + writtenResolution);
+                return;
+            }
+            writtenResolution = imageConverter.getResolution();
+            if (last) {
+                renderCache.putGrid(imageName, cropRegion, imageConverter);
             }
         }
+    }
+
+    /*
+     * Converts the image at the finest level finished before the deadline and renders it.
+     * Only the exact grid is cached. Once a grid is finished, it is written in full even past
+     * the deadline, though a new command still stops it.
+     *
+     * @param cancellation The cancellation holding the deadline.
+     * @throws IOException If the image can't be decoded.
+     * @throws CancellationException If no level finished in time, or the render is cancelled.
+     */
+    private void renderWithinDeadline(Cancellation cancellation) throws IOException {
+        imageConverter = ProgressiveConverter.convertWithin(getRenderedImage(cancellation), resolution,
+                cancellation);
+        boolean exact = imageConverter.getResolution() == resolution;
+        if (exact) {
+            renderCache.putGrid(imageName, cropRegion, imageConverter);
+        }
+        render(imageConverter, newCancellation(0));
+        if (!exact) {
+            System.out.println(DEADLINE_FALLBACK_MESSAGE + imageConverter.getResolution());
+        }
+    }
+
+    /*
+     * Checks whether the user typed a command that hasn't been read yet.
+     */
+    private boolean isInputPending() {
+        try {
+            return System.in.available() > 0;
+        }
         catch (IOException e) {
+            return false;
+        }
+    }
+
+    /*
+     * Handles a progressive command, turning progressive rendering on or off.
+     *
+     * @param argument The argument of the command.
+     * @return True if the command succeeded, false if the argument is invalid.
+     */
+    private boolean handleProgressiveCommand(String argument) {
+        switch (argument) {
+            case TOGGLE_ON -> progressive = true;
+            case TOGGLE_OFF -> progressive = false;
+            default -> {
+                printError(PROGRESSIVE_ERROR);
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /*
+     * Decodes and pads the image the first time it is needed. Synchronized, since it is also
+     * called by the speculative precomputation.
+     *
+     * @param cancellation Checked while decoding images kept off the heap.
+     * @return The padded image.
+     * @throws IOException If the image can't be decoded.
+     * @throws CancellationException If the decoding is cancelled.
+     */
+    private synchronized PaddedImage getPaddedImage(Cancellation cancellation) throws IOException {
+        if (paddedImage == null) {
+            // Very large images are kept off the heap, by this session alone since it closes them
+            imageSource = (long) imageSize.width * imageSize.height > OFF_HEAP_PIXELS ?
+                    OffHeapImage.read(imageName, false, luminance, cancellation) :
+                    assets.getImage(imageName, luminance);
+            paddedImage = new PaddedImage(imageSource);
+        }
+        return paddedImage;
+    }
+
+    /*
+     * Creates the converter of cropped regions the first time it is needed, decoding the image
+     * if necessary.
+     *
+     * @param cancellation Checked while decoding images kept off the heap.
+     * @return The converter of regions of the image.
+     * @throws IOException If the image can't be decoded.
+     * @throws CancellationException If the decoding is cancelled.
+     */
+    private synchronized RegionConverter getRegionConverter(Cancellation cancellation) throws IOException {
+        if (regionConverter == null) {
+            getPaddedImage(cancellation);
+            regionConverter = new RegionConverter(imageSource, TILE_CACHE_BYTES);
+        }
+        return regionConverter;
+    }
+
+    /*
+     * Retrieves the padded image of the current region: the whole image, or a padded view of
+     * the cropped region.
+     *
+     * @param cancellation Checked while decoding images kept off the heap.
+     * @return The padded image of the region.
+     * @throws IOException If the image can't be decoded.
+     * @throws CancellationException If the decoding is cancelled.
+     */
+    private PaddedImage getRenderedImage(Cancellation cancellation) throws IOException {
+        PaddedImage image = getPaddedImage(cancellation);
+        return cropRegion == null ? image : new PaddedImage(new RegionImage(imageSource, cropRegion));
+    }
+
+    /*
+     * Computes the brightness grid of a region of the image. Cropped regions are summed from the
+     * cached tiles of the region converter, so overlapping regions don't read pixels twice.
+     *
+     * @param region       The region, or null for the whole image.
+     * @param resolution   The resolution.
+     * @param cancellation Checked every few rows.
+     * @return The converter holding the grid.
+     * @throws IOException If the image can't be decoded.
+     * @throws CancellationException If the conversion is cancelled.
+     */
+    private ImageConverter convert(Rectangle region, int resolution, Cancellation cancellation)
+            throws IOException {
+        if (region == null) {
+            return new ImageConverter(getPaddedImage(cancellation), resolution, cancellation);
+        }
+        return getRegionConverter(cancellation).convert(region, resolution, cancellation);
+    }
+
+    /*
+     * Starts computing the brightness grid of the current resolution and the normalized
+     * charset in the background, unless they are cached or already being computed.
+     * Precomputation of an earlier state is cancelled.
+     */
+    private void speculate() {
+        HashSet<Character> charSet = new HashSet<>(subImgCharMatcher.getCharSet());
+        if (speculation != null && !speculation.isDone() && speculationResolution == resolution &&
+                Objects.equals(speculationRegion, cropRegion) && speculationCharSet.equals(charSet)) {
+            return;
+        }
+        cancelSpeculation();
+        boolean needsCharset = charSet.size() >= 2 && !renderCache.containsCharset(charSet);
+        boolean needsGrid = !renderCache.containsGrid(imageName, cropRegion, resolution, luminance);
+        if (!needsCharset && !needsGrid) {
+            return;
+        }
+
+        int speculatedResolution = resolution;
+        Rectangle speculatedRegion = cropRegion;
+        HashMap<Character, Double> brightnessMap = new HashMap<>(subImgCharMatcher.getBrightnessMap());
+        speculationResolution = speculatedResolution;
+        speculationRegion = speculatedRegion;
+        speculationCharSet = charSet;
+        speculation = speculationExecutor.submit(() -> {
+            if (needsCharset) {
+                renderCache.putCharset(SubImgCharMatcher.normalize(brightnessMap));
+            }
+            if (needsGrid) {
+                // Stops as soon as the task is cancelled by interrupting it
+                Cancellation cancellation = Cancellation.create();
+                ImageConverter converter = convert(speculatedRegion, speculatedResolution, cancellation);
+                // A grid finished after the state changed is still correct, so it's kept
+                renderCache.putGrid(imageName, speculatedRegion, converter);
+            }
+            return null;
+        });
+    }
+
+    /*
+     * Cancels the speculative precomputation, if any.
+     */
+    private void cancelSpeculation() {
+        if (speculation != null) {
+            speculation.cancel(true);
+            speculation = null;
+        }
+    }
+
+    /*
+     * Waits for the speculative precomputation of the current state to finish, so its work isn't
+     * repeated, or cancels it if it computes a different state.
+     */
+    private void awaitSpeculation() {
+        if (speculation == null) {
+            return;
+        }
+        if (speculationResolution == resolution && Objects.equals(speculationRegion, cropRegion) &&
+                speculationCharSet.equals(subImgCharMatcher.getCharSet())) {
+            try {
+                speculation.get();
+            }
+            catch (ExecutionException | CancellationException e) {
+                // The render computes whatever is missing itself
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            speculation = null;
+        }
+        else {
+            cancelSpeculation();
+        }
+    }
+
+    /*
+     * Handles an edges command, turning the edge glyphs on or off.
+     *
+     * @param argument The argument of the command.
+     * @return True if the command succeeded, false if the argument is invalid.
+     */
+    private boolean handleEdgesCommand(String argument) {
+        switch (argument) {
+            case TOGGLE_ON -> edgeMode = true;
+            case TOGGLE_OFF -> edgeMode = false;
+            default -> {
+                printError(EDGES_ERROR);
+                return false;
+            }
+        }
+        return true;
+    }
 
+    /*
+     * Handles a gamma command, turning gamma-correct brightness on or off. The decoded image
+     * holds the brightness of its pixels, so it is released and decoded again at the next render.
+     *
+     * @param argument The argument of the command.
+     * @return True if the command succeeded, false if the argument is invalid.
+     */
+    private boolean handleGammaCommand(String argument) {
+        Luminance newLuminance;
+        switch (argument) {
+            case TOGGLE_ON -> newLuminance = Luminance.LINEAR;
+            case TOGGLE_OFF -> newLuminance = Luminance.GAMMA_ENCODED;
+            default -> {
+                printError(GAMMA_ERROR);
+                return false;
+            }
+        }
+        if (newLuminance != luminance) {
+            releaseImage();
+            luminance = newLuminance;
+        }
+        return true;
+    }
+
+    /*
+     * Handles a contrast command, choosing how the contrast of the sub-images is adjusted.
+     *
+     * @param argument The argument of the command.
+     * @return True if the command succeeded, false if the argument is invalid.
+     */
+    private boolean handleContrastCommand(String argument) {
+        switch (argument) {
+            case CONTRAST_NONE -> contrast = ImageConverter.Contrast.NONE;
+            case CONTRAST_STRETCH -> contrast = ImageConverter.Contrast.STRETCH;
+            case CONTRAST_EQUALIZE -> contrast = ImageConverter.Contrast.EQUALIZE;
+            default -> {
+                printError(CONTRAST_ERROR);
+                return false;
+            }
         }
+        return true;
+    }
 
+    /*
+     * Handles a match command, choosing whether sub-images are matched to the charset by their
+     * brightness or by the shape of the glyphs. Edge glyphs, contrast and rounding only apply
+     * to brightness matching.
+     *
+     * @param argument The argument of the command.
+     * @return True if the command succeeded, false if the argument is invalid.
+     */
+    private boolean handleMatchCommand(String argument) {
+        switch (argument) {
+            case MATCH_BRIGHTNESS -> shapeMatching = false;
+            case MATCH_SHAPE -> shapeMatching = true;
+            default -> {
+                printError(MATCH_ERROR);
+                return false;
+            }
+        }
+        return true;
     }
 
     /*
-     * Compares the current state with the saved Memento to avoid redundant recalculations.
+     * Handles a glyphs command, choosing whether the sub-images are matched to the charset or
+     * drawn with braille or block chars. Edge glyphs and contrast only apply to the charset.
      *
-     * @return A boolean array where:
-     *         - index 0 is true if subimage brightness values can be reused.
-     *         - index 1 is true if the normalized brightness map can be reused.
+     * @param argument The argument of the command.
+     * @return True if the command succeeded, false if the argument is invalid.
      */
-    private boolean[] compareToMemento() {
-        boolean flag[] = {false, false};
-        if (memento != null) {
-            // 1. Avoid recalculating brightness values for subimages
-            if (memento.oldResolution == resolution && memento.subImageBrightnessMap != null) {
-                imageConverter.setSubImages(memento.subImageBrightnessMap);
-                flag[0] = true;
+    private boolean handleGlyphsCommand(String argument) {
+        switch (argument) {
+            case GLYPHS_ASCII -> subCellGlyphMatcher = null;
+            case GLYPHS_BRAILLE -> subCellGlyphMatcher = new SubCellGlyphMatcher(SubCellGlyphMatcher.Pattern.BRAILLE);
+            case GLYPHS_BLOCKS -> subCellGlyphMatcher = new SubCellGlyphMatcher(SubCellGlyphMatcher.Pattern.QUADRANTS);
+            default -> {
+                printError(GLYPHS_ERROR);
+                return false;
             }
+        }
+        return true;
+    }
 
-            // 2. Avoid recalculating brightness values of characters already processed
-            HashSet<Character> currentCharSet = subImgCharMatcher.getCharSet();
-            HashSet<Character> oldCharSet = memento.oldCharSet;
+    /*
+     * Handles a crop command: "crop x y width height" renders only that region of the image,
+     * "crop off" renders the whole image again.
+     *
+     * @param arguments The words of the command line, starting with the command.
+     * @return True if the region was set, false if the command failed.
+     */
+    private boolean handleCropCommand(String[] arguments) {
+        if (arguments.length == 2 && arguments[1].equals(TOGGLE_OFF)) {
+            return setCropRegion(null);
+        }
+        if (arguments.length != CROP_ARGUMENTS + 1) {
+            printError(CROP_ERROR);
+            return false;
+        }
+        Rectangle region;
+        try {
+            region = new Rectangle(Integer.parseInt(arguments[1]), Integer.parseInt(arguments[2]),
+                    Integer.parseInt(arguments[3]), Integer.parseInt(arguments[4]));
+        }
+        catch (NumberFormatException e) {
+            printError(CROP_ERROR);
+            return false;
+        }
+        if (!new Rectangle(imageSize).contains(region)) {
+            printError(REGION_BOUNDARIES_ERROR);
+            return false;
+        }
+        return setCropRegion(region);
+    }
 
-            if (oldCharSet != null) {
-                for (char c : oldCharSet) {
-                    if (currentCharSet.contains(c) && !subImgCharMatcher.getBrightnessMap().containsKey(c)) {
-                        // Reuse old brightness values
-                        subImgCharMatcher.getBrightnessMap().put(c, memento.oldCharBrightnessMap.get(c));
+    /*
+     * Handles a zoom command: "zoom in" halves the rendered region around its center, "zoom out"
+     * doubles it, staying within the image.
+     *
+     * @param argument The argument of the command.
+     * @return True if the region was set, false if the command failed.
+     */
+    private boolean handleZoomCommand(String argument) {
+        Rectangle region = cropRegion == null ? new Rectangle(imageSize) : new Rectangle(cropRegion);
+        int centerX = region.x + region.width / 2;
+        int centerY = region.y + region.height / 2;
+        switch (argument) {
+            case ZOOM_IN -> region.setSize(region.width / 2, region.height / 2);
+            case ZOOM_OUT -> region.setSize(Math.min(region.width * 2, imageSize.width),
+                    Math.min(region.height * 2, imageSize.height));
+            default -> {
+                printError(ZOOM_ERROR);
+                return false;
+            }
+        }
+        // Keep the center, moving the region back inside the image where it would leave it
+        region.setLocation(Math.max(0, Math.min(centerX - region.width / 2, imageSize.width - region.width)),
+                Math.max(0, Math.min(centerY - region.height / 2, imageSize.height - region.height)));
+        return setCropRegion(region.getSize().equals(imageSize) ? null : region);
+    }
+
+    /*
+     * Sets the rendered region and the resolution bounds it allows, bringing the resolution
+     * within them. Regions narrower or lower than the default resolution are refused.
+     *
+     * @param region The region, or null for the whole image.
+     * @return True if the region was set, false if it is too small.
+     */
+    private boolean setCropRegion(Rectangle region) {
+        if (region != null && (region.width < DEFAULT_RESOLUTION || region.height < DEFAULT_RESOLUTION)) {
+            printError(REGION_BOUNDARIES_ERROR);
+            return false;
+        }
+        cropRegion = region;
+        updateResolutionBounds();
+        resolution = Math.max(minResolution, Math.min(resolution, maxResolution));
+        if (!scriptMode) {
+            System.out.println(CHANGED_REGION_MESSAGE + (region == null ? WHOLE_IMAGE :
+                    region.x + " " + region.y + " " + region.width + " " + region.height));
+        }
+        return true;
+    }
+
+    /*
+     * Handles a deadline command: sets the time a render may take, turns the deadline off,
+     * or chooses whether a late render is aborted or falls back to a lower resolution.
+     *
+     * @param argument The argument of the command.
+     * @return True if the command succeeded, false if the argument is invalid.
+     */
+    private boolean handleDeadlineCommand(String argument) {
+        switch (argument) {
+            case TOGGLE_OFF -> deadlineMillis = 0;
+            case DEADLINE_ABORT -> deadlineFallback = false;
+            case DEADLINE_FALLBACK -> deadlineFallback = true;
+            default -> {
+                long millis;
+                try {
+                    millis = Long.parseLong(argument);
+                }
+                catch (NumberFormatException e) {
+                    millis = 0;
+                }
+                if (millis <= 0) {
+                    printError(DEADLINE_ERROR);
+                    return false;
+                }
+                deadlineMillis = millis;
+            }
+        }
+        return true;
+    }
+
+    /*
+     * Handles a timings command: prints the stage table, or turns the per-render line on or off.
+     *
+     * @param argument The argument of the command, empty to print the table.
+     * @return True if the command succeeded, false if the argument is invalid.
+     */
+    private boolean handleTimingsCommand(String argument) {
+        switch (argument) {
+            case "" -> System.out.print(StageStats.formatTable(lastRenderStats, StageStats.snapshot()));
+            case TOGGLE_ON -> printRenderStats = true;
+            case TOGGLE_OFF -> printRenderStats = false;
+            default -> {
+                printError(TIMINGS_ERROR);
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /*
+     * Adds characters to the charset, or to the pending charset in script mode.
+     *
+     * @param chars The characters to add.
+     */
+    private void addChars(List<Character> chars) {
+        if (pendingCharSet != null) {
+            pendingCharSet.addAll(chars);
+        }
+        else {
+            subImgCharMatcher.addChars(chars);
+        }
+    }
+
+    /*
+     * Removes a character from the charset, or from the pending charset in script mode.
+     *
+     * @param c The character to remove.
+     */
+    private void removeChar(char c) {
+        if (pendingCharSet != null) {
+            pendingCharSet.remove(c);
+        }
+        else {
+            subImgCharMatcher.removeChar(c);
+        }
+    }
+
+    /*
+     * Applies the charset and output changes deferred in script mode. Only the net charset
+     * change reaches the matcher, so characters added and removed again are never rendered.
+     */
+    private void applyPendingChanges() {
+        if (pendingCharSet != null) {
+            HashSet<Character> currentCharSet = new HashSet<>(subImgCharMatcher.getCharSet());
+            for (char c : currentCharSet) {
+                if (!pendingCharSet.contains(c)) {
+                    subImgCharMatcher.removeChar(c);
+                }
+            }
+            List<Character> added = new ArrayList<>();
+            for (char c : pendingCharSet) {
+                if (!currentCharSet.contains(c)) {
+                    added.add(c);
+                }
+            }
+            subImgCharMatcher.addChars(added);
+        }
+        if (pendingOutputFormat != null) {
+            setOutputFormat(pendingOutputFormat);
+            pendingOutputFormat = null;
+        }
+    }
+
+    /*
+     * Prints an error message, to the error stream in script mode.
+     *
+     * @param message The message to print.
+     */
+    private void printError(String message) {
+        if (scriptMode) {
+            System.err.println(message);
+        }
+        else {
+            System.out.println(message);
+        }
+    }
+
+    /*
+     * Executes a single command.
+     *
+     * @param inputAnswer The command line.
+     * @return The result of the command.
+     */
+    private CommandResult executeCommand(String inputAnswer) {
+        String command = (inputAnswer.split(" ").length > 1) ? inputAnswer.split(" ")[1] : "";
+        switch (inputAnswer.split(" ")[0]) {
+            case EXIT_COMMAND:
+                applyPendingChanges();
+                closeOutputFormat();
+                return CommandResult.EXIT;
+            case CHARS_COMMAND:
+                printCharArray();
+                return CommandResult.SUCCESS;
+            case RESOLUTION_COMMAND:
+                return handleResolutionCommand(command) ? CommandResult.SUCCESS : CommandResult.FAILURE;
+            case ADD_COMMAND:
+                try {
+                    handleAdd(command);
+                }
+                catch (IllegalArgumentException e) {
+                    printError(ADD_ERROR);
+                    return CommandResult.FAILURE;
+                }
+                return CommandResult.SUCCESS;
+            case REMOVE_COMMAND:
+                try {
+                    handleRemove(command);
+                }
+                catch (IllegalArgumentException e) {
+                    printError(REMOVE_ERROR);
+                    return CommandResult.FAILURE;
+                }
+                return CommandResult.SUCCESS;
+
+            case ROUND_METHOD_COMMAND:
+                try {
+                    handleRound(command);
+                }
+                catch (IllegalArgumentException e) {
+                    printError(ROUND_METHOD_ERROR);
+                    return CommandResult.FAILURE;
+                }
+                return CommandResult.SUCCESS;
+            case OUTPUT_METHOD_COMMAND:
+                try {
+                    handleOutputMethod(command);
+                }
+                catch (IllegalArgumentException e) {
+                    printError(OUTPUT_METHOD_ERROR);
+                    return CommandResult.FAILURE;
+                }
+                return CommandResult.SUCCESS;
+
+            case ASCII_ART_COMMAND:
+                return handleAsciiArtCommand() ? CommandResult.SUCCESS : CommandResult.FAILURE;
+
+            case STATS_COMMAND:
+                System.out.println(renderCache);
+                synchronized (this) {
+                    if (regionConverter != null) {
+                        System.out.println(regionConverter);
                     }
                 }
+                return CommandResult.SUCCESS;
+
+            case TIMINGS_COMMAND:
+                return handleTimingsCommand(command) ? CommandResult.SUCCESS : CommandResult.FAILURE;
+
+            case PROGRESSIVE_COMMAND:
+                return handleProgressiveCommand(command) ? CommandResult.SUCCESS : CommandResult.FAILURE;
+
+            case DEADLINE_COMMAND:
+                return handleDeadlineCommand(command) ? CommandResult.SUCCESS : CommandResult.FAILURE;
+
+            case EDGES_COMMAND:
+                return handleEdgesCommand(command) ? CommandResult.SUCCESS : CommandResult.FAILURE;
+
+            case GAMMA_COMMAND:
+                return handleGammaCommand(command) ? CommandResult.SUCCESS : CommandResult.FAILURE;
+
+            case CONTRAST_COMMAND:
+                return handleContrastCommand(command) ? CommandResult.SUCCESS : CommandResult.FAILURE;
+
+            case GLYPHS_COMMAND:
+                return handleGlyphsCommand(command) ? CommandResult.SUCCESS : CommandResult.FAILURE;
+
+            case MATCH_COMMAND:
+                return handleMatchCommand(command) ? CommandResult.SUCCESS : CommandResult.FAILURE;
+
+            case CROP_COMMAND:
+                return handleCropCommand(inputAnswer.split(" ")) ? CommandResult.SUCCESS : CommandResult.FAILURE;
+
+            case ZOOM_COMMAND:
+                return handleZoomCommand(command) ? CommandResult.SUCCESS : CommandResult.FAILURE;
+
+            default:
+                printError(EXECUTION_FORMAT_ERROR);
+                return CommandResult.FAILURE;
+        }
+    }
+
+    /*
+     * Reads the resolution bounds the image allows from its header. The pixels are decoded
+     * when they are first needed, so commands other than asciiArt don't wait for them.
+     *
+     * @param imageName The name of the image file to process.
+     * @throws IOException If the image header can't be read.
+     */
+    private void loadImage(String imageName) throws IOException {
+        releaseImage();
+        this.imageName = imageName;
+        imageSize = Image.readSize(imageName);
+        cropRegion = null;
+        updateResolutionBounds();
+    }
+
+    /*
+     * Sets the resolution bounds to those of the rendered region.
+     */
+    private void updateResolutionBounds() {
+        int width = cropRegion == null ? imageSize.width : cropRegion.width;
+        int height = cropRegion == null ? imageSize.height : cropRegion.height;
+        maxResolution = width;
+        minResolution = Math.max(1, width / height);
+    }
+
+    /*
+     * Releases the memory of the decoded image, once the speculative precomputation that may
+     * be reading it has stopped, and drops it from the shared cache.
+     */
+    private void releaseImage() {
+        if (speculation != null) {
+            cancelSpeculation();
+            try {
+                // A cancelled task may still be running; the executor runs this one after it
+                speculationExecutor.submit(() -> { }).get();
+            }
+            catch (ExecutionException e) {
+                // The empty task can't fail
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
             }
+        }
+        synchronized (this) {
+            if (paddedImage != null) {
+                paddedImage.close();
+                paddedImage = null;
+                imageSource = null;
+                regionConverter = null;
+                assets.releaseImage(imageName);
+                // The cached grids hold the closed image, so they can't be rendered again
+                renderCache.removeGrids(imageName, luminance);
+            }
+        }
+    }
 
-            // 3. Avoid recalculating normalized brightness map
-            if (currentCharSet.equals(oldCharSet)) {
-                subImgCharMatcher.setNormalizedBrightnessMap(memento.oldCharNormalizedBrightnessMap);
-                flag[1] = true;
+    /**
+     * Runs the command-line interface for generating ASCII art.
+     *
+     * @param imageName The name of the image file to process.
+     */
+    public void run(String imageName) {
+        try {
+            loadImage(imageName);
+        }
+        catch (IOException e) {
+            return;
+        }
+
+        while (true) {
+            // Use the time spent waiting for the user to prepare the next render
+            speculate();
+            System.out.print(WRITE_TO_STRING);
+            String inputAnswer = KeyboardInput.readLine();
+            printOutputReports();
+            if (executeCommand(inputAnswer) == CommandResult.EXIT) {
+                releaseImage();
+                speculationExecutor.shutdown();
+                return;
             }
         }
-        return flag;
     }
 
-    /* Saves the current state into a Memento object. */
-    private Memento saveToMemento() {
-        return new Memento(subImgCharMatcher, imageConverter, resolution);
+    /**
+     * Runs a script of commands without prompting. All commands are read and checked before
+     * any of them runs, and changes between two asciiArt commands are coalesced, so only the
+     * final charset and output method are computed. The script stops at the first failing
+     * command, at an exit command or at its end.
+     *
+     * @param imageName  The name of the image file to process.
+     * @param scriptName The file of commands, one per line, or "-" for the standard input.
+     * @return True if all commands succeeded and all outputs were written.
+     */
+    public boolean runScript(String imageName, String scriptName) {
+        List<String> commands = new ArrayList<>();
+        try (BufferedReader reader = scriptName.equals(STANDARD_INPUT) ?
+                new BufferedReader(new InputStreamReader(System.in)) :
+                Files.newBufferedReader(Path.of(scriptName))) {
+            String line;
+            int lineNumber = 0;
+            while ((line = reader.readLine()) != null) {
+                lineNumber++;
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith(SCRIPT_COMMENT)) {
+                    continue;
+                }
+                if (!SCRIPT_COMMANDS.contains(line.split(" ")[0])) {
+                    System.err.println(SCRIPT_LINE_ERROR + lineNumber + ": " + EXECUTION_FORMAT_ERROR);
+                    return false;
+                }
+                commands.add(line);
+            }
+            loadImage(imageName);
+        }
+        catch (IOException e) {
+            System.err.println(e.getMessage());
+            return false;
+        }
+
+        scriptMode = true;
+        pendingCharSet = new HashSet<>(subImgCharMatcher.getCharSet());
+        try {
+            for (String command : commands) {
+                CommandResult result = executeCommand(command);
+                if (result == CommandResult.FAILURE) {
+                    closeOutputFormat();
+                    return false;
+                }
+                if (result == CommandResult.EXIT) {
+                    return !outputFailed;
+                }
+            }
+            applyPendingChanges();
+            closeOutputFormat();
+            return !outputFailed;
+        }
+        finally {
+            releaseImage();
+        }
     }
 
     /*
-     * Inner class representing a snapshot of the Shell state for optimization.
+     * Converts an animation with the default charset and rounding method.
+     *
+     * @param args The command-line arguments: the flag, the source, and optionally the resolution
+     *             and "html" for HTML output.
+     * @return True if the animation was converted.
      */
-    private static class Memento {
-        private  HashSet<Character> oldCharSet;
-        private  HashMap<Character, Double> oldCharBrightnessMap;
-        private  HashMap<Character, Double> oldCharNormalizedBrightnessMap;
-        private HashMap<Color[][], Double> subImageBrightnessMap;
-        private int oldResolution;
-        private Memento(SubImgCharMatcher subImgCharMatcher, ImageConverter imageConverter, int resolution) {
-            this.oldCharSet = subImgCharMatcher.getCharSet();
-            this.oldCharBrightnessMap = subImgCharMatcher.getBrightnessMap();
-            this.oldCharNormalizedBrightnessMap = subImgCharMatcher.getNormalizedBrightnessMap();
-            this.subImageBrightnessMap = imageConverter.getNewResolutionArray();
-            this.oldResolution = resolution;
+    private boolean runAnimation(String[] args) {
+        int animationResolution;
+        try {
+            animationResolution = args.length > 2 ? Integer.parseInt(args[2]) : DEFAULT_RESOLUTION;
+        } catch (NumberFormatException e) {
+            System.err.println(RES_FORMAT_ERROR);
+            return false;
+        }
+        boolean html = args.length > 3 && args[3].equals(HTML_OUTPUT);
+        AsciiAnimationOutput output = html ? new HtmlAnimationOutput(ANIMATION_OUTPUT_FILE, font) :
+                new ConsoleAnimationOutput(true);
+        try (FrameSequence frames = FrameSequence.open(args[1])) {
+            if (animationResolution < 1 || animationResolution > frames.getWidth()) {
+                System.err.println(RES_BOUNDARIES_ERROR);
+                return false;
+            }
+            subImgCharMatcher.normalizeBrightness();
+            AnimationConverter converter = new AnimationConverter(animationResolution, subImgCharMatcher,
+                    roundMethod, luminance);
+            converter.convert(frames, output);
+            System.out.println(converter.report());
+            return true;
+        } catch (IOException e) {
+            System.err.println(e.getMessage());
+            return false;
         }
-        
     }
 
     /**
      * The main method to run the Shell program.
+     * Runs the interactive shell on the image given as the first argument. With
+     * "--script SCRIPT IMAGE", runs the commands of SCRIPT ("-" for the standard input) on IMAGE and
+     * exits with status 1 if one of them fails. With "--batch SOURCE PROFILE", converts every image
+     * of the directory or glob SOURCE with the settings of PROFILE. With "--animate SOURCE [res] [html]",
+     * plays the animated GIF or frame directory SOURCE on the console, or writes it to an HTML file.
+     * With "--server [port]", runs the conversion as a local HTTP service.
      *
      * @param args Command-line arguments.
      */
     public static void main(String[] args) {
+        if (args.length > 0 && args[0].equals(SERVER_MODE)) {
+            int port = ConversionServer.DEFAULT_PORT;
+            try {
+                if (args.length > 1) {
+                    port = Integer.parseInt(args[1]);
+                }
+            } catch (NumberFormatException e) {
+                System.err.println(SERVER_USAGE_ERROR);
+                System.exit(1);
+            }
+            try {
+                new ConversionServer(port).start();
+            } catch (IOException e) {
+                System.err.println(e.getMessage());
+                System.exit(1);
+            }
+            return;
+        }
+        if (args.length > 2 && args[0].equals(BATCH_MODE)) {
+            try {
+                BatchConverter batchConverter = new BatchConverter(BatchConverter.loadProfile(args[2]));
+                int failures = batchConverter.convertAll(BatchConverter.findImages(args[1]));
+                System.exit(failures == 0 ? 0 : 1);
+            } catch (IOException | IllegalArgumentException e) {
+                System.err.println(e.getMessage());
+                System.exit(1);
+            }
+        }
+        if (args.length > 1 && args[0].equals(ANIMATION_MODE)) {
+            System.exit(new Shell().runAnimation(args) ? 0 : 1);
+        }
+        if (args.length > 2 && args[0].equals(SCRIPT_MODE)) {
+            boolean succeeded = new Shell().runScript(args[2], args[1]);
+            System.exit(succeeded ? 0 : 1);
+        }
         Shell shell = new Shell();
         shell.run(args[0]);
     }
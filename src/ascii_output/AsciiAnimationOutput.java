@@ -0,0 +1,31 @@
+package ascii_output;
+
+/**
+ * An object implementing this interface can output a sequence of 2D arrays of chars
+ * as an animation.
+ * @author inbar.el and stavzok
+ */
+public interface AsciiAnimationOutput {
+
+    /**
+     * Starts a new animation whose frames all have the given dimensions.
+     *
+     * @param rows The number of rows of every frame.
+     * @param cols The number of chars in every row.
+     */
+    void begin(int rows, int cols);
+
+    /**
+     * Outputs the next frame. The arrays may be reused by the caller once this method returns.
+     *
+     * @param chars       The chars of the frame.
+     * @param changed     Which cells changed since the previous frame, all of them for the first frame.
+     * @param delayMillis How long the frame is shown, in milliseconds.
+     */
+    void outFrame(char[][] chars, boolean[][] changed, int delayMillis);
+
+    /**
+     * Finishes the animation.
+     */
+    void end();
+}
@@ -0,0 +1,41 @@
+package ascii_output;
+
+/**
+ * An AsciiOutput that can receive the chars row by row, so that the rows can be
+ * written while the rest of the grid is still being computed.
+ * @author inbar.el and stavzok
+ */
+public interface AsciiRowOutput extends AsciiOutput {
+
+    /**
+     * Starts a new output of the given dimensions.
+     *
+     * @param rows The number of rows that will follow.
+     * @param cols The number of chars in every row.
+     */
+    void begin(int rows, int cols);
+
+    /**
+     * Outputs the next row. The array may be reused by the caller once this method returns.
+     *
+     * @param row The chars of the row.
+     */
+    void outRow(char[] row);
+
+    /**
+     * Finishes the output started by the last call to begin.
+     */
+    void end();
+
+    /**
+     * Output the specified 2D array of chars row by row.
+     */
+    @Override
+    default void out(char[][] chars) {
+        begin(chars.length, chars.length == 0 ? 0 : chars[0].length);
+        for (char[] row : chars) {
+            outRow(row);
+        }
+        end();
+    }
+}
@@ -0,0 +1,169 @@
+package ascii_output;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * An AsciiOutput decorator that hands the chars to a dedicated writer thread, so the caller
+ * does not wait for the wrapped output. At most a fixed number of outputs wait in the queue;
+ * when it is full, out blocks until the writer catches up.
+ * The result of every output is kept as a report until it is polled.
+ *
+ * @author inbar.el and stavzok
+ */
+public class AsyncAsciiOutput implements AsciiOutput {
+
+    /* Default number of outputs that may wait for the writer thread. */
+    private static final int DEFAULT_QUEUE_CAPACITY = 2;
+
+    /* Marks the end of the queue for the writer thread. */
+    private static final char[][] END_OF_QUEUE = new char[0][];
+
+    /* Reports of finished outputs. */
+    private static final String SUCCESS_REPORT = "Finished writing ASCII art.";
+    private static final String FAILURE_REPORT = "Failed writing ASCII art: ";
+
+    /* The output doing the actual writing. */
+    private final AsciiOutput output;
+
+    /* Outputs waiting for the writer thread. */
+    private final BlockingQueue<char[][]> queue;
+
+    /* Reports of finished outputs, not polled yet. */
+    private final ConcurrentLinkedQueue<String> reports = new ConcurrentLinkedQueue<>();
+
+    /* Collects the errors the wrapped output logs while writing. */
+    private final WriteErrorLog errorLog = new WriteErrorLog();
+
+    /* The thread writing the queued outputs. */
+    private final Thread writerThread;
+
+    /* Whether an output failed. */
+    private volatile boolean failed;
+
+    /* Whether close was called. */
+    private boolean closed;
+
+    /**
+     * Constructs an asynchronous output with the default queue capacity.
+     *
+     * @param output The output doing the actual writing.
+     */
+    public AsyncAsciiOutput(AsciiOutput output) {
+        this(output, DEFAULT_QUEUE_CAPACITY);
+    }
+
+    /**
+     * Constructs an asynchronous output.
+     *
+     * @param output        The output doing the actual writing.
+     * @param queueCapacity The number of outputs that may wait before out blocks.
+     */
+    public AsyncAsciiOutput(AsciiOutput output, int queueCapacity) {
+        this.output = output;
+        this.queue = new ArrayBlockingQueue<>(queueCapacity);
+        this.writerThread = new Thread(this::writeLoop, "ascii-output-writer");
+        this.writerThread.setDaemon(true);
+        writerThread.start();
+    }
+
+    /**
+     * Queues the specified 2D array of chars for output. The array must not be changed afterwards.
+     * Blocks while the queue is full.
+     */
+    @Override
+    public void out(char[][] chars) {
+        if (closed) {
+            throw new IllegalStateException("Output is closed");
+        }
+        try {
+            queue.put(chars);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            reportFailure("interrupted");
+        }
+    }
+
+    /**
+     * Retrieves and clears the reports of the outputs finished since the last call.
+     *
+     * @return The reports, in the order the outputs finished.
+     */
+    public List<String> pollReports() {
+        List<String> polled = new ArrayList<>();
+        String report;
+        while ((report = reports.poll()) != null) {
+            polled.add(report);
+        }
+        return polled;
+    }
+
+    /**
+     * Tells whether an output failed. After close, this covers all the outputs.
+     *
+     * @return True if any output failed so far.
+     */
+    public boolean hasFailed() {
+        return failed;
+    }
+
+    /**
+     * Waits until all queued outputs are written and stops the writer thread.
+     * Reports of the last outputs can still be polled afterwards.
+     */
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            queue.put(END_OF_QUEUE);
+            writerThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            errorLog.close();
+        }
+    }
+
+    /*
+     * Writes queued outputs until the end of the queue is reached.
+     */
+    private void writeLoop() {
+        while (true) {
+            char[][] chars;
+            try {
+                chars = queue.take();
+            } catch (InterruptedException e) {
+                return;
+            }
+            if (chars == END_OF_QUEUE) {
+                return;
+            }
+            errorLog.take();
+            try {
+                // The outputs of this package report failures through the global logger
+                output.out(chars);
+                String loggedError = errorLog.take();
+                if (loggedError == null) {
+                    reports.add(SUCCESS_REPORT);
+                } else {
+                    reportFailure(loggedError);
+                }
+            } catch (RuntimeException e) {
+                reportFailure(e.getMessage());
+            }
+        }
+    }
+
+    /*
+     * Reports a failed output.
+     */
+    private void reportFailure(String reason) {
+        failed = true;
+        reports.add(FAILURE_REPORT + reason);
+    }
+}
@@ -0,0 +1,142 @@
+package ascii_output;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.logging.Logger;
+
+/**
+ * Output a 2D array of chars to a compact binary frame file.
+ * The file holds a small header, the table of distinct chars in the frame, and one charset index
+ * per cell packed into as few bits as the table size needs, optionally followed by a color plane.
+ * The file can be read back with BinaryAsciiReader.
+ *
+ * Layout (big endian):
+ * magic (4 bytes), version (1), flags (1), bits per cell (1), reserved (1), rows (4), cols (4),
+ * charset size (4), charset chars (2 each), packed cells, and if FLAG_COLORS is set,
+ * a color plane of 3 bytes (RGB) per cell.
+ *
+ * @author inbar.el and stavzok
+ */
+public class BinaryAsciiOutput implements AsciiOutput {
+
+    /* "ASCB" - identifies a binary frame file. */
+    static final int MAGIC = 0x41534342;
+
+    /* Version of the layout written by this class. */
+    static final byte VERSION = 1;
+
+    /* Flag marking that a color plane follows the cells. */
+    static final byte FLAG_COLORS = 1;
+
+    /* Size of the header up to (not including) the charset chars. */
+    static final int HEADER_SIZE = 20;
+
+    /* Number of bytes per cell in the color plane. */
+    static final int COLOR_BYTES = 3;
+
+    /* Number of distinct char values. */
+    private static final int CHAR_VALUES = Character.MAX_VALUE + 1;
+
+    private final String filename;
+
+    /**
+     * Constructs a binary output.
+     *
+     * @param filename The file to write.
+     */
+    public BinaryAsciiOutput(String filename) {
+        this.filename = filename;
+    }
+
+    @Override
+    public void out(char[][] chars) {
+        out(chars, null);
+    }
+
+    /**
+     * Output the specified 2D array of chars with a color per cell.
+     *
+     * @param chars  The chars to output.
+     * @param colors The RGB color of every cell, or null to write no color plane.
+     */
+    public void out(char[][] chars, int[][] colors) {
+        int rows = chars.length;
+        int cols = rows == 0 ? 0 : chars[0].length;
+
+        // Build the charset table in order of first appearance
+        int[] indexOf = new int[CHAR_VALUES];
+        Arrays.fill(indexOf, -1);
+        char[] charset = new char[Math.min(CHAR_VALUES, Math.max(1, rows * cols))];
+        int charsetSize = 0;
+        for (char[] row : chars) {
+            for (char c : row) {
+                if (indexOf[c] < 0) {
+                    indexOf[c] = charsetSize;
+                    charset[charsetSize++] = c;
+                }
+            }
+        }
+        int bitsPerCell = bitsFor(charsetSize);
+
+        try (DataOutputStream stream = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(filename)))) {
+            stream.writeInt(MAGIC);
+            stream.writeByte(VERSION);
+            stream.writeByte(colors != null ? FLAG_COLORS : 0);
+            stream.writeByte(bitsPerCell);
+            stream.writeByte(0);
+            stream.writeInt(rows);
+            stream.writeInt(cols);
+            stream.writeInt(charsetSize);
+            for (int i = 0; i < charsetSize; i++) {
+                stream.writeChar(charset[i]);
+            }
+
+            // Pack the indices most significant bit first
+            long bits = 0;
+            int bitCount = 0;
+            for (char[] row : chars) {
+                for (char c : row) {
+                    bits = (bits << bitsPerCell) | indexOf[c];
+                    bitCount += bitsPerCell;
+                    while (bitCount >= Byte.SIZE) {
+                        bitCount -= Byte.SIZE;
+                        stream.writeByte((int) (bits >>> bitCount));
+                    }
+                }
+            }
+            if (bitCount > 0) {
+                stream.writeByte((int) (bits << (Byte.SIZE - bitCount)));
+            }
+
+            if (colors != null) {
+                for (int[] row : colors) {
+                    for (int rgb : row) {
+                        stream.writeByte(rgb >> 16);
+                        stream.writeByte(rgb >> 8);
+                        stream.writeByte(rgb);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            Logger.getGlobal().severe(String.format("Failed to write to \"%s\"", filename));
+        }
+    }
+
+    /*
+     * Finds the number of bits needed to store an index into a charset of the given size.
+     *
+     * @param charsetSize The number of chars in the charset.
+     * @return The number of bits per cell, at least 1.
+     */
+    private static int bitsFor(int charsetSize) {
+        int bits = 1;
+        while ((1 << bits) < charsetSize) {
+            bits++;
+        }
+        return bits;
+    }
+}
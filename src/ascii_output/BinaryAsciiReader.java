@@ -0,0 +1,203 @@
+package ascii_output;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Reads a binary frame file written by BinaryAsciiOutput.
+ * The file is memory-mapped, so only the parts that are read are loaded, and the frame can be
+ * emitted again through any AsciiOutput without repeating the conversion.
+ *
+ * @author inbar.el and stavzok
+ */
+public class BinaryAsciiReader {
+
+    /* Message of the exception thrown for files that are not binary frames. */
+    private static final String FORMAT_ERROR = "Not a binary ASCII frame file: ";
+
+    /* Message of the exception thrown for cells whose value is not in the charset table. */
+    private static final String CELL_ERROR = "Corrupt cell in binary ASCII frame file: ";
+
+    private final String filename;
+
+    /* The mapped file. */
+    private final MappedByteBuffer buffer;
+
+    private final int rows;
+    private final int cols;
+    private final int bitsPerCell;
+    private final boolean hasColors;
+
+    /* The charset table, indexed by the packed cell values. */
+    private final char[] charset;
+
+    /* Offsets of the packed cells and of the color plane in the file. */
+    private final int cellsOffset;
+    private final int colorsOffset;
+
+    /**
+     * Opens and maps a binary frame file.
+     *
+     * @param filename The file to read.
+     * @throws IOException If the file can't be read or is not a binary frame file.
+     */
+    public BinaryAsciiReader(String filename) throws IOException {
+        this.filename = filename;
+        try (FileChannel channel = FileChannel.open(Path.of(filename), StandardOpenOption.READ)) {
+            if (channel.size() < BinaryAsciiOutput.HEADER_SIZE || channel.size() > Integer.MAX_VALUE) {
+                throw new IOException(FORMAT_ERROR + filename);
+            }
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        if (buffer.getInt(0) != BinaryAsciiOutput.MAGIC || buffer.get(4) != BinaryAsciiOutput.VERSION) {
+            throw new IOException(FORMAT_ERROR + filename);
+        }
+        hasColors = (buffer.get(5) & BinaryAsciiOutput.FLAG_COLORS) != 0;
+        bitsPerCell = buffer.get(6);
+        rows = buffer.getInt(8);
+        cols = buffer.getInt(12);
+        int charsetSize = buffer.getInt(16);
+        if (rows < 0 || cols < 0 || charsetSize < 0 || bitsPerCell < 1 || bitsPerCell > Character.SIZE) {
+            throw new IOException(FORMAT_ERROR + filename);
+        }
+
+        // Sizes are computed in longs, so a corrupt header can't overflow past the file size check
+        long cellsStart = BinaryAsciiOutput.HEADER_SIZE + (long) charsetSize * Character.BYTES;
+        long cellBytes = ((long) rows * cols * bitsPerCell + Byte.SIZE - 1) / Byte.SIZE;
+        long colorBytes = hasColors ? (long) rows * cols * BinaryAsciiOutput.COLOR_BYTES : 0;
+        if (cellsStart + cellBytes + colorBytes > buffer.capacity()) {
+            throw new IOException(FORMAT_ERROR + filename);
+        }
+        charset = new char[charsetSize];
+        cellsOffset = (int) cellsStart;
+        colorsOffset = (int) (cellsOffset + cellBytes);
+        for (int i = 0; i < charsetSize; i++) {
+            charset[i] = buffer.getChar(BinaryAsciiOutput.HEADER_SIZE + i * Character.BYTES);
+        }
+    }
+
+    /**
+     * @return The number of rows in the frame.
+     */
+    public int getRows() {
+        return rows;
+    }
+
+    /**
+     * @return The number of chars in every row of the frame.
+     */
+    public int getCols() {
+        return cols;
+    }
+
+    /**
+     * @return A copy of the distinct chars of the frame.
+     */
+    public char[] getCharset() {
+        return charset.clone();
+    }
+
+    /**
+     * @return Whether the file has a color plane.
+     */
+    public boolean hasColors() {
+        return hasColors;
+    }
+
+    /**
+     * Reads the chars of one row.
+     *
+     * @param y   The row to read.
+     * @param row The array to fill, of length getCols().
+     * @throws IOException If a cell of the row is not in the charset table.
+     */
+    public void readRow(int y, char[] row) throws IOException {
+        long bitPosition = (long) y * cols * bitsPerCell;
+        int mask = (1 << bitsPerCell) - 1;
+        for (int x = 0; x < cols; x++) {
+            int byteIndex = cellsOffset + (int) (bitPosition >>> 3);
+            int bitOffset = (int) (bitPosition & 7);
+            // A cell spans at most 3 bytes (16 bits starting at bit offset 7)
+            int window = (buffer.get(byteIndex) & 0xFF) << 16;
+            if (byteIndex + 1 < colorsOffset) {
+                window |= (buffer.get(byteIndex + 1) & 0xFF) << 8;
+            }
+            if (byteIndex + 2 < colorsOffset) {
+                window |= buffer.get(byteIndex + 2) & 0xFF;
+            }
+            int index = (window >>> (24 - bitOffset - bitsPerCell)) & mask;
+            if (index >= charset.length) {
+                throw new IOException(CELL_ERROR + filename);
+            }
+            row[x] = charset[index];
+            bitPosition += bitsPerCell;
+        }
+    }
+
+    /**
+     * Reads the whole frame.
+     *
+     * @return A 2D char array of the frame.
+     * @throws IOException If a cell is not in the charset table.
+     */
+    public char[][] read() throws IOException {
+        char[][] chars = new char[rows][cols];
+        for (int y = 0; y < rows; y++) {
+            readRow(y, chars[y]);
+        }
+        return chars;
+    }
+
+    /**
+     * Reads the color plane.
+     *
+     * @return The RGB color of every cell, or null if the file has no color plane.
+     */
+    public int[][] readColors() {
+        if (!hasColors) {
+            return null;
+        }
+        int[][] colors = new int[rows][cols];
+        int offset = colorsOffset;
+        for (int y = 0; y < rows; y++) {
+            for (int x = 0; x < cols; x++) {
+                colors[y][x] = (buffer.get(offset) & 0xFF) << 16 |
+                        (buffer.get(offset + 1) & 0xFF) << 8 |
+                        (buffer.get(offset + 2) & 0xFF);
+                offset += BinaryAsciiOutput.COLOR_BYTES;
+            }
+        }
+        return colors;
+    }
+
+    /**
+     * Emits the frame through the given output. Row outputs receive the rows one by one
+     * straight from the mapped file.
+     *
+     * @param output The output to emit the frame through.
+     * @throws IOException If a cell is not in the charset table.
+     */
+    public void emit(AsciiOutput output) throws IOException {
+        if (output instanceof AsciiRowOutput rowOutput) {
+            char[] row = new char[cols];
+            rowOutput.begin(rows, cols);
+            for (int y = 0; y < rows; y++) {
+                readRow(y, row);
+                rowOutput.outRow(row);
+            }
+            rowOutput.end();
+        }
+        else {
+            output.out(read());
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s: %d x %d, %d chars, %d bits per cell", filename, rows, cols,
+                charset.length, bitsPerCell);
+    }
+}
@@ -0,0 +1,92 @@
+package ascii_output;
+
+import java.io.PrintStream;
+
+/**
+ * Plays a sequence of 2D arrays of chars on an ANSI terminal. The first frame is printed in full;
+ * every later frame only moves the cursor to the cells that changed and overwrites them.
+ * @author inbar.el and stavzok
+ */
+public class ConsoleAnimationOutput implements AsciiAnimationOutput {
+
+    /* ANSI escape sequences. */
+    private static final String CLEAR_SCREEN = "\033[2J\033[H";
+    private static final String MOVE_CURSOR = "\033[%d;%dH";
+
+    /* Every char is followed by a space, as in ConsoleAsciiOutput. */
+    private static final int COLUMNS_PER_CHAR = 2;
+
+    private final PrintStream stream;
+
+    /* Whether to wait for the delay of every frame. */
+    private final boolean realTime;
+
+    /* Reused buffer of the escape sequences of a frame. */
+    private final StringBuilder frameBuffer = new StringBuilder();
+
+    private int rows;
+    private boolean firstFrame;
+
+    /**
+     * Constructs an output playing on the console.
+     *
+     * @param realTime Whether to show every frame for its delay, or as fast as possible.
+     */
+    public ConsoleAnimationOutput(boolean realTime) {
+        this(System.out, realTime);
+    }
+
+    /**
+     * Constructs an output playing on the given stream.
+     *
+     * @param stream   The stream to write to.
+     * @param realTime Whether to show every frame for its delay, or as fast as possible.
+     */
+    public ConsoleAnimationOutput(PrintStream stream, boolean realTime) {
+        this.stream = stream;
+        this.realTime = realTime;
+    }
+
+    @Override
+    public void begin(int rows, int cols) {
+        this.rows = rows;
+        this.firstFrame = true;
+        stream.print(CLEAR_SCREEN);
+    }
+
+    @Override
+    public void outFrame(char[][] chars, boolean[][] changed, int delayMillis) {
+        frameBuffer.setLength(0);
+        for (int y = 0; y < chars.length; y++) {
+            int lastWritten = -2;
+            for (int x = 0; x < chars[y].length; x++) {
+                if (!firstFrame && !changed[y][x]) {
+                    continue;
+                }
+                // Consecutive cells continue from the cursor position
+                if (x != lastWritten + 1) {
+                    frameBuffer.append(String.format(MOVE_CURSOR, y + 1, x * COLUMNS_PER_CHAR + 1));
+                }
+                frameBuffer.append(chars[y][x]).append(' ');
+                lastWritten = x;
+            }
+        }
+        stream.print(frameBuffer);
+        stream.flush();
+        firstFrame = false;
+        if (realTime) {
+            try {
+                Thread.sleep(delayMillis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    @Override
+    public void end() {
+        stream.printf(MOVE_CURSOR, rows + 1, 1);
+        stream.println();
+        stream.flush();
+    }
+}
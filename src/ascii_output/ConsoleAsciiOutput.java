@@ -1,16 +1,37 @@
 package ascii_output;
 
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+
 /**
  * Output a 2D array of chars to the console.
  * @author Dan Nirel
  */public class ConsoleAsciiOutput implements AsciiOutput{
+    private final PrintStream stream;
+
+    /**
+     * Output to the console, encoded as UTF-8 so that chars beyond ASCII, such as braille,
+     * aren't replaced by the platform encoding.
+     */
+    public ConsoleAsciiOutput() {
+        this(new PrintStream(System.out, true, StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Output to the given stream instead of the console.
+     */
+    public ConsoleAsciiOutput(PrintStream stream) {
+        this.stream = stream;
+    }
+
     @Override
     public void out(char[][] chars) {
         for (int y = 0; y < chars.length ; y++) {
             for (int x = 0; x < chars[y].length; x++) {
-                System.out.print(chars[y][x] + " ");
+                stream.print(chars[y][x] + " ");
             }
-            System.out.println();
+            stream.println();
         }
+        stream.flush();
     }
 }
@@ -0,0 +1,129 @@
+package ascii_output;
+
+import java.io.BufferedWriter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Logger;
+
+/**
+ * Output a sequence of 2D arrays of chars to a single HTML file that plays them in a loop.
+ * Every frame is written as it arrives, and a small script shows the frames in turn.
+ * @author inbar.el and stavzok
+ */
+public class HtmlAnimationOutput implements AsciiAnimationOutput {
+    private static final double BASE_LINE_SPACING = 0.8;
+    private static final double BASE_FONT_SIZE = 150.0;
+
+    private final String fontName;
+    private final String filename;
+
+    /* The writer of the current animation, null after a failure. */
+    private BufferedWriter writer;
+
+    /* Delays of the frames written so far. */
+    private final List<Integer> delays = new ArrayList<>();
+
+    public HtmlAnimationOutput(String filename, String fontName) {
+        this.fontName = fontName;
+        this.filename = filename;
+    }
+
+    @Override
+    public void begin(int rows, int cols) {
+        delays.clear();
+        try {
+            writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(filename),
+                    StandardCharsets.UTF_8));
+            writer.write(String.format(
+                "<!DOCTYPE html>\n"+
+                "<html>\n"+
+                "<head><meta charset=\"utf-8\"><style>\n"+
+                "p {\twhite-space:pre;"+
+                    "\tFONT-FAMILY:%s;"+
+                    "\tFONT-SIZE:%frem;"+
+                    "\tLETTER-SPACING:0.15em;"+
+                    "\tLINE-HEIGHT:%fem;"+
+                    "\tdisplay:none;}\n"+
+                "</style></head>\n"+
+                "<body style=\""+
+                    "\tCOLOR:#000000;"+
+                    "\tTEXT-ALIGN:center;"+
+                    "\tFONT-SIZE:1px;\">\n",
+                    fontName, BASE_FONT_SIZE/Math.max(cols, 1), BASE_LINE_SPACING));
+        } catch (IOException e) {
+            fail();
+        }
+    }
+
+    @Override
+    public void outFrame(char[][] chars, boolean[][] changed, int delayMillis) {
+        if (writer == null) {
+            return;
+        }
+        try {
+            writer.write("<p>");
+            for (char[] row : chars) {
+                for (char c : row) {
+                    switch (c) {
+                        case '<' -> writer.write("&lt;");
+                        case '>' -> writer.write("&gt;");
+                        case '&' -> writer.write("&amp;");
+                        default -> writer.write(c);
+                    }
+                }
+                writer.newLine();
+            }
+            writer.write("</p>\n");
+            delays.add(delayMillis);
+        } catch (IOException e) {
+            fail();
+        }
+    }
+
+    @Override
+    public void end() {
+        if (writer == null) {
+            return;
+        }
+        try {
+            writer.write(
+                "<script>\n"+
+                "const delays = " + delays + ";\n"+
+                "const frames = document.getElementsByTagName(\"p\");\n"+
+                "let current = 0;\n"+
+                "function show() {\n"+
+                "  frames[(current + frames.length - 1) % frames.length].style.display = \"none\";\n"+
+                "  frames[current].style.display = \"block\";\n"+
+                "  setTimeout(show, delays[current]);\n"+
+                "  current = (current + 1) % frames.length;\n"+
+                "}\n"+
+                "if (frames.length > 0) show();\n"+
+                "</script>\n"+
+                "</body>\n"+
+                "</html>\n");
+            writer.close();
+        } catch (IOException e) {
+            fail();
+        }
+        writer = null;
+    }
+
+    /*
+     * Logs a failed write and drops the current animation.
+     */
+    private void fail() {
+        Logger.getGlobal().severe(String.format("Failed to write to \"%s\"", filename));
+        try {
+            if (writer != null) {
+                writer.close();
+            }
+        } catch (IOException ignored) {
+            // The output is already reported as failed.
+        }
+        writer = null;
+    }
+}
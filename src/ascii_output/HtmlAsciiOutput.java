@@ -3,6 +3,7 @@ package ascii_output;
 import java.io.BufferedWriter;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.util.logging.Logger;
 
 /**
@@ -23,10 +24,11 @@ public class HtmlAsciiOutput implements AsciiOutput {
 
     @Override
     public void out(char[][] chars) {
-        try(BufferedWriter writer = new BufferedWriter(new FileWriter(filename))) {
+        try(BufferedWriter writer = new BufferedWriter(new FileWriter(filename, StandardCharsets.UTF_8))) {
             writer.write(String.format(
                 "<!DOCTYPE html>\n"+
                 "<html>\n"+
+                "<head><meta charset=\"utf-8\"></head>\n"+
                 "<body style=\""+
                     "\tCOLOR:#000000;"+
                     "\tTEXT-ALIGN:center;"+
@@ -0,0 +1,136 @@
+package ascii_output;
+
+import image_char_matching.CharConverter;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.logging.Logger;
+import java.util.stream.IntStream;
+
+/**
+ * Output a 2D array of chars to a PNG image, black chars on white.
+ * Every char is rendered once, in the font CharConverter uses, into a glyph tile; the image is
+ * then composed by copying tile rows, in parallel row bands for large outputs.
+ * Rows and columns of spaces around the art are cropped, since the art is centered
+ * in a larger grid.
+ *
+ * @author inbar.el and stavzok
+ */
+public class PngAsciiOutput implements AsciiOutput {
+
+    /* Number of char rows composed by a single task. */
+    private static final int BAND_ROWS = 8;
+
+    /* Outputs with fewer cells than this are composed on the calling thread. */
+    private static final int PARALLEL_THRESHOLD = 64 * 64;
+
+    private final String filename;
+
+    /* Width and height in pixels of every glyph tile. */
+    private final int glyphSize;
+
+    /* Glyph tiles of the chars rendered so far, kept between outputs. */
+    private final HashMap<Character, int[]> glyphs = new HashMap<>();
+
+    /**
+     * Constructs a PNG output with CharConverter's default glyph size.
+     *
+     * @param filename The image file to write.
+     */
+    public PngAsciiOutput(String filename) {
+        this(filename, CharConverter.DEFAULT_PIXEL_RESOLUTION);
+    }
+
+    /**
+     * Constructs a PNG output.
+     *
+     * @param filename  The image file to write.
+     * @param glyphSize The width and height in pixels of every char.
+     */
+    public PngAsciiOutput(String filename, int glyphSize) {
+        this.filename = filename;
+        this.glyphSize = glyphSize;
+    }
+
+    @Override
+    public void out(char[][] chars) {
+        // Bounds of the art: the smallest rectangle holding all non space chars
+        int top = chars.length, bottom = -1, left = Integer.MAX_VALUE, right = -1;
+        for (int y = 0; y < chars.length; y++) {
+            for (int x = 0; x < chars[y].length; x++) {
+                if (chars[y][x] != ' ') {
+                    top = Math.min(top, y);
+                    bottom = y;
+                    left = Math.min(left, x);
+                    right = Math.max(right, x);
+                }
+            }
+        }
+        if (bottom < 0) {
+            top = bottom = left = right = 0;
+        }
+        int rows = bottom - top + 1;
+        int cols = right - left + 1;
+        long pixelCount = (long) rows * cols * glyphSize * glyphSize;
+        if (chars.length == 0 || chars[0].length == 0 || pixelCount > Integer.MAX_VALUE) {
+            Logger.getGlobal().severe(String.format("Failed to write to \"%s\"", filename));
+            return;
+        }
+
+        int[][] tiles = buildAtlas(chars, top, bottom, left, right);
+        int width = cols * glyphSize;
+        BufferedImage image = new BufferedImage(width, rows * glyphSize, BufferedImage.TYPE_INT_RGB);
+        int[] raster = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+
+        int firstRow = top, firstCol = left;
+        int bands = (rows + BAND_ROWS - 1) / BAND_ROWS;
+        IntStream bandStream = IntStream.range(0, bands);
+        if ((long) rows * cols >= PARALLEL_THRESHOLD) {
+            bandStream = bandStream.parallel();
+        }
+        bandStream.forEach(band -> {
+            int bandEnd = Math.min(rows, (band + 1) * BAND_ROWS);
+            for (int row = band * BAND_ROWS; row < bandEnd; row++) {
+                char[] charRow = chars[firstRow + row];
+                for (int glyphLine = 0; glyphLine < glyphSize; glyphLine++) {
+                    int destination = (row * glyphSize + glyphLine) * width;
+                    int source = glyphLine * glyphSize;
+                    for (int col = 0; col < cols; col++) {
+                        System.arraycopy(tiles[charRow[firstCol + col]], source,
+                                raster, destination, glyphSize);
+                        destination += glyphSize;
+                    }
+                }
+            }
+        });
+
+        try {
+            ImageIO.write(image, "png", new File(filename));
+        } catch (IOException e) {
+            Logger.getGlobal().severe(String.format("Failed to write to \"%s\"", filename));
+        }
+    }
+
+    /*
+     * Renders the glyphs of the chars in the given bounds that weren't rendered yet.
+     *
+     * @return A table from every char in the bounds to its glyph tile.
+     */
+    private int[][] buildAtlas(char[][] chars, int top, int bottom, int left, int right) {
+        int[][] tiles = new int[Character.MAX_VALUE + 1][];
+        for (int y = top; y <= bottom; y++) {
+            for (int x = left; x <= right; x++) {
+                char c = chars[y][x];
+                if (tiles[c] == null) {
+                    tiles[c] = glyphs.computeIfAbsent(c,
+                            key -> CharConverter.convertToGlyphPixels(key, glyphSize));
+                }
+            }
+        }
+        return tiles;
+    }
+}
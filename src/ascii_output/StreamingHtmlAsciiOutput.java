@@ -0,0 +1,200 @@
+package ascii_output;
+
+import java.io.BufferedOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.logging.Logger;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Output a 2D array of chars to an HTML file, one row at a time.
+ * Chars are escaped through a precomputed table into a reusable buffer, and the file
+ * can optionally be gzip-compressed (any file name ending with ".gz" is compressed).
+ * The page has the same layout as the one written by HtmlAsciiOutput and is encoded as UTF-8.
+ *
+ * @author inbar.el and stavzok
+ */
+public class StreamingHtmlAsciiOutput implements AsciiRowOutput {
+
+    /* Same page layout constants as HtmlAsciiOutput. */
+    private static final double BASE_LINE_SPACING = 0.8;
+    private static final double BASE_FONT_SIZE = 150.0;
+
+    /* File name suffix that turns on gzip compression. */
+    private static final String GZIP_SUFFIX = ".gz";
+
+    /* Size of the char buffer that is flushed to the writer when full. */
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    /* Size of the byte buffer below the writer. */
+    private static final int STREAM_BUFFER_SIZE = 1 << 16;
+
+    /* The longest escape sequence in the table ("&amp;"). */
+    private static final int MAX_ESCAPE_LENGTH = 5;
+
+    /* Escape sequence of every char below ESCAPE_TABLE_SIZE, higher chars are written as is. */
+    private static final int ESCAPE_TABLE_SIZE = 128;
+    private static final char[][] ESCAPE_TABLE = buildEscapeTable();
+
+    private final String fontName;
+    private final String filename;
+    private final OutputStream targetStream;
+    private final boolean gzip;
+
+    /* Reusable buffer of escaped chars and the number of chars in it. */
+    private final char[] buffer = new char[BUFFER_SIZE];
+    private int bufferLength;
+
+    /* The writer of the current output, null between outputs or after a failure. */
+    private Writer writer;
+
+    /**
+     * Constructs an output that writes to a file.
+     *
+     * @param filename The file to write, compressed if its name ends with ".gz".
+     * @param fontName The font family of the page.
+     */
+    public StreamingHtmlAsciiOutput(String filename, String fontName) {
+        this.filename = filename;
+        this.fontName = fontName;
+        this.targetStream = null;
+        this.gzip = filename.endsWith(GZIP_SUFFIX);
+    }
+
+    /**
+     * Constructs an output that writes a single page to the given stream.
+     * The stream is closed when the output ends.
+     *
+     * @param targetStream The stream to write to.
+     * @param fontName     The font family of the page.
+     * @param gzip         Whether to gzip-compress the page.
+     */
+    public StreamingHtmlAsciiOutput(OutputStream targetStream, String fontName, boolean gzip) {
+        this.filename = null;
+        this.fontName = fontName;
+        this.targetStream = targetStream;
+        this.gzip = gzip;
+    }
+
+    /*
+     * Builds the escape table of all chars below ESCAPE_TABLE_SIZE.
+     *
+     * @return The escape sequence of every char.
+     */
+    private static char[][] buildEscapeTable() {
+        char[][] table = new char[ESCAPE_TABLE_SIZE][];
+        for (char c = 0; c < ESCAPE_TABLE_SIZE; c++) {
+            table[c] = new char[]{c};
+        }
+        table['<'] = "&lt;".toCharArray();
+        table['>'] = "&gt;".toCharArray();
+        table['&'] = "&amp;".toCharArray();
+        return table;
+    }
+
+    @Override
+    public void begin(int rows, int cols) {
+        bufferLength = 0;
+        try {
+            OutputStream stream = targetStream != null ? targetStream : new FileOutputStream(filename);
+            stream = new BufferedOutputStream(stream, STREAM_BUFFER_SIZE);
+            if (gzip) {
+                stream = new GZIPOutputStream(stream, STREAM_BUFFER_SIZE);
+            }
+            writer = new OutputStreamWriter(stream, StandardCharsets.UTF_8);
+            writer.write(String.format(
+                "<!DOCTYPE html>\n"+
+                "<html>\n"+
+                "<head><meta charset=\"utf-8\"></head>\n"+
+                "<body style=\""+
+                    "\tCOLOR:#000000;"+
+                    "\tTEXT-ALIGN:center;"+
+                    "\tFONT-SIZE:1px;\">\n"+
+                "<p style=\""+
+                    "\twhite-space:pre;"+
+                    "\tFONT-FAMILY:%s;"+
+                    "\tFONT-SIZE:%frem;"+
+                    "\tLETTER-SPACING:0.15em;"+
+                    "\tLINE-HEIGHT:%fem;\">\n",
+                    fontName, BASE_FONT_SIZE/Math.max(cols, 1), BASE_LINE_SPACING));
+        } catch (IOException e) {
+            fail();
+        }
+    }
+
+    @Override
+    public void outRow(char[] row) {
+        if (writer == null) {
+            return;
+        }
+        try {
+            for (char c : row) {
+                if (bufferLength > BUFFER_SIZE - MAX_ESCAPE_LENGTH) {
+                    flushBuffer();
+                }
+                if (c < ESCAPE_TABLE_SIZE) {
+                    char[] escaped = ESCAPE_TABLE[c];
+                    for (char e : escaped) {
+                        buffer[bufferLength++] = e;
+                    }
+                } else {
+                    buffer[bufferLength++] = c;
+                }
+            }
+            if (bufferLength == BUFFER_SIZE) {
+                flushBuffer();
+            }
+            buffer[bufferLength++] = '\n';
+        } catch (IOException e) {
+            fail();
+        }
+    }
+
+    @Override
+    public void end() {
+        if (writer == null) {
+            return;
+        }
+        try {
+            flushBuffer();
+            writer.write(
+                "</p>\n"+
+                "</body>\n"+
+                "</html>\n");
+            writer.close();
+            writer = null;
+        } catch (IOException e) {
+            fail();
+        }
+    }
+
+    /*
+     * Writes the buffered chars to the writer and empties the buffer.
+     *
+     * @throws IOException If the write fails.
+     */
+    private void flushBuffer() throws IOException {
+        writer.write(buffer, 0, bufferLength);
+        bufferLength = 0;
+    }
+
+    /*
+     * Logs a failed write and drops the current output.
+     */
+    private void fail() {
+        Logger.getGlobal().severe(String.format("Failed to write to \"%s\"",
+                filename != null ? filename : "stream"));
+        if (writer != null) {
+            try {
+                writer.close();
+            } catch (IOException ignored) {
+                // The output is already reported as failed.
+            }
+        }
+        writer = null;
+    }
+}
@@ -0,0 +1,63 @@
+package ascii_output;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Handler;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+import java.util.logging.Logger;
+
+/**
+ * Collects the write failures that the outputs of this package log through the global logger,
+ * by the thread that logged them, so a caller can tell a failed write from a successful one.
+ * The log listens from its construction until it is closed.
+ *
+ * @author inbar.el and stavzok
+ */
+public class WriteErrorLog implements AutoCloseable {
+
+    /* The last error logged by every thread and not taken yet. */
+    private final ConcurrentHashMap<Long, String> errors = new ConcurrentHashMap<>();
+
+    /* Records the severe messages of the global logger. */
+    private final Handler handler = new Handler() {
+        @Override
+        public void publish(LogRecord record) {
+            if (record.getLevel().intValue() >= Level.SEVERE.intValue()) {
+                errors.put(record.getLongThreadID(), record.getMessage());
+            }
+        }
+
+        @Override
+        public void flush() {
+        }
+
+        @Override
+        public void close() {
+        }
+    };
+
+    /**
+     * Constructs a log listening to the global logger.
+     */
+    public WriteErrorLog() {
+        Logger.getGlobal().addHandler(handler);
+    }
+
+    /**
+     * Retrieves and clears the last error logged by the calling thread.
+     * Taking before a write discards earlier errors, and taking after it tells whether it failed.
+     *
+     * @return The message of the error, or null if none was logged since the last call.
+     */
+    public String take() {
+        return errors.remove(Thread.currentThread().getId());
+    }
+
+    /**
+     * Stops listening to the global logger.
+     */
+    @Override
+    public void close() {
+        Logger.getGlobal().removeHandler(handler);
+    }
+}
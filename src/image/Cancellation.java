@@ -0,0 +1,108 @@
+package image;
+
+import java.util.concurrent.CancellationException;
+import java.util.function.BooleanSupplier;
+
+/**
+ * A cooperative cancellation of a conversion. The stages of the conversion check it every few
+ * rows and stop with a CancellationException once it is cancelled, its deadline has passed,
+ * its stop condition holds or the running thread was interrupted.
+ *
+ * @author inbar.el and stavzok
+ */
+public final class Cancellation {
+
+    /**
+     * A cancellation that never cancels, for conversions that must run to the end.
+     */
+    public static final Cancellation NEVER = new Cancellation(0, () -> false, false);
+
+    /**
+     * Number of rows a stage processes between two checks.
+     */
+    public static final int CHECK_INTERVAL = 16;
+
+    private static final String CANCELLED = "Conversion was cancelled";
+    private static final String DEADLINE_PASSED = "Conversion exceeded its deadline";
+
+    /* Whether the conversion has a deadline, and the deadline in System.nanoTime() terms. */
+    private final boolean hasDeadline;
+    private final long deadlineNanos;
+
+    /* Condition stopping the conversion, such as the user typing a new command. */
+    private final BooleanSupplier stopCondition;
+
+    /* Whether the checks include the interrupt status of the running thread. */
+    private final boolean checksInterrupts;
+
+    private volatile boolean cancelled;
+
+    /*
+     * Constructs a cancellation.
+     */
+    private Cancellation(long timeoutMillis, BooleanSupplier stopCondition, boolean checksInterrupts) {
+        this.hasDeadline = timeoutMillis > 0;
+        this.deadlineNanos = System.nanoTime() + timeoutMillis * 1_000_000;
+        this.stopCondition = stopCondition;
+        this.checksInterrupts = checksInterrupts;
+    }
+
+    /**
+     * Creates a cancellation that is cancelled by cancel() or by interrupting the running thread.
+     *
+     * @return The cancellation.
+     */
+    public static Cancellation create() {
+        return new Cancellation(0, () -> false, true);
+    }
+
+    /**
+     * Creates a cancellation with a deadline and a stop condition.
+     *
+     * @param timeoutMillis The time from now until the deadline, or 0 for no deadline.
+     * @param stopCondition A condition, checked with the others, that cancels the conversion.
+     * @return The cancellation.
+     */
+    public static Cancellation create(long timeoutMillis, BooleanSupplier stopCondition) {
+        return new Cancellation(timeoutMillis, stopCondition, true);
+    }
+
+    /**
+     * Cancels the conversion. Its next check stops it.
+     */
+    public void cancel() {
+        cancelled = true;
+    }
+
+    /**
+     * @return True if the deadline has passed.
+     */
+    public boolean isPastDeadline() {
+        return hasDeadline && System.nanoTime() - deadlineNanos >= 0;
+    }
+
+    /**
+     * @return True if the conversion should stop.
+     */
+    public boolean isCancelled() {
+        if (!cancelled && checksInterrupts &&
+                (Thread.currentThread().isInterrupted() || stopCondition.getAsBoolean())) {
+            cancelled = true;
+        }
+        return cancelled || isPastDeadline();
+    }
+
+    /**
+     * Stops the conversion if it should stop.
+     *
+     * @throws CancellationException If the conversion is cancelled or past its deadline.
+     */
+    public void check() {
+        if (this == NEVER) {
+            return;
+        }
+        if (isCancelled()) {
+            throw new CancellationException(cancelled ? CANCELLED : DEADLINE_PASSED);
+        }
+    }
+}
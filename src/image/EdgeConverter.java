@@ -0,0 +1,263 @@
+package image;
+
+import pipeline_stats.StageStats;
+import pipeline_stats.StageTimer;
+
+import java.util.stream.IntStream;
+
+/**
+ * The EdgeConverter class finds the edges of a padded image at a given resolution. A Sobel
+ * operator is applied to the luminance of every pixel, and the gradients are combined per
+ * sub-image into a structure tensor, giving each sub-image an edge strength, the orientation of
+ * its dominant gradient, how consistent that orientation is, and where its edges lie vertically.
+ *
+ * The image is processed in tiles, each a band of rows of a whole number of sub-images, so the
+ * tiles can run in parallel. A tile first copies its pixels and a one pixel border into a
+ * primitive luminance plane, so the kernel reads an array rather than the image.
+ *
+ * @author inbar.el and stavzok
+ */
+public class EdgeConverter {
+
+    /* Number of pixel rows, and approximate number of pixel columns, of a tile. */
+    private static final int TILE_ROWS = 64;
+    private static final int TILE_COLS = 256;
+
+    /* Number of pixels from which the tiles run in parallel. */
+    private static final long PARALLEL_THRESHOLD = 1L << 16;
+
+    /* Luminance plane of every thread, reused by its tiles. */
+    private static final ThreadLocal<float[]> PLANES = ThreadLocal.withInitial(() -> new float[0]);
+
+    /* The maximum possible RGB score for normalization. */
+    private static final int MAX_RGB_SCORE = 255;
+
+    /* The summed Sobel response across a unit step, over one row crossing it. */
+    private static final double STEP_RESPONSE = 8;
+
+    /* Sums kept per sub-image: gx*gx, gy*gy, gx*gy, |g| and |g|^2 weighted by the row. */
+    private static final int SUMS = 5;
+    private static final int XX = 0;
+    private static final int YY = 1;
+    private static final int XY = 2;
+    private static final int MAGNITUDE = 3;
+    private static final int ROW_WEIGHT = 4;
+
+    private final PaddedImage paddedImage;
+
+    /* Size of a sub-image and number of sub-image rows and columns. */
+    private final int subImageWidth;
+    private final int subImageHeight;
+    private final int gridRows;
+    private final int gridCols;
+
+    /* Per sub-image results, row by row. */
+    private final double[] strength;
+    private final double[] orientation;
+    private final double[] coherence;
+    private final double[] edgeRow;
+
+    /**
+     * Finds the edges of a padded image at a resolution.
+     *
+     * @param paddedImage  The padded image to be processed.
+     * @param resolution   The number of sub-image columns.
+     * @param cancellation Checked before every tile.
+     * @throws java.util.concurrent.CancellationException If the conversion is cancelled.
+     */
+    public EdgeConverter(PaddedImage paddedImage, int resolution, Cancellation cancellation) {
+        this.paddedImage = paddedImage;
+        this.subImageWidth = paddedImage.getWidth() / resolution;
+        this.subImageHeight = paddedImage.getHeight() / resolution;
+        this.gridCols = paddedImage.getWidth() / subImageWidth;
+        this.gridRows = paddedImage.getHeight() / subImageHeight;
+        int cells = gridRows * gridCols;
+        this.strength = new double[cells];
+        this.orientation = new double[cells];
+        this.coherence = new double[cells];
+        this.edgeRow = new double[cells];
+
+        // Tiles never cross a sub-image boundary, so every tile adds to sub-images of its own
+        int bandsPerRow = (subImageHeight + TILE_ROWS - 1) / TILE_ROWS;
+        int cellsPerTile = Math.max(1, TILE_COLS / subImageWidth);
+        int tilesPerBand = (gridCols + cellsPerTile - 1) / cellsPerTile;
+        int tiles = gridRows * bandsPerRow * tilesPerBand;
+        double[][] tileSums = new double[tiles][];
+        try (StageTimer timer = StageStats.start(StageStats.Stage.EDGES)) {
+            timer.image(paddedImage.getWidth(), paddedImage.getHeight()).resolution(resolution).cells(cells);
+            IntStream tileStream = IntStream.range(0, tiles);
+            if ((long) paddedImage.getWidth() * paddedImage.getHeight() >= PARALLEL_THRESHOLD) {
+                tileStream = tileStream.parallel();
+            }
+            tileStream.forEach(tile -> {
+                cancellation.check();
+                int band = tile / tilesPerBand;
+                int firstCell = (tile % tilesPerBand) * cellsPerTile;
+                int rowInCell = (band % bandsPerRow) * TILE_ROWS;
+                int firstRow = (band / bandsPerRow) * subImageHeight + rowInCell;
+                int rows = Math.min(TILE_ROWS, subImageHeight - rowInCell);
+                int cellCount = Math.min(cellsPerTile, gridCols - firstCell);
+                tileSums[tile] = sobel(firstRow, rows, rowInCell, firstCell, cellCount);
+            });
+            combine(tileSums, bandsPerRow, tilesPerBand, cellsPerTile);
+        }
+    }
+
+    /*
+     * Applies the Sobel operator to a tile and sums the gradients per sub-image.
+     *
+     * @param firstRow  The first pixel row of the tile.
+     * @param rows      The number of pixel rows of the tile.
+     * @param rowInCell The row of the first tile row within its sub-image.
+     * @param firstCell The first sub-image column of the tile.
+     * @param cellCount The number of sub-image columns of the tile.
+     * @return The sums of every sub-image column of the tile.
+     */
+    private double[] sobel(int firstRow, int rows, int rowInCell, int firstCell, int cellCount) {
+        int firstCol = firstCell * subImageWidth;
+        int cols = cellCount * subImageWidth;
+        int stride = cols + 2;
+        float[] plane = luminancePlane(firstRow - 1, firstCol - 1, rows + 2, stride);
+        double[] sums = new double[cellCount * SUMS];
+        for (int i = 1; i <= rows; i++) {
+            double rowPosition = (rowInCell + i - 0.5) / subImageHeight;
+            int above = (i - 1) * stride;
+            int center = i * stride;
+            int below = (i + 1) * stride;
+            for (int cell = 0; cell < cellCount; cell++) {
+                // Sum the row of the sub-image in locals, then add it to the sub-image once
+                double xx = 0, yy = 0, xy = 0, magnitude = 0;
+                int end = (cell + 1) * subImageWidth;
+                for (int j = cell * subImageWidth + 1; j <= end; j++) {
+                    double gx = plane[above + j + 1] + 2 * plane[center + j + 1] + plane[below + j + 1] -
+                            plane[above + j - 1] - 2 * plane[center + j - 1] - plane[below + j - 1];
+                    double gy = plane[below + j - 1] + 2 * plane[below + j] + plane[below + j + 1] -
+                            plane[above + j - 1] - 2 * plane[above + j] - plane[above + j + 1];
+                    xx += gx * gx;
+                    yy += gy * gy;
+                    xy += gx * gy;
+                    magnitude += Math.sqrt(gx * gx + gy * gy);
+                }
+                int offset = cell * SUMS;
+                sums[offset + XX] += xx;
+                sums[offset + YY] += yy;
+                sums[offset + XY] += xy;
+                sums[offset + MAGNITUDE] += magnitude;
+                sums[offset + ROW_WEIGHT] += (xx + yy) * rowPosition;
+            }
+        }
+        return sums;
+    }
+
+    /*
+     * Copies the luminance of a rectangle of the padded image, between 0 and 255, into the plane
+     * of the running thread, a row at a time. Pixels outside the image repeat the nearest edge pixel.
+     */
+    private float[] luminancePlane(int firstRow, int firstCol, int rows, int cols) {
+        float[] plane = PLANES.get();
+        if (plane.length < rows * cols) {
+            plane = new float[rows * cols];
+            PLANES.set(plane);
+        }
+        int firstInside = Math.max(0, firstCol);
+        int endInside = Math.min(paddedImage.getWidth(), firstCol + cols);
+        for (int i = 0; i < rows; i++) {
+            int row = Math.max(0, Math.min(paddedImage.getHeight() - 1, firstRow + i));
+            int start = i * cols;
+            paddedImage.readGrayRow(row, firstInside, endInside - firstInside, plane,
+                    start + firstInside - firstCol);
+            if (firstCol < 0) {
+                plane[start] = plane[start + 1];
+            }
+            if (endInside < firstCol + cols) {
+                plane[start + cols - 1] = plane[start + cols - 2];
+            }
+        }
+        return plane;
+    }
+
+    /*
+     * Adds up the sums of the tiles per sub-image and derives the results from them.
+     */
+    private void combine(double[][] tileSums, int bandsPerRow, int tilesPerBand, int cellsPerTile) {
+        double[] sums = new double[gridRows * gridCols * SUMS];
+        for (int tile = 0; tile < tileSums.length; tile++) {
+            int gridRow = tile / tilesPerBand / bandsPerRow;
+            int firstCell = (tile % tilesPerBand) * cellsPerTile;
+            double[] tileSum = tileSums[tile];
+            int offset = (gridRow * gridCols + firstCell) * SUMS;
+            for (int i = 0; i < tileSum.length; i++) {
+                sums[offset + i] += tileSum[i];
+            }
+        }
+        // A step edge of contrast c crossing a sub-image sums to about c times this
+        double fullStep = STEP_RESPONSE * MAX_RGB_SCORE * Math.sqrt((double) subImageWidth * subImageHeight);
+        for (int cell = 0; cell < strength.length; cell++) {
+            int offset = cell * SUMS;
+            double xx = sums[offset + XX];
+            double yy = sums[offset + YY];
+            double xy = sums[offset + XY];
+            double energy = xx + yy;
+            strength[cell] = Math.min(1, sums[offset + MAGNITUDE] / fullStep);
+            orientation[cell] = 0.5 * Math.atan2(2 * xy, xx - yy);
+            coherence[cell] = energy == 0 ? 0 : Math.sqrt((xx - yy) * (xx - yy) + 4 * xy * xy) / energy;
+            edgeRow[cell] = energy == 0 ? 0.5 : sums[offset + ROW_WEIGHT] / energy;
+        }
+    }
+
+    /**
+     * Retrieves the edge strength of the sub-images: roughly the contrast of an edge crossing
+     * the sub-image. The array must not be changed.
+     *
+     * @return The strength of every sub-image between 0 and 1, row by row.
+     */
+    public double[] getStrength() {
+        return strength;
+    }
+
+    /**
+     * Retrieves the orientation of the dominant gradient of the sub-images, across their edges.
+     * The array must not be changed.
+     *
+     * @return The angle of every sub-image in radians, between -pi/2 and pi/2, with 0 meaning
+     * a vertical edge and positive angles an edge rising to the right, row by row.
+     */
+    public double[] getOrientation() {
+        return orientation;
+    }
+
+    /**
+     * Retrieves how consistent the gradient orientation of the sub-images is. The array must
+     * not be changed.
+     *
+     * @return The coherence of every sub-image, 1 for a single straight edge and 0 for no
+     * preferred orientation, row by row.
+     */
+    public double[] getCoherence() {
+        return coherence;
+    }
+
+    /**
+     * Retrieves where the edges of the sub-images lie vertically. The array must not be changed.
+     *
+     * @return The weighted mean row of the gradients of every sub-image, 0 at its top and 1 at
+     * its bottom, row by row.
+     */
+    public double[] getEdgeRow() {
+        return edgeRow;
+    }
+
+    /**
+     * @return The number of sub-image rows.
+     */
+    public int getGridRows() {
+        return gridRows;
+    }
+
+    /**
+     * @return The number of sub-image columns.
+     */
+    public int getGridCols() {
+        return gridCols;
+    }
+}
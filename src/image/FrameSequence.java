@@ -0,0 +1,301 @@
+package image;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.metadata.IIOMetadata;
+import javax.imageio.stream.ImageInputStream;
+import org.w3c.dom.Node;
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * The FrameSequence class decodes the frames of an animated GIF, or of a directory of numbered
+ * frame images, one frame at a time. GIF frames are read through an ImageReader as they are needed
+ * and composed onto the full canvas, so every frame is a complete picture.
+ *
+ * @author inbar.el and stavzok
+ */
+public class FrameSequence implements Closeable {
+
+    /* Delay of frames that don't specify one, in milliseconds. */
+    private static final int DEFAULT_DELAY_MILLIS = 100;
+
+    /* GIF delays are given in hundredths of a second. */
+    private static final int MILLIS_PER_GIF_DELAY_UNIT = 10;
+
+    /* GIF metadata formats and the nodes read from them. */
+    private static final String GIF_IMAGE_METADATA = "javax_imageio_gif_image_1.0";
+    private static final String GIF_STREAM_METADATA = "javax_imageio_gif_stream_1.0";
+    private static final String IMAGE_DESCRIPTOR = "ImageDescriptor";
+    private static final String GRAPHIC_CONTROL = "GraphicControlExtension";
+    private static final String SCREEN_DESCRIPTOR = "LogicalScreenDescriptor";
+    private static final String RESTORE_TO_BACKGROUND = "restoreToBackgroundColor";
+    private static final String RESTORE_TO_PREVIOUS = "restoreToPrevious";
+
+    /* A number in a frame file name. */
+    private static final Pattern NUMBER = Pattern.compile("\\d{1,18}");
+
+    private static final String GIF_EXTENSION = ".gif";
+    private static final String NOT_AN_ANIMATION = "Not a GIF file or a directory of frames: ";
+    private static final String SIZE_MISMATCH = "Frame size differs from the first frame: ";
+
+    /* The GIF reader, or null for a directory of frames. */
+    private final ImageReader reader;
+    private final ImageInputStream stream;
+
+    /* The frame files of a directory, in order. */
+    private final List<File> frameFiles;
+
+    private final int width;
+    private final int height;
+
+    /* The canvas the frames are composed on, and its state before the current frame. */
+    private final BufferedImage canvas;
+    private BufferedImage previousCanvas;
+
+    /* RGB pixels of the current frame, row by row. */
+    private final int[] pixels;
+
+    /* Index of the next frame to read. */
+    private int nextFrame;
+    private int delayMillis = DEFAULT_DELAY_MILLIS;
+
+    /* How to clear the area of the current GIF frame before the next one is drawn. */
+    private String disposal = "";
+    private Rectangle disposalArea = new Rectangle();
+
+    /*
+     * Constructs a sequence of GIF frames.
+     */
+    private FrameSequence(ImageReader reader, ImageInputStream stream) throws IOException {
+        this.reader = reader;
+        this.stream = stream;
+        this.frameFiles = null;
+        Dimension screen = gifScreenSize(reader);
+        this.width = screen.width;
+        this.height = screen.height;
+        this.canvas = whiteCanvas(width, height);
+        this.pixels = new int[width * height];
+    }
+
+    /*
+     * Constructs a sequence of frame files.
+     */
+    private FrameSequence(List<File> frameFiles) throws IOException {
+        this.reader = null;
+        this.stream = null;
+        this.frameFiles = frameFiles;
+        BufferedImage first = ImageIO.read(frameFiles.get(0));
+        if (first == null) {
+            throw new IOException(NOT_AN_ANIMATION + frameFiles.get(0));
+        }
+        this.width = first.getWidth();
+        this.height = first.getHeight();
+        this.canvas = whiteCanvas(width, height);
+        this.pixels = new int[width * height];
+    }
+
+    /**
+     * Opens an animated GIF or a directory of frames, sorted by the numbers in their names.
+     *
+     * @param source The GIF file or the directory.
+     * @return The sequence, positioned before the first frame.
+     * @throws IOException If the source can't be read.
+     */
+    public static FrameSequence open(String source) throws IOException {
+        File file = new File(source);
+        if (file.isDirectory()) {
+            File[] files = file.listFiles(File::isFile);
+            if (files == null || files.length == 0) {
+                throw new IOException(NOT_AN_ANIMATION + source);
+            }
+            List<File> frameFiles = new ArrayList<>(Arrays.asList(files));
+            frameFiles.sort((a, b) -> compareFrameNames(a.getName(), b.getName()));
+            return new FrameSequence(frameFiles);
+        }
+        if (!source.toLowerCase().endsWith(GIF_EXTENSION)) {
+            throw new IOException(NOT_AN_ANIMATION + source);
+        }
+        ImageInputStream stream = ImageIO.createImageInputStream(file);
+        Iterator<ImageReader> readers = stream == null ? null : ImageIO.getImageReaders(stream);
+        if (readers == null || !readers.hasNext()) {
+            throw new IOException(NOT_AN_ANIMATION + source);
+        }
+        ImageReader reader = readers.next();
+        reader.setInput(stream, true);
+        return new FrameSequence(reader, stream);
+    }
+
+    /**
+     * Advances to the next frame.
+     *
+     * @return True if there is a next frame, false at the end of the sequence.
+     * @throws IOException If the frame can't be decoded.
+     */
+    public boolean next() throws IOException {
+        if (frameFiles != null) {
+            if (nextFrame >= frameFiles.size()) {
+                return false;
+            }
+            BufferedImage frame = ImageIO.read(frameFiles.get(nextFrame));
+            if (frame == null || frame.getWidth() != width || frame.getHeight() != height) {
+                throw new IOException(SIZE_MISMATCH + frameFiles.get(nextFrame));
+            }
+            frame.getRGB(0, 0, width, height, pixels, 0, width);
+        }
+        else {
+            BufferedImage frame;
+            try {
+                frame = reader.read(nextFrame);
+            } catch (IndexOutOfBoundsException e) {
+                return false;
+            }
+            composeGifFrame(frame, reader.getImageMetadata(nextFrame));
+            canvas.getRGB(0, 0, width, height, pixels, 0, width);
+        }
+        nextFrame++;
+        return true;
+    }
+
+    /*
+     * Disposes of the previous GIF frame and draws the given one on the canvas.
+     */
+    private void composeGifFrame(BufferedImage frame, IIOMetadata metadata) {
+        Graphics2D graphics = canvas.createGraphics();
+        if (disposal.equals(RESTORE_TO_BACKGROUND)) {
+            graphics.setColor(Color.WHITE);
+            graphics.fill(disposalArea);
+        }
+        else if (disposal.equals(RESTORE_TO_PREVIOUS) && previousCanvas != null) {
+            graphics.drawImage(previousCanvas, 0, 0, null);
+        }
+
+        Node root = metadata.getAsTree(GIF_IMAGE_METADATA);
+        int left = 0, top = 0;
+        disposal = "";
+        delayMillis = DEFAULT_DELAY_MILLIS;
+        for (Node node = root.getFirstChild(); node != null; node = node.getNextSibling()) {
+            if (node.getNodeName().equals(IMAGE_DESCRIPTOR)) {
+                left = intAttribute(node, "imageLeftPosition");
+                top = intAttribute(node, "imageTopPosition");
+            }
+            else if (node.getNodeName().equals(GRAPHIC_CONTROL)) {
+                disposal = node.getAttributes().getNamedItem("disposalMethod").getNodeValue();
+                int delay = intAttribute(node, "delayTime") * MILLIS_PER_GIF_DELAY_UNIT;
+                delayMillis = delay > 0 ? delay : DEFAULT_DELAY_MILLIS;
+            }
+        }
+        if (disposal.equals(RESTORE_TO_PREVIOUS)) {
+            previousCanvas = whiteCanvas(width, height);
+            previousCanvas.createGraphics().drawImage(canvas, 0, 0, null);
+        }
+        disposalArea = new Rectangle(left, top, frame.getWidth(), frame.getHeight());
+        graphics.drawImage(frame, left, top, null);
+        graphics.dispose();
+    }
+
+    /**
+     * @return The width of the frames in pixels.
+     */
+    public int getWidth() {
+        return width;
+    }
+
+    /**
+     * @return The height of the frames in pixels.
+     */
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * Retrieves the pixels of the current frame. The array is overwritten by the next frame.
+     *
+     * @return The RGB pixels of the current frame, row by row.
+     */
+    public int[] getPixels() {
+        return pixels;
+    }
+
+    /**
+     * @return How long the current frame is shown, in milliseconds.
+     */
+    public int getDelayMillis() {
+        return delayMillis;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (reader != null) {
+            reader.dispose();
+            stream.close();
+        }
+    }
+
+    /*
+     * Reads the logical screen size of a GIF, or the size of its first frame if it has none.
+     */
+    private static Dimension gifScreenSize(ImageReader reader) throws IOException {
+        IIOMetadata metadata = reader.getStreamMetadata();
+        if (metadata != null) {
+            Node root = metadata.getAsTree(GIF_STREAM_METADATA);
+            for (Node node = root.getFirstChild(); node != null; node = node.getNextSibling()) {
+                if (node.getNodeName().equals(SCREEN_DESCRIPTOR)) {
+                    return new Dimension(intAttribute(node, "logicalScreenWidth"),
+                            intAttribute(node, "logicalScreenHeight"));
+                }
+            }
+        }
+        return new Dimension(reader.getWidth(0), reader.getHeight(0));
+    }
+
+    /*
+     * Creates a canvas filled with white.
+     */
+    private static BufferedImage whiteCanvas(int width, int height) {
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        Graphics2D graphics = image.createGraphics();
+        graphics.setColor(Color.WHITE);
+        graphics.fillRect(0, 0, width, height);
+        graphics.dispose();
+        return image;
+    }
+
+    /*
+     * Reads an integer attribute of a metadata node.
+     */
+    private static int intAttribute(Node node, String name) {
+        return Integer.parseInt(node.getAttributes().getNamedItem(name).getNodeValue());
+    }
+
+    /*
+     * Compares frame file names by the first number in them, then alphabetically,
+     * so "frame10" comes after "frame9".
+     */
+    private static int compareFrameNames(String a, String b) {
+        long numberA = firstNumber(a);
+        long numberB = firstNumber(b);
+        if (numberA != numberB) {
+            return Long.compare(numberA, numberB);
+        }
+        return a.compareTo(b);
+    }
+
+    /*
+     * Finds the first number in a name, or -1 if it has none.
+     */
+    private static long firstNumber(String name) {
+        Matcher matcher = NUMBER.matcher(name);
+        return matcher.find() ? Long.parseLong(matcher.group()) : -1;
+    }
+}
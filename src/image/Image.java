@@ -1,39 +1,94 @@
 package image;
 
+import pipeline_stats.StageStats;
+import pipeline_stats.StageTimer;
+
 import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
 import java.awt.*;
 import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.IOException;
+import java.util.Iterator;
 
 /**
  * A package-private class of the package image.
  * @author Dan Nirel
  */
-public class Image {
+public class Image implements PixelSource {
 
     private final Color[][] pixelArray;
     private final int width;
     private final int height;
+    private final Luminance luminance;
 
     public Image(String filename) throws IOException {
-        BufferedImage im = ImageIO.read(new File(filename));
-        width = im.getWidth();
-        height = im.getHeight();
+        try (StageTimer timer = StageStats.start(StageStats.Stage.DECODE)) {
+            BufferedImage im = ImageIO.read(new File(filename));
+            width = im.getWidth();
+            height = im.getHeight();
+            pixelArray = toPixelArray(im);
+            luminance = Luminance.GAMMA_ENCODED;
+            timer.image(width, height).cells((long) width * height);
+        }
+    }
 
+    public Image(BufferedImage im) {
+        try (StageTimer timer = StageStats.start(StageStats.Stage.DECODE)) {
+            width = im.getWidth();
+            height = im.getHeight();
+            pixelArray = toPixelArray(im);
+            luminance = Luminance.GAMMA_ENCODED;
+            timer.image(width, height).cells((long) width * height);
+        }
+    }
 
-        pixelArray = new Color[height][width];
-        for (int i = 0; i < height; i++) {
-            for (int j = 0; j < width; j++) {
+    private static Color[][] toPixelArray(BufferedImage im) {
+        Color[][] pixelArray = new Color[im.getHeight()][im.getWidth()];
+        for (int i = 0; i < im.getHeight(); i++) {
+            for (int j = 0; j < im.getWidth(); j++) {
                 pixelArray[i][j]=new Color(im.getRGB(j, i));
             }
         }
+        return pixelArray;
+    }
+
+    // Reads only the dimensions from the header of an image file, without decoding its pixels
+    public static Dimension readSize(String filename) throws IOException {
+        try (ImageInputStream stream = ImageIO.createImageInputStream(new File(filename))) {
+            Iterator<ImageReader> readers = stream == null ? null : ImageIO.getImageReaders(stream);
+            if (readers == null || !readers.hasNext()) {
+                throw new IOException("Unsupported image file: " + filename);
+            }
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(stream, true, true);
+                return new Dimension(reader.getWidth(0), reader.getHeight(0));
+            } finally {
+                reader.dispose();
+            }
+        }
     }
 
     public Image(Color[][] pixelArray, int width, int height) {
+        this(pixelArray, width, height, Luminance.GAMMA_ENCODED);
+    }
+
+    public Image(Color[][] pixelArray, int width, int height, Luminance luminance) {
         this.pixelArray = pixelArray;
         this.width = width;
         this.height = height;
+        this.luminance = luminance;
+    }
+
+    // A view of the same pixels whose brightness is calculated another way; nothing is copied
+    public Image withLuminance(Luminance luminance) {
+        return luminance == this.luminance ? this : new Image(pixelArray, width, height, luminance);
+    }
+
+    public Luminance getLuminance() {
+        return luminance;
     }
 
     public int getWidth() {
@@ -48,6 +103,20 @@ public class Image {
         return pixelArray[x][y];
     }
 
+    public double getGray(int row, int col) {
+        Color color = pixelArray[row][col];
+        return luminance.gray(color.getRed(), color.getGreen(), color.getBlue());
+    }
+
+    @Override
+    public void readGrayRow(int row, int col, int count, float[] destination, int offset) {
+        Color[] pixels = pixelArray[row];
+        for (int i = 0; i < count; i++) {
+            Color color = pixels[col + i];
+            destination[offset + i] = (float) luminance.gray(color.getRed(), color.getGreen(), color.getBlue());
+        }
+    }
+
     public void saveImage(String fileName){
         // Initialize BufferedImage, assuming Color[][] is already properly populated.
         BufferedImage bufferedImage = new BufferedImage(pixelArray[0].length, pixelArray.length,
@@ -1,26 +1,55 @@
 package image;
 
-import java.awt.*;
-import java.util.ArrayList;
-import java.util.HashMap;
+import pipeline_stats.StageStats;
+import pipeline_stats.StageTimer;
 
+import java.util.Arrays;
+import java.util.stream.IntStream;
 
 /**
  * The ImageConverter class splits a padded image into sub-images at a given resolution,
- * calculates the grayscale brightness of each sub-image, and provides access to the processed results.
+ * calculates the grayscale brightness of each sub-image, and provides access to the resulting
+ * brightness grid. The sub-images themselves are not kept.
  *
  * @author inbar.el and stavzok
  */
 public class ImageConverter {
 
+    /**
+     * Ways of spreading the brightness of the sub-images over the whole range before matching,
+     * so that low-contrast images use more than a few chars.
+     */
+    public enum Contrast {
+        /* The brightness is kept as is. */
+        NONE,
+        /* The brightness between two percentiles is stretched linearly over the whole range. */
+        STRETCH,
+        /* The brightness is spread evenly over the whole range by histogram equalization. */
+        EQUALIZE
+    }
+
+    /* Number of bins of the brightness histogram. */
+    private static final int HISTOGRAM_BINS = 1024;
+
+    /* Percentiles of the brightness stretched to 0 and 1; brightness beyond them is clamped. */
+    private static final double LOW_PERCENTILE = 0.01;
+    private static final double HIGH_PERCENTILE = 0.99;
+
+    /* Number of sub-images from which the histogram is built in parallel. */
+    private static final int PARALLEL_THRESHOLD = 1 << 14;
+
     /* The padded image to be converted into sub-images. */
     private final PaddedImage paddedImage;
 
     /* The resolution, i.e., number of columns in the resulting ASCII art. */
     private final int resolution;
 
-    /* A map of sub-images and their corresponding grayscale brightness values. */
-    private HashMap<Color[][], Double> subImages;
+    /* The brightness of every sub-image, row by row. */
+    private final double[] brightnessGrid;
+
+    /* Number of sub-image rows and columns in the grid. */
+    private final int gridRows;
+    private final int gridCols;
 
     /* Original width of the padded image. */
     private final int oldWidth;
@@ -28,17 +57,9 @@ public class ImageConverter {
     /* Original height of the padded image. */
     private final int oldHeight;
 
-    /* Constants for grayscale calculation based on RGB weights. */
-    private final double RED_FACTOR = 0.2126;
-    private final double GREEN_FACTOR = 0.7152;
-    private final double BLUE_FACTOR = 0.0722;
-
     /* The maximum possible RGB score for normalization. */
     private final int MAX_RGB_SCORE = 255;
 
-    /* List of sub-images in the form of 2D Color arrays. */
-    private final ArrayList<Color[][]> subImagesArray = new ArrayList<>();
-
     /**
      * Constructs an ImageConverter instance.
      * Processes the padded image into sub-images and calculates their brightness.
@@ -47,108 +68,232 @@ public class ImageConverter {
      * @param resolution  The number of columns for the ASCII art resolution.
      */
     public ImageConverter(PaddedImage paddedImage, int resolution) {
+        this(paddedImage, resolution, Cancellation.NEVER);
+    }
+
+    /**
+     * Constructs an ImageConverter instance that can be cancelled while it reads the pixels.
+     *
+     * @param paddedImage  The padded image to be processed.
+     * @param resolution   The number of columns for the ASCII art resolution.
+     * @param cancellation Checked every few rows of pixels.
+     * @throws java.util.concurrent.CancellationException If the conversion is cancelled.
+     */
+    public ImageConverter(PaddedImage paddedImage, int resolution, Cancellation cancellation) {
         this.paddedImage = paddedImage;
-        this.oldWidth = paddedImage.getImage().getWidth();
-        this.oldHeight = paddedImage.getImage().getHeight();
+        this.oldWidth = paddedImage.getWidth();
+        this.oldHeight = paddedImage.getHeight();
         this.resolution = resolution;
-        subImages = new HashMap<>();
-        createSubImages();
+        int subImageWidth = oldWidth / resolution;
+        int subImageHeight = oldHeight / resolution;
+        this.gridCols = oldWidth / subImageWidth;
+        this.gridRows = oldHeight / subImageHeight;
+        this.brightnessGrid = new double[gridRows * gridCols];
+        try (StageTimer timer = StageStats.start(StageStats.Stage.BRIGHTNESS)) {
+            timer.image(oldWidth, oldHeight).resolution(resolution).cells(brightnessGrid.length);
+            createSubImages(subImageWidth, subImageHeight, cancellation);
+        }
     }
 
-    /*
-     * Converts a pixel's color into its grayscale brightness.
+    /**
+     * Constructs an ImageConverter around a brightness grid computed elsewhere, such as a level
+     * of a ProgressiveConverter.
      *
-     * @param color The color of the pixel.
-     * @return The grayscale brightness value of the pixel.
+     * @param paddedImage    The padded image the grid was computed from.
+     * @param resolution     The number of columns of the grid.
+     * @param brightnessGrid The normalized brightness of every sub-image, row by row.
      */
-    private double paintPixelGray(Color color) {
-        double red = color.getRed()*RED_FACTOR;
-        double green = color.getGreen()*GREEN_FACTOR;
-        double blue = color.getBlue()*BLUE_FACTOR;
-        return red + green + blue;
+    public ImageConverter(PaddedImage paddedImage, int resolution, double[] brightnessGrid) {
+        this.paddedImage = paddedImage;
+        this.oldWidth = paddedImage.getWidth();
+        this.oldHeight = paddedImage.getHeight();
+        this.resolution = resolution;
+        this.gridCols = oldWidth / (oldWidth / resolution);
+        this.gridRows = oldHeight / (oldHeight / resolution);
+        this.brightnessGrid = brightnessGrid;
     }
 
     /*
-     * Extracts a sub-image from the padded image based on its index, width, and height.
+     * Calculates the brightness of all sub-images of the padded image into the grid.
+     * The pixels are read row by row, so the conversion can be stopped between rows; the
+     * pixels of every sub-image are still summed in the same order.
      *
-     * @param newWidth       The width of the sub-image.
-     * @param newHeight      The height of the sub-image.
-     * @param subImageIndex  The index of the sub-image in row-major order.
-     * @return A 2D Color array representing the sub-image.
-     */
-    private Color [][] processSubImage(int newWidth, int newHeight, int subImageIndex) {
-
-        Color [][] subImage = new Color[newWidth][newHeight];
-        int subImageRow = subImageIndex / (oldWidth / newWidth);
-        int subImageCol = subImageIndex % (oldWidth / newWidth);
-        for (int i=0; i<newHeight; i++) {
-            for (int j=0; j<newWidth; j++) {
-                subImage[i][j] =  paddedImage.getImage().getPixel(
-                        i + subImageRow*newHeight, j + subImageCol*newWidth);
+     * @param subImageWidth  The width of every sub-image.
+     * @param subImageHeight The height of every sub-image.
+     * @param cancellation   Checked every few rows of pixels.
+     */
+    private void createSubImages(int subImageWidth, int subImageHeight, Cancellation cancellation) {
+        Luminance luminance = paddedImage.getLuminance();
+        double[] graySums = new double[gridCols];
+        for (int row = 0; row < gridRows; row++) {
+            Arrays.fill(graySums, 0);
+            for (int i = 0; i < subImageHeight; i++) {
+                int pixelRow = row * subImageHeight + i;
+                if (pixelRow % Cancellation.CHECK_INTERVAL == 0) {
+                    cancellation.check();
+                }
+                for (int col = 0; col < gridCols; col++) {
+                    for (int j = 0; j < subImageWidth; j++) {
+                        graySums[col] += paddedImage.getGray(pixelRow, j + col * subImageWidth);
+                    }
+                }
             }
+            for (int col = 0; col < gridCols; col++) {
+                brightnessGrid[row * gridCols + col] =
+                        luminance.encode(graySums[col] / ((subImageWidth * subImageHeight) * MAX_RGB_SCORE));
+            }
+        }
+    }
+
+    /**
+     * Adjusts the contrast of the sub-images. A histogram of the brightness of the sub-images
+     * covering the image, leaving out those holding only padding, is built in one pass over the
+     * grid, in parallel for large grids with every thread counting into its own bins, and turned
+     * into a lookup table applied in a second pass. The pixels aren't read again, and this
+     * converter is left unchanged, so its grid can stay cached.
+     *
+     * @param contrast The adjustment.
+     * @return A converter holding the adjusted grid, or this converter for Contrast.NONE.
+     */
+    public ImageConverter withContrast(Contrast contrast) {
+        if (contrast == Contrast.NONE || brightnessGrid.length == 0) {
+            return this;
+        }
+        try (StageTimer timer = StageStats.start(StageStats.Stage.CONTRAST)) {
+            timer.resolution(resolution).cells(brightnessGrid.length);
+            long[] histogram = histogram();
+            double[] table = contrast == Contrast.STRETCH ? stretchTable(histogram) : equalizeTable(histogram);
+            double[] adjusted = new double[brightnessGrid.length];
+            cells(brightnessGrid.length).forEach(cell -> adjusted[cell] = lookUp(table, brightnessGrid[cell]));
+            return new ImageConverter(paddedImage, resolution, adjusted);
+        }
+    }
+
+    /*
+     * Counts the sub-images covering the image by their brightness. Every thread counts into
+     * its own bins, which are added up at the end.
+     *
+     * @return The number of sub-images in every bin.
+     */
+    private long[] histogram() {
+        int subImageWidth = oldWidth / gridCols;
+        int subImageHeight = oldHeight / gridRows;
+        int firstRow = paddedImage.getTop() / subImageHeight;
+        int firstCol = paddedImage.getLeft() / subImageWidth;
+        int rows = (paddedImage.getTop() + paddedImage.getImageHeight() - 1) / subImageHeight - firstRow + 1;
+        int cols = (paddedImage.getLeft() + paddedImage.getImageWidth() - 1) / subImageWidth - firstCol + 1;
+        return cells(rows * cols).collect(() -> new long[HISTOGRAM_BINS],
+                (bins, i) -> bins[bin(brightnessGrid[(firstRow + i / cols) * gridCols + firstCol + i % cols])]++,
+                (bins, other) -> Arrays.setAll(bins, bin -> bins[bin] + other[bin]));
+    }
+
+    /*
+     * @return The numbers from 0 to count, parallel from the parallel threshold.
+     */
+    private static IntStream cells(int count) {
+        IntStream cells = IntStream.range(0, count);
+        return count >= PARALLEL_THRESHOLD ? cells.parallel() : cells;
+    }
+
+    /*
+     * @return The histogram bin of a brightness between 0 and 1.
+     */
+    private static int bin(double brightness) {
+        return Math.min(HISTOGRAM_BINS - 1, (int) (Math.max(0, brightness) * HISTOGRAM_BINS));
+    }
+
+    /*
+     * Builds the lookup table of histogram equalization: every bin edge maps to the fraction of
+     * the sub-images darker than it.
+     *
+     * @param histogram The brightness histogram.
+     * @return The adjusted brightness at every bin edge.
+     */
+    private static double[] equalizeTable(long[] histogram) {
+        double total = Arrays.stream(histogram).sum();
+        double[] table = new double[HISTOGRAM_BINS + 1];
+        long below = 0;
+        for (int bin = 0; bin < HISTOGRAM_BINS; bin++) {
+            below += histogram[bin];
+            table[bin + 1] = below / total;
         }
-        return subImage;
+        return table;
     }
 
     /*
-     * Calculates the average grayscale brightness of a sub-image.
+     * Builds the lookup table of a percentile stretch. If the percentiles meet, the brightness
+     * is kept.
      *
-     * @param subImage A 2D Color array representing the sub-image.
-     * @return The normalized grayscale brightness value of the sub-image.
+     * @param histogram The brightness histogram.
+     * @return The adjusted brightness at every bin edge.
      */
-    private Double calculateSubImageBrightness(Color [][] subImage) {
-        double graySum = 0;
-        for (int i=0; i<subImage.length; i++) {
-            for (int j=0; j<subImage[i].length; j++) {
-                graySum += paintPixelGray(subImage[i][j]);
+    private static double[] stretchTable(long[] histogram) {
+        double low = percentile(histogram, LOW_PERCENTILE);
+        double high = percentile(histogram, HIGH_PERCENTILE);
+        double[] table = new double[HISTOGRAM_BINS + 1];
+        for (int edge = 0; edge <= HISTOGRAM_BINS; edge++) {
+            double brightness = (double) edge / HISTOGRAM_BINS;
+            table[edge] = high > low ? Math.max(0, Math.min(1, (brightness - low) / (high - low))) : brightness;
+        }
+        return table;
+    }
 
+    /*
+     * Finds a percentile of the brightness, assuming it is spread evenly within every bin.
+     *
+     * @param histogram The brightness histogram.
+     * @param fraction  The fraction of the sub-images darker than the percentile.
+     * @return The brightness at the percentile.
+     */
+    private static double percentile(long[] histogram, double fraction) {
+        double target = fraction * Arrays.stream(histogram).sum();
+        long below = 0;
+        for (int bin = 0; bin < HISTOGRAM_BINS; bin++) {
+            if (histogram[bin] > 0 && below + histogram[bin] >= target) {
+                return (bin + (target - below) / histogram[bin]) / HISTOGRAM_BINS;
             }
+            below += histogram[bin];
         }
-        return graySum/ ((subImage.length*subImage[0].length) * MAX_RGB_SCORE);
+        return 1;
     }
 
     /*
-     * Creates and processes all sub-images from the padded image.
-     * Each sub-image's brightness is calculated and stored.
-     */
-    private void createSubImages() {
-        int subImageWidth = oldWidth / resolution;     // width of each subimage
-        int subImageHeight = oldHeight / resolution;   // height of each subimage
-        int numberOfSubImages = resolution * (oldHeight / subImageHeight);
-        for (int i = 0; i < numberOfSubImages; i++) {
-            Color [][] subImage = processSubImage(subImageWidth, subImageHeight, i);
-            subImagesArray.add(subImage);
-            subImages.put(subImage,calculateSubImageBrightness(subImage));
-        }
+     * Looks up a brightness in a table of bin edges, interpolating linearly within its bin.
+     */
+    private static double lookUp(double[] table, double brightness) {
+        double position = Math.max(0, Math.min(1, brightness)) * HISTOGRAM_BINS;
+        int bin = Math.min(HISTOGRAM_BINS - 1, (int) position);
+        return table[bin] + (table[bin + 1] - table[bin]) * (position - bin);
     }
 
     /**
-     * Sets new sub-images and their brightness values.
-     * This allows bypassing recalculation of brightness for identical images.
+     * Retrieves the brightness of the sub-images. The array must not be changed.
      *
-     * @param newSubImages A map of sub-images and their brightness values.
+     * @return The normalized brightness of every sub-image, row by row.
      */
-    public void setSubImages(HashMap<Color[][], Double> newSubImages) {
-        subImages = newSubImages;
+    public double[] getBrightnessGrid() {
+        return brightnessGrid;
+    }
 
+    /**
+     * @return The number of sub-image rows.
+     */
+    public int getGridRows() {
+        return gridRows;
     }
 
     /**
-     * Retrieves the sub-images and their brightness values.
-     *
-     * @return A map of sub-images and their corresponding brightness values.
+     * @return The number of sub-image columns.
      */
-    public HashMap<Color[][],Double> getNewResolutionArray(){
-        return subImages;
+    public int getGridCols() {
+        return gridCols;
     }
 
     /**
-     * Retrieves the list of sub-images as 2D Color arrays.
-     *
-     * @return An ArrayList containing all sub-images.
+     * @return The resolution the image was converted at.
      */
-    public ArrayList<Color[][]> getSubImagesArray() {
-        return subImagesArray;
+    public int getResolution() {
+        return resolution;
     }
 
     /**
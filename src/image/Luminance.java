@@ -0,0 +1,111 @@
+package image;
+
+/**
+ * The ways the grayscale brightness of a pixel is calculated from its color, and the brightness
+ * of a sub-image from the average of its pixels.
+ *
+ * The colors of image files are gamma-encoded sRGB, so weighing and averaging them directly, as
+ * the conversion always did, darkens mixed areas: a sub-image of black and white pixels comes out
+ * darker than it looks. The linear mode weighs the light each channel stands for instead, decoded
+ * through lookup tables of the 256 channel values, and encodes the average of every sub-image back
+ * to sRGB, so the brightness matches what the eye sees. Both modes report brightness between 0 and
+ * 255 and agree on uniform gray.
+ *
+ * @author inbar.el and stavzok
+ */
+public enum Luminance {
+    /* The gamma-encoded channels are weighed and averaged directly. */
+    GAMMA_ENCODED {
+        @Override
+        public double gray(int red, int green, int blue) {
+            return PixelSource.gray(red, green, blue);
+        }
+
+        @Override
+        public double encode(double brightness) {
+            return brightness;
+        }
+    },
+    /* The channels are decoded to linear light before they are weighed and averaged. */
+    LINEAR {
+        @Override
+        public double gray(int red, int green, int blue) {
+            return Tables.RED[red] + Tables.GREEN[green] + Tables.BLUE[blue];
+        }
+
+        @Override
+        public double encode(double brightness) {
+            double position = brightness * Tables.ENCODE_STEPS;
+            int step = (int) position;
+            if (step < 0 || step >= Tables.ENCODE_STEPS) {
+                return brightness <= 0 ? 0 : 1;
+            }
+            double low = Tables.ENCODED[step];
+            return low + (Tables.ENCODED[step + 1] - low) * (position - step);
+        }
+    };
+
+    /*
+     * The lookup tables of the linear mode, held apart from the constants since an enum can't
+     * refer to its own static fields while its constants are created.
+     */
+    private static final class Tables {
+
+        /* The largest channel value. */
+        private static final int MAX_CHANNEL = 255;
+
+        /* Number of steps of the table encoding linear brightness back to sRGB. */
+        private static final int ENCODE_STEPS = 4096;
+
+        /* The linear light of every channel value, between 0 and 255, times the channel's weight. */
+        private static final double[] RED = channelTable(PixelSource.RED_FACTOR);
+        private static final double[] GREEN = channelTable(PixelSource.GREEN_FACTOR);
+        private static final double[] BLUE = channelTable(PixelSource.BLUE_FACTOR);
+
+        /* The sRGB encoding of linear brightness at every step between 0 and 1. */
+        private static final double[] ENCODED = encodeTable();
+
+        private static double[] channelTable(double factor) {
+            double[] table = new double[MAX_CHANNEL + 1];
+            for (int value = 0; value <= MAX_CHANNEL; value++) {
+                table[value] = factor * MAX_CHANNEL * toLinear((double) value / MAX_CHANNEL);
+            }
+            return table;
+        }
+
+        private static double[] encodeTable() {
+            double[] table = new double[ENCODE_STEPS + 1];
+            for (int step = 0; step <= ENCODE_STEPS; step++) {
+                table[step] = toSrgb((double) step / ENCODE_STEPS);
+            }
+            return table;
+        }
+
+        /* The sRGB transfer functions, on values between 0 and 1. */
+        private static double toLinear(double encoded) {
+            return encoded <= 0.04045 ? encoded / 12.92 : Math.pow((encoded + 0.055) / 1.055, 2.4);
+        }
+
+        private static double toSrgb(double linear) {
+            return linear <= 0.0031308 ? linear * 12.92 : 1.055 * Math.pow(linear, 1 / 2.4) - 0.055;
+        }
+    }
+
+    /**
+     * Calculates the grayscale brightness of a color.
+     *
+     * @param red   The red component, between 0 and 255.
+     * @param green The green component, between 0 and 255.
+     * @param blue  The blue component, between 0 and 255.
+     * @return The brightness, between 0 and 255.
+     */
+    public abstract double gray(int red, int green, int blue);
+
+    /**
+     * Converts the average brightness of a sub-image to the brightness it is matched by.
+     *
+     * @param brightness The normalized average of the gray of the pixels, between 0 and 1.
+     * @return The normalized brightness of the sub-image.
+     */
+    public abstract double encode(double brightness);
+}
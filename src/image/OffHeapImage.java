@@ -0,0 +1,297 @@
+package image;
+
+import pipeline_stats.StageStats;
+import pipeline_stats.StageTimer;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Iterator;
+
+/**
+ * An image kept outside the Java heap, for scans too large for on-heap arrays. The luminance of
+ * every pixel, and optionally its RGB color, is stored in direct buffers of whole rows (tiles),
+ * so no single buffer exceeds the size a buffer can address. The file is decoded in bands of
+ * rows, so the heap only ever holds one band.
+ *
+ * The buffers are released as soon as the image is closed, rather than whenever the garbage
+ * collector finds them, where the JVM allows it.
+ *
+ * @author inbar.el and stavzok
+ */
+public class OffHeapImage implements PixelSource {
+
+    /* Bytes per pixel of the luminance and RGB planes. */
+    private static final int LUMINANCE_BYTES = Float.BYTES;
+    private static final int RGB_BYTES = 3;
+
+    /* Largest tile of a plane, in bytes. */
+    private static final long MAX_TILE_BYTES = 1L << 30;
+
+    /* Pixels decoded at a time, bounding the heap used while reading. */
+    private static final long BAND_PIXELS = 1L << 22;
+
+    private static final String UNSUPPORTED_FILE = "Unsupported image file: ";
+    private static final String CLOSED = "The image was closed";
+
+    /* Releases a direct buffer immediately, or null if the JVM doesn't allow it. */
+    private static final BufferReleaser RELEASER = findReleaser();
+
+    private final int width;
+    private final int height;
+
+    /* How the luminance plane was calculated from the colors. */
+    private final Luminance luminance;
+
+    /* Number of rows in every tile but possibly the last. */
+    private final int tileRows;
+
+    /* The tiles of the luminance plane, and of the RGB plane or null if it isn't kept. */
+    private ByteBuffer[] luminanceTiles;
+    private ByteBuffer[] rgbTiles;
+
+    /* Releases a direct buffer. */
+    private interface BufferReleaser {
+        void release(ByteBuffer buffer) throws ReflectiveOperationException;
+    }
+
+    /*
+     * Allocates the planes of an image.
+     */
+    private OffHeapImage(int width, int height, boolean keepRgb, Luminance luminance) {
+        this.width = width;
+        this.height = height;
+        this.luminance = luminance;
+        this.tileRows = (int) Math.max(1, Math.min(height, MAX_TILE_BYTES / ((long) width * LUMINANCE_BYTES)));
+        int tiles = (height + tileRows - 1) / tileRows;
+        luminanceTiles = new ByteBuffer[tiles];
+        rgbTiles = keepRgb ? new ByteBuffer[tiles] : null;
+        for (int tile = 0; tile < tiles; tile++) {
+            int rows = Math.min(tileRows, height - tile * tileRows);
+            luminanceTiles[tile] = ByteBuffer.allocateDirect(rows * width * LUMINANCE_BYTES)
+                    .order(ByteOrder.nativeOrder());
+            if (keepRgb) {
+                rgbTiles[tile] = ByteBuffer.allocateDirect(rows * width * RGB_BYTES);
+            }
+        }
+    }
+
+    /**
+     * Decodes an image file into off-heap planes.
+     *
+     * @param filename The image file.
+     * @param keepRgb  Whether to keep the RGB colors as well as the luminance.
+     * @return The decoded image.
+     * @throws IOException If the file can't be read.
+     */
+    public static OffHeapImage read(String filename, boolean keepRgb) throws IOException {
+        return read(filename, keepRgb, Cancellation.NEVER);
+    }
+
+    /**
+     * Decodes an image file into off-heap planes, checking for cancellation between bands.
+     * The planes are released if the decoding is cancelled.
+     *
+     * @param filename     The image file.
+     * @param keepRgb      Whether to keep the RGB colors as well as the luminance.
+     * @param cancellation Checked before every band.
+     * @return The decoded image.
+     * @throws IOException If the file can't be read.
+     * @throws java.util.concurrent.CancellationException If the decoding is cancelled.
+     */
+    public static OffHeapImage read(String filename, boolean keepRgb, Cancellation cancellation)
+            throws IOException {
+        return read(filename, keepRgb, Luminance.GAMMA_ENCODED, cancellation);
+    }
+
+    /**
+     * Decodes an image file into off-heap planes, calculating the luminance plane in the given
+     * way and checking for cancellation between bands. The planes are released if the decoding
+     * is cancelled.
+     *
+     * @param filename     The image file.
+     * @param keepRgb      Whether to keep the RGB colors as well as the luminance.
+     * @param luminance    How the luminance of every pixel is calculated from its color.
+     * @param cancellation Checked before every band.
+     * @return The decoded image.
+     * @throws IOException If the file can't be read.
+     * @throws java.util.concurrent.CancellationException If the decoding is cancelled.
+     */
+    public static OffHeapImage read(String filename, boolean keepRgb, Luminance luminance,
+                                    Cancellation cancellation) throws IOException {
+        try (StageTimer timer = StageStats.start(StageStats.Stage.DECODE);
+             ImageInputStream stream = ImageIO.createImageInputStream(new File(filename))) {
+            Iterator<ImageReader> readers = stream == null ? null : ImageIO.getImageReaders(stream);
+            if (readers == null || !readers.hasNext()) {
+                throw new IOException(UNSUPPORTED_FILE + filename);
+            }
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(stream, true, true);
+                OffHeapImage image = new OffHeapImage(reader.getWidth(0), reader.getHeight(0), keepRgb,
+                        luminance);
+                try {
+                    image.decode(reader, cancellation);
+                } catch (IOException | RuntimeException e) {
+                    image.close();
+                    throw e;
+                }
+                timer.image(image.width, image.height).cells((long) image.width * image.height);
+                return image;
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+
+    /*
+     * Decodes the image band by band into the planes.
+     */
+    private void decode(ImageReader reader, Cancellation cancellation) throws IOException {
+        int bandRows = (int) Math.max(1, Math.min(height, BAND_PIXELS / width));
+        int[] rgb = new int[bandRows * width];
+        ImageReadParam param = reader.getDefaultReadParam();
+        for (int firstRow = 0; firstRow < height; firstRow += bandRows) {
+            cancellation.check();
+            int rows = Math.min(bandRows, height - firstRow);
+            param.setSourceRegion(new Rectangle(0, firstRow, width, rows));
+            BufferedImage band = reader.read(0, param);
+            band.getRGB(0, 0, width, rows, rgb, 0, width);
+            for (int i = 0; i < rows; i++) {
+                for (int col = 0; col < width; col++) {
+                    setPixel(firstRow + i, col, rgb[i * width + col]);
+                }
+            }
+        }
+    }
+
+    /*
+     * Stores the luminance, and the color if kept, of a pixel.
+     */
+    private void setPixel(int row, int col, int rgb) {
+        int red = (rgb >> 16) & 0xFF;
+        int green = (rgb >> 8) & 0xFF;
+        int blue = rgb & 0xFF;
+        int tile = row / tileRows;
+        int pixel = (row - tile * tileRows) * width + col;
+        luminanceTiles[tile].putFloat(pixel * LUMINANCE_BYTES, (float) luminance.gray(red, green, blue));
+        if (rgbTiles != null) {
+            ByteBuffer rgbTile = rgbTiles[tile];
+            rgbTile.put(pixel * RGB_BYTES, (byte) red);
+            rgbTile.put(pixel * RGB_BYTES + 1, (byte) green);
+            rgbTile.put(pixel * RGB_BYTES + 2, (byte) blue);
+        }
+    }
+
+    @Override
+    public int getWidth() {
+        return width;
+    }
+
+    @Override
+    public int getHeight() {
+        return height;
+    }
+
+    @Override
+    public Luminance getLuminance() {
+        return luminance;
+    }
+
+    @Override
+    public double getGray(int row, int col) {
+        if (luminanceTiles == null) {
+            throw new IllegalStateException(CLOSED);
+        }
+        int tile = row / tileRows;
+        return luminanceTiles[tile].getFloat(((row - tile * tileRows) * width + col) * LUMINANCE_BYTES);
+    }
+
+    @Override
+    public void readGrayRow(int row, int col, int count, float[] destination, int offset) {
+        if (luminanceTiles == null) {
+            throw new IllegalStateException(CLOSED);
+        }
+        int tile = row / tileRows;
+        // A view shares the buffer, so the absolute bulk read doesn't disturb other threads
+        luminanceTiles[tile].asFloatBuffer().get((row - tile * tileRows) * width + col, destination, offset, count);
+    }
+
+    /**
+     * @return True if the RGB colors were kept.
+     */
+    public boolean hasRgb() {
+        return rgbTiles != null;
+    }
+
+    /**
+     * Retrieves the color of a pixel. Only available if the colors were kept.
+     *
+     * @param row The row of the pixel.
+     * @param col The column of the pixel.
+     * @return The color as 0xRRGGBB.
+     */
+    public int getRGB(int row, int col) {
+        if (rgbTiles == null) {
+            throw new IllegalStateException(luminanceTiles == null ? CLOSED : "RGB colors were not kept");
+        }
+        int tile = row / tileRows;
+        int index = ((row - tile * tileRows) * width + col) * RGB_BYTES;
+        ByteBuffer rgbTile = rgbTiles[tile];
+        return (rgbTile.get(index) & 0xFF) << 16 | (rgbTile.get(index + 1) & 0xFF) << 8 |
+                (rgbTile.get(index + 2) & 0xFF);
+    }
+
+    /**
+     * Releases the off-heap memory of the image. The image must not be in use by another thread.
+     */
+    @Override
+    public void close() {
+        release(luminanceTiles);
+        release(rgbTiles);
+        luminanceTiles = null;
+        rgbTiles = null;
+    }
+
+    /*
+     * Releases the given buffers now if possible, otherwise leaves them to the garbage collector.
+     */
+    private static void release(ByteBuffer[] buffers) {
+        if (buffers == null || RELEASER == null) {
+            return;
+        }
+        for (ByteBuffer buffer : buffers) {
+            try {
+                RELEASER.release(buffer);
+            } catch (ReflectiveOperationException e) {
+                return;
+            }
+        }
+    }
+
+    /*
+     * Finds a way to release direct buffers immediately. Java 17 has no public API for it,
+     * so the cleaner of the buffer is invoked through sun.misc.Unsafe where available.
+     */
+    private static BufferReleaser findReleaser() {
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Field field = unsafeClass.getDeclaredField("theUnsafe");
+            field.setAccessible(true);
+            Object unsafe = field.get(null);
+            Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+            return buffer -> invokeCleaner.invoke(unsafe, buffer);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            return null;
+        }
+    }
+}
@@ -1,24 +1,33 @@
 package image;
 
-import java.awt.*;
+import pipeline_stats.StageStats;
+import pipeline_stats.StageTimer;
+
+import java.util.Arrays;
 
 /**
  * The PaddedImage class ensures that an image's dimensions (width and height)
  * are extended to the closest power of two. It pads the image with white pixels
- * when necessary to meet the new dimensions.
+ * when necessary to meet the new dimensions. The padding isn't stored: pixels outside
+ * the centered original are reported as white, so padding costs no memory.
  *
  * @author inbar.el amd stavzok
  */
-public class PaddedImage{
+public class PaddedImage implements PixelSource {
 
-    /* The padded image with dimensions extended to powers of two. */
-    Image image;
+    /* Grayscale brightness of the white padding. */
+    static final double WHITE_GRAY = PixelSource.gray(255, 255, 255);
 
     /* The original image provided as input. */
-    Image oldImage;
+    private final PixelSource oldImage;
+
+    /* Dimensions extended to powers of two. */
+    private final int width;
+    private final int height;
 
-    /* A 2D array of Colors representing the padded pixel array. */
-    Color [] [] pixelArray;
+    /* Position of the original image within the padded one. */
+    private final int top;
+    private final int left;
 
     /**
      * Constructs a PaddedImage instance.
@@ -27,44 +36,15 @@ public class PaddedImage{
      *
      * @param oldImage The original image to be padded.
      */
-    public PaddedImage(Image oldImage) {
-        this.oldImage = oldImage;
-        int newWidth = closestPowerOfTwo(oldImage.getWidth());
-        int newHeight = closestPowerOfTwo(oldImage.getHeight());
-        // Image dimensions are already powers of two; no padding needed.
-
-        if (newWidth == oldImage.getWidth() && newHeight == oldImage.getHeight()) {
-            image = oldImage;
-        }
-        else {
-            this.pixelArray = extendPixelArray(oldImage, newWidth, newHeight);
-            image = new Image(pixelArray, newWidth, newHeight);
-        }
-    }
-
-    /*
-     * Pads the given image with white pixels to meet the specified width and height.
-     *
-     * @param oldImage The original image to be padded.
-     * @param newWidth The new width, closest power of two.
-     * @param newHeight The new height, closest power of two.
-     * @return A 2D Color array representing the padded pixel array.
-     */
-    private Color[][] extendPixelArray(Image oldImage, int newWidth, int newHeight) {
-        int diffWidth = (newWidth - oldImage.getWidth())/2;
-        int diffHeight = (newHeight - oldImage.getHeight())/2;
-        Color [][] newPixelArray = new Color[newHeight][newWidth];
-        for (int i = 0; i < newHeight; i++) {
-            for (int j = 0; j < newWidth; j++) {
-                if (i < diffHeight || i > (newHeight - diffHeight) - 1 || j <diffWidth || j > (newWidth - diffWidth) - 1 ) {
-                    newPixelArray[i][j] = new Color(255,255,255);
-                }
-                else {
-                    newPixelArray[i][j] = oldImage.getPixel(i - diffHeight,j - diffWidth);
-                }
-            }
+    public PaddedImage(PixelSource oldImage) {
+        try (StageTimer timer = StageStats.start(StageStats.Stage.PAD)) {
+            this.oldImage = oldImage;
+            this.width = closestPowerOfTwo(oldImage.getWidth());
+            this.height = closestPowerOfTwo(oldImage.getHeight());
+            this.top = (height - oldImage.getHeight()) / 2;
+            this.left = (width - oldImage.getWidth()) / 2;
+            timer.image(width, height).cells((long) width * height);
         }
-        return newPixelArray;
     }
 
     /*
@@ -82,11 +62,98 @@ public class PaddedImage{
     }
 
     /**
-     * Retrieves the padded image.
+     * @return The padded width, a power of two.
+     */
+    @Override
+    public int getWidth() {
+        return width;
+    }
+
+    /**
+     * @return The padded height, a power of two.
+     */
+    @Override
+    public int getHeight() {
+        return height;
+    }
+
+    /*
+     * @return The first row of the original image within the padded one.
+     */
+    int getTop() {
+        return top;
+    }
+
+    /*
+     * @return The first column of the original image within the padded one.
+     */
+    int getLeft() {
+        return left;
+    }
+
+    /*
+     * @return The width of the original image.
+     */
+    int getImageWidth() {
+        return oldImage.getWidth();
+    }
+
+    /*
+     * @return The height of the original image.
+     */
+    int getImageHeight() {
+        return oldImage.getHeight();
+    }
+
+    /**
+     * Retrieves the grayscale brightness of a pixel of the padded image.
      *
-     * @return The padded image with dimensions as powers of two.
+     * @param row The row of the pixel.
+     * @param col The column of the pixel.
+     * @return The brightness of the original pixel, or of white in the padding.
+     */
+    @Override
+    public double getGray(int row, int col) {
+        int oldRow = row - top;
+        int oldCol = col - left;
+        if (oldRow < 0 || oldRow >= oldImage.getHeight() || oldCol < 0 || oldCol >= oldImage.getWidth()) {
+            return WHITE_GRAY;
+        }
+        return oldImage.getGray(oldRow, oldCol);
+    }
+
+    /**
+     * Copies the grayscale brightness of consecutive pixels of a row of the padded image,
+     * filling the padding with white and copying the rest from the original image at once.
+     */
+    @Override
+    public void readGrayRow(int row, int col, int count, float[] destination, int offset) {
+        int oldRow = row - top;
+        int firstOldCol = Math.max(col, left);
+        int endOldCol = Math.min(col + count, left + oldImage.getWidth());
+        if (oldRow < 0 || oldRow >= oldImage.getHeight() || firstOldCol >= endOldCol) {
+            Arrays.fill(destination, offset, offset + count, (float) WHITE_GRAY);
+            return;
+        }
+        Arrays.fill(destination, offset, offset + firstOldCol - col, (float) WHITE_GRAY);
+        oldImage.readGrayRow(oldRow, firstOldCol - left, endOldCol - firstOldCol, destination,
+                offset + firstOldCol - col);
+        Arrays.fill(destination, offset + endOldCol - col, offset + count, (float) WHITE_GRAY);
+    }
+
+    /**
+     * @return How the brightness of the original image was calculated.
+     */
+    @Override
+    public Luminance getLuminance() {
+        return oldImage.getLuminance();
+    }
+
+    /**
+     * Releases the original image.
      */
-    public Image getImage() {
-        return image;
+    @Override
+    public void close() {
+        oldImage.close();
     }
 }
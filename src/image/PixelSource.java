@@ -0,0 +1,77 @@
+package image;
+
+/**
+ * A source of pixels that the conversion reads the grayscale brightness of. Implemented by the
+ * on-heap Image, the off-heap OffHeapImage and the padded view PaddedImage.
+ *
+ * @author inbar.el and stavzok
+ */
+public interface PixelSource extends AutoCloseable {
+
+    /* Constants for grayscale calculation based on RGB weights. */
+    double RED_FACTOR = 0.2126;
+    double GREEN_FACTOR = 0.7152;
+    double BLUE_FACTOR = 0.0722;
+
+    /**
+     * @return The width of the source in pixels.
+     */
+    int getWidth();
+
+    /**
+     * @return The height of the source in pixels.
+     */
+    int getHeight();
+
+    /**
+     * Retrieves the grayscale brightness of a pixel.
+     *
+     * @param row The row of the pixel.
+     * @param col The column of the pixel.
+     * @return The brightness, between 0 and 255.
+     */
+    double getGray(int row, int col);
+
+    /**
+     * Copies the grayscale brightness of consecutive pixels of a row into an array. Sources
+     * backed by arrays or buffers override it to copy without a call per pixel.
+     *
+     * @param row         The row of the pixels.
+     * @param col         The column of the first pixel.
+     * @param count       The number of pixels.
+     * @param destination The array receiving the brightness, between 0 and 255.
+     * @param offset      The index in the array of the first pixel.
+     */
+    default void readGrayRow(int row, int col, int count, float[] destination, int offset) {
+        for (int i = 0; i < count; i++) {
+            destination[offset + i] = (float) getGray(row, col + i);
+        }
+    }
+
+    /**
+     * @return How the brightness of the pixels was calculated from their colors.
+     */
+    default Luminance getLuminance() {
+        return Luminance.GAMMA_ENCODED;
+    }
+
+    /**
+     * Releases the memory held by the source. The source can't be used afterwards.
+     * Does nothing by default.
+     */
+    @Override
+    default void close() {
+    }
+
+    /**
+     * Calculates the grayscale brightness of a color.
+     *
+     * @param red   The red component, between 0 and 255.
+     * @param green The green component, between 0 and 255.
+     * @param blue  The blue component, between 0 and 255.
+     * @return The brightness, between 0 and 255.
+     */
+    static double gray(int red, int green, int blue) {
+        return red * RED_FACTOR + green * GREEN_FACTOR + blue * BLUE_FACTOR;
+    }
+}
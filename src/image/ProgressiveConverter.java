@@ -0,0 +1,193 @@
+package image;
+
+import pipeline_stats.StageStats;
+import pipeline_stats.StageTimer;
+
+import java.util.concurrent.CancellationException;
+
+/**
+ * The ProgressiveConverter class computes the brightness grid of a padded image coarse to fine.
+ * Every level samples the pixels on a lattice twice as dense as the one before, adding only the
+ * pixels the earlier levels skipped, and is reported at a resolution its samples support: the
+ * first level reads one pixel in 64 and is shown at an eighth of the resolution, the last reads
+ * the remaining pixels and gives the exact grid at the full resolution. All levels together
+ * read every pixel once.
+ *
+ * @author inbar.el and stavzok
+ */
+public class ProgressiveConverter {
+
+    /* Maximum number of levels, including the final one. */
+    private static final int MAX_LEVELS = 4;
+
+    /* The maximum possible RGB score for normalization. */
+    private static final int MAX_RGB_SCORE = 255;
+
+    private final PaddedImage paddedImage;
+
+    /* The final resolution and the number of levels leading to it. */
+    private final int resolution;
+    private final int levels;
+
+    /* Size in pixels of a sub-image at the final resolution. */
+    private final int subImageWidth;
+    private final int subImageHeight;
+
+    /* Sum and number of the pixels sampled so far in every final sub-image, row by row. */
+    private final double[] graySums;
+    private final int[] counts;
+
+    /* The next level to compute. */
+    private int nextLevel;
+
+    /**
+     * Constructs a progressive conversion. No pixels are read until the first level is requested.
+     *
+     * @param paddedImage The padded image to be processed.
+     * @param resolution  The final number of columns, a power of two.
+     */
+    public ProgressiveConverter(PaddedImage paddedImage, int resolution) {
+        this.paddedImage = paddedImage;
+        this.resolution = resolution;
+        this.levels = Math.min(MAX_LEVELS, Integer.numberOfTrailingZeros(resolution) + 1);
+        this.subImageWidth = paddedImage.getWidth() / resolution;
+        this.subImageHeight = paddedImage.getHeight() / resolution;
+        this.graySums = new double[resolution * resolution];
+        this.counts = new int[resolution * resolution];
+    }
+
+    /**
+     * @return True if there are levels left to compute.
+     */
+    public boolean hasNext() {
+        return nextLevel < levels;
+    }
+
+    /**
+     * @return True if the next level is the exact grid at the final resolution.
+     */
+    public boolean isNextFinal() {
+        return nextLevel == levels - 1;
+    }
+
+    /**
+     * Computes the next level.
+     *
+     * @return A converter holding the grid of the level, at the resolution of the level.
+     */
+    public ImageConverter next() {
+        return next(Cancellation.NEVER);
+    }
+
+    /**
+     * Computes the next level, checking for cancellation every few rows. A cancelled level
+     * leaves partial sums behind, so no further levels can be computed after it.
+     *
+     * @param cancellation Checked every few sampled rows.
+     * @return A converter holding the grid of the level, at the resolution of the level.
+     * @throws java.util.concurrent.CancellationException If the level is cancelled.
+     */
+    public ImageConverter next(Cancellation cancellation) {
+        int shift = levels - 1 - nextLevel;
+        int step = 1 << shift;
+        int levelResolution = resolution >> shift;
+        double[] grid;
+        try (StageTimer timer = StageStats.start(StageStats.Stage.BRIGHTNESS)) {
+            timer.image(paddedImage.getWidth(), paddedImage.getHeight()).resolution(levelResolution)
+                    .cells((long) levelResolution * levelResolution);
+            try {
+                sample(step, nextLevel == 0, cancellation);
+            }
+            catch (CancellationException e) {
+                nextLevel = levels;
+                throw e;
+            }
+            grid = levelGrid(step);
+        }
+        nextLevel++;
+        return new ImageConverter(paddedImage, levelResolution, grid);
+    }
+
+    /**
+     * Converts an image at the finest level finished before a deadline. The levels are computed
+     * coarse to fine until the final one is done or the deadline passes, and the last finished
+     * level is returned, so a late conversion falls back to a lower resolution.
+     *
+     * @param paddedImage  The padded image to be processed.
+     * @param resolution   The wanted number of columns, a power of two.
+     * @param cancellation The cancellation holding the deadline.
+     * @return A converter at the wanted resolution, or at the finest level finished in time.
+     * @throws CancellationException If no level finished in time, or the conversion was
+     *                               cancelled other than by its deadline.
+     */
+    public static ImageConverter convertWithin(PaddedImage paddedImage, int resolution,
+                                               Cancellation cancellation) {
+        ProgressiveConverter converter = new ProgressiveConverter(paddedImage, resolution);
+        ImageConverter finest = null;
+        while (converter.hasNext()) {
+            try {
+                finest = converter.next(cancellation);
+            }
+            catch (CancellationException e) {
+                if (finest == null || !cancellation.isPastDeadline()) {
+                    throw e;
+                }
+                break;
+            }
+        }
+        return finest;
+    }
+
+    /*
+     * Adds the pixels on the lattice of the given step that weren't sampled by the coarser
+     * lattice before it.
+     *
+     * @param step         The distance between sampled pixels.
+     * @param first        Whether this is the first lattice, so no pixels were sampled before.
+     * @param cancellation Checked every few sampled rows.
+     */
+    private void sample(int step, boolean first, Cancellation cancellation) {
+        int coarseMask = 2 * step - 1;
+        for (int row = 0; row < paddedImage.getHeight(); row += step) {
+            if ((row / step) % Cancellation.CHECK_INTERVAL == 0) {
+                cancellation.check();
+            }
+            boolean onCoarseRow = (row & coarseMask) == 0;
+            int rowOffset = (row / subImageHeight) * resolution;
+            for (int col = 0; col < paddedImage.getWidth(); col += step) {
+                if (!first && onCoarseRow && (col & coarseMask) == 0) {
+                    continue;
+                }
+                int cell = rowOffset + col / subImageWidth;
+                graySums[cell] += paddedImage.getGray(row, col);
+                counts[cell]++;
+            }
+        }
+    }
+
+    /*
+     * Builds the grid of the current samples, merging blocks of final sub-images.
+     *
+     * @param block The number of final sub-images per side of a level sub-image.
+     * @return The normalized brightness of every level sub-image, row by row.
+     */
+    private double[] levelGrid(int block) {
+        int levelResolution = resolution / block;
+        double[] grid = new double[levelResolution * levelResolution];
+        Luminance luminance = paddedImage.getLuminance();
+        for (int row = 0; row < levelResolution; row++) {
+            for (int col = 0; col < levelResolution; col++) {
+                double sum = 0;
+                long count = 0;
+                for (int i = row * block; i < (row + 1) * block; i++) {
+                    for (int j = col * block; j < (col + 1) * block; j++) {
+                        sum += graySums[i * resolution + j];
+                        count += counts[i * resolution + j];
+                    }
+                }
+                grid[row * levelResolution + col] = luminance.encode(sum / (count * MAX_RGB_SCORE));
+            }
+        }
+        return grid;
+    }
+}
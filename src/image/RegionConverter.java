@@ -0,0 +1,205 @@
+package image;
+
+import pipeline_stats.StageStats;
+import pipeline_stats.StageTimer;
+
+import java.awt.*;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The RegionConverter class converts regions of an image, such as a crop or a zoom, without
+ * reading the pixels of the rest of it. The image is divided into fixed-size tiles, and the
+ * first conversion touching a tile reads its pixels once into a summed-area table, from which
+ * the brightness of any rectangle within the tile is found in constant time. The tables are
+ * cached, least recently used evicted first, so panning to an overlapping region or changing
+ * the resolution reuses them instead of reading the pixels again.
+ *
+ * The class is thread-safe, so regions can be converted ahead of time on another thread.
+ *
+ * @author inbar.el and stavzok
+ */
+public class RegionConverter {
+
+    /**
+     * Width and height in pixels of a tile, except at the right and bottom edges of the image.
+     */
+    public static final int TILE_SIZE = 64;
+
+    /* The maximum possible RGB score for normalization. */
+    private static final int MAX_RGB_SCORE = 255;
+
+    /* Approximate size in bytes of a full tile's table. */
+    private static final long TILE_BYTES = (long) (TILE_SIZE + 1) * (TILE_SIZE + 1) * Double.BYTES;
+
+    private static final double BYTES_PER_KILOBYTE = 1024.0;
+
+    /* The image holding the pixels. */
+    private final PixelSource source;
+
+    /* The number of tiles kept. */
+    private final int maxTiles;
+
+    /*
+     * Summed-area tables of the tiles by tile row and column, in access order. Entry (i, j) of a
+     * table is the sum of the gray of the pixels above row i and left of column j of the tile.
+     */
+    private final LinkedHashMap<Long, double[]> tiles = new LinkedHashMap<>(16, 0.75f, true);
+
+    private long tileHits;
+    private long tileMisses;
+    private long evictions;
+
+    /**
+     * Constructs a converter of regions of an image. No pixels are read until a region is converted.
+     *
+     * @param source     The image holding the pixels, which must stay open while the converter is used.
+     * @param byteBudget The approximate number of bytes the cached tiles may hold.
+     */
+    public RegionConverter(PixelSource source, long byteBudget) {
+        this.source = source;
+        this.maxTiles = (int) Math.max(1, Math.min(Integer.MAX_VALUE, byteBudget / TILE_BYTES));
+    }
+
+    /**
+     * Converts a region of the image. The region is padded like a whole image would be, so the
+     * result is the same as converting an image holding only the region, up to rounding.
+     *
+     * @param region       The region, in image coordinates, which must lie within the image.
+     * @param resolution   The number of columns for the ASCII art resolution.
+     * @param cancellation Checked every row of sub-images and before reading a tile.
+     * @return A converter holding the grid of the region.
+     * @throws IllegalArgumentException If the region is empty or exceeds the image.
+     * @throws java.util.concurrent.CancellationException If the conversion is cancelled.
+     */
+    public synchronized ImageConverter convert(Rectangle region, int resolution, Cancellation cancellation) {
+        PaddedImage paddedImage = new PaddedImage(new RegionImage(source, region));
+        int subImageWidth = paddedImage.getWidth() / resolution;
+        int subImageHeight = paddedImage.getHeight() / resolution;
+        int gridCols = paddedImage.getWidth() / subImageWidth;
+        int gridRows = paddedImage.getHeight() / subImageHeight;
+        double[] brightnessGrid = new double[gridRows * gridCols];
+        try (StageTimer timer = StageStats.start(StageStats.Stage.BRIGHTNESS)) {
+            timer.image(region.width, region.height).resolution(resolution).cells(brightnessGrid.length);
+            for (int row = 0; row < gridRows; row++) {
+                cancellation.check();
+                for (int col = 0; col < gridCols; col++) {
+                    brightnessGrid[row * gridCols + col] = subImageBrightness(paddedImage, region,
+                            row * subImageHeight, col * subImageWidth, subImageHeight, subImageWidth,
+                            cancellation);
+                }
+            }
+        }
+        return new ImageConverter(paddedImage, resolution, brightnessGrid);
+    }
+
+    /*
+     * Calculates the brightness of a sub-image of a padded region: the part within the region is
+     * summed from the tiles, the rest is white padding.
+     *
+     * @param paddedImage The padded region.
+     * @param region      The region, in image coordinates.
+     * @param row         The first row of the sub-image, in padded coordinates.
+     * @param col         The first column of the sub-image, in padded coordinates.
+     * @param height      The height of the sub-image.
+     * @param width       The width of the sub-image.
+     * @param cancellation Checked before reading a tile.
+     * @return The normalized grayscale brightness of the sub-image.
+     */
+    private double subImageBrightness(PaddedImage paddedImage, Rectangle region, int row, int col,
+                                      int height, int width, Cancellation cancellation) {
+        int firstRow = Math.max(row, paddedImage.getTop());
+        int endRow = Math.min(row + height, paddedImage.getTop() + region.height);
+        int firstCol = Math.max(col, paddedImage.getLeft());
+        int endCol = Math.min(col + width, paddedImage.getLeft() + region.width);
+        long area = (long) width * height;
+        double graySum;
+        if (firstRow < endRow && firstCol < endCol) {
+            long inside = (long) (endRow - firstRow) * (endCol - firstCol);
+            graySum = PaddedImage.WHITE_GRAY * (area - inside) +
+                    graySum(region.y + firstRow - paddedImage.getTop(), region.x + firstCol - paddedImage.getLeft(),
+                            endRow - firstRow, endCol - firstCol, cancellation);
+        }
+        else {
+            graySum = PaddedImage.WHITE_GRAY * area;
+        }
+        return source.getLuminance().encode(graySum / (area * MAX_RGB_SCORE));
+    }
+
+    /**
+     * Sums the grayscale brightness of a rectangle of the image, reading only the tiles that
+     * aren't cached yet.
+     *
+     * @param row          The first row of the rectangle.
+     * @param col          The first column of the rectangle.
+     * @param height       The height of the rectangle.
+     * @param width        The width of the rectangle.
+     * @param cancellation Checked before reading a tile.
+     * @return The sum of the brightness of the pixels, each between 0 and 255.
+     * @throws java.util.concurrent.CancellationException If the sum is cancelled.
+     */
+    public synchronized double graySum(int row, int col, int height, int width, Cancellation cancellation) {
+        double sum = 0;
+        for (int tileRow = row / TILE_SIZE; tileRow <= (row + height - 1) / TILE_SIZE; tileRow++) {
+            int tileTop = tileRow * TILE_SIZE;
+            int firstRow = Math.max(row, tileTop) - tileTop;
+            int endRow = Math.min(row + height, tileTop + TILE_SIZE) - tileTop;
+            for (int tileCol = col / TILE_SIZE; tileCol <= (col + width - 1) / TILE_SIZE; tileCol++) {
+                int tileLeft = tileCol * TILE_SIZE;
+                int firstCol = Math.max(col, tileLeft) - tileLeft;
+                int endCol = Math.min(col + width, tileLeft + TILE_SIZE) - tileLeft;
+                double[] table = tile(tileRow, tileCol, cancellation);
+                int stride = Math.min(TILE_SIZE, source.getWidth() - tileLeft) + 1;
+                sum += table[endRow * stride + endCol] - table[firstRow * stride + endCol] -
+                        table[endRow * stride + firstCol] + table[firstRow * stride + firstCol];
+            }
+        }
+        return sum;
+    }
+
+    /*
+     * Retrieves the summed-area table of a tile, reading its pixels if it isn't cached.
+     */
+    private double[] tile(int tileRow, int tileCol, Cancellation cancellation) {
+        long key = (long) tileRow << Integer.SIZE | tileCol;
+        double[] table = tiles.get(key);
+        if (table != null) {
+            tileHits++;
+            return table;
+        }
+        cancellation.check();
+        tileMisses++;
+        int top = tileRow * TILE_SIZE;
+        int left = tileCol * TILE_SIZE;
+        int height = Math.min(TILE_SIZE, source.getHeight() - top);
+        int width = Math.min(TILE_SIZE, source.getWidth() - left);
+        int stride = width + 1;
+        table = new double[(height + 1) * stride];
+        for (int i = 0; i < height; i++) {
+            double rowSum = 0;
+            for (int j = 0; j < width; j++) {
+                rowSum += source.getGray(top + i, left + j);
+                table[(i + 1) * stride + j + 1] = table[i * stride + j + 1] + rowSum;
+            }
+        }
+        tiles.put(key, table);
+        if (tiles.size() > maxTiles) {
+            Iterator<Map.Entry<Long, double[]>> eldest = tiles.entrySet().iterator();
+            eldest.next();
+            eldest.remove();
+            evictions++;
+        }
+        return table;
+    }
+
+    /**
+     * @return A line describing the hits, misses and memory use of the tile cache.
+     */
+    @Override
+    public synchronized String toString() {
+        return String.format("Tiles: %d hits, %d misses, %d cached, evictions: %d, memory: %.1f of %.1f KB",
+                tileHits, tileMisses, tiles.size(), evictions, tiles.size() * TILE_BYTES / BYTES_PER_KILOBYTE,
+                maxTiles * TILE_BYTES / BYTES_PER_KILOBYTE);
+    }
+}
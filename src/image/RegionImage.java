@@ -0,0 +1,65 @@
+package image;
+
+import java.awt.*;
+
+/**
+ * A view of a rectangular region of another pixel source. The pixels aren't copied, and closing
+ * the view leaves the source open.
+ *
+ * @author inbar.el and stavzok
+ */
+public class RegionImage implements PixelSource {
+
+    private final PixelSource source;
+
+    /* The region, in the coordinates of the source. */
+    private final Rectangle region;
+
+    /**
+     * Constructs a view of a region of a source.
+     *
+     * @param source The source holding the pixels.
+     * @param region The region, which must lie within the source.
+     * @throws IllegalArgumentException If the region is empty or exceeds the source.
+     */
+    public RegionImage(PixelSource source, Rectangle region) {
+        if (region.isEmpty() ||
+                !new Rectangle(0, 0, source.getWidth(), source.getHeight()).contains(region)) {
+            throw new IllegalArgumentException("Region exceeds the image: " + region);
+        }
+        this.source = source;
+        this.region = new Rectangle(region);
+    }
+
+    @Override
+    public int getWidth() {
+        return region.width;
+    }
+
+    @Override
+    public int getHeight() {
+        return region.height;
+    }
+
+    @Override
+    public double getGray(int row, int col) {
+        return source.getGray(region.y + row, region.x + col);
+    }
+
+    @Override
+    public void readGrayRow(int row, int col, int count, float[] destination, int offset) {
+        source.readGrayRow(region.y + row, region.x + col, count, destination, offset);
+    }
+
+    @Override
+    public Luminance getLuminance() {
+        return source.getLuminance();
+    }
+
+    /**
+     * @return A copy of the region, in the coordinates of the source.
+     */
+    public Rectangle getRegion() {
+        return new Rectangle(region);
+    }
+}
@@ -0,0 +1,194 @@
+package image;
+
+import pipeline_stats.StageStats;
+import pipeline_stats.StageTimer;
+
+import java.util.Arrays;
+import java.util.stream.IntStream;
+
+/**
+ * The SubCellConverter class splits every sub-image of a padded image at a given resolution
+ * into a small grid of samples, such as the 2x4 dots of a braille char, and calculates the
+ * grayscale brightness of every sample. The pixels are read once, a row at a time, and the rows
+ * of sub-images run in parallel on large images.
+ *
+ * A sub-image smaller than its grid of samples repeats its pixels, so every sample holds at
+ * least one pixel.
+ *
+ * @author inbar.el and stavzok
+ */
+public class SubCellConverter {
+
+    /* Number of pixels from which the rows of sub-images run in parallel. */
+    private static final long PARALLEL_THRESHOLD = 1L << 16;
+
+    /* Pixel row of every thread, reused by its rows of sub-images. */
+    private static final ThreadLocal<float[]> ROWS = ThreadLocal.withInitial(() -> new float[0]);
+
+    /* The maximum possible RGB score for normalization. */
+    private static final int MAX_RGB_SCORE = 255;
+
+    /* Number of sample rows and columns of every sub-image. */
+    private final int sampleRows;
+    private final int sampleCols;
+
+    /* Number of sub-image rows and columns in the grid. */
+    private final int gridRows;
+    private final int gridCols;
+
+    /* The brightness of every sample, sub-image by sub-image, each row by row. */
+    private final double[] samples;
+
+    /* The mean brightness of the original image, without the padding. */
+    private final double imageBrightness;
+
+    /**
+     * Calculates the brightness of the samples of every sub-image of a padded image.
+     *
+     * @param paddedImage  The padded image to be processed.
+     * @param resolution   The number of sub-image columns.
+     * @param sampleCols   The number of sample columns of every sub-image.
+     * @param sampleRows   The number of sample rows of every sub-image.
+     * @param cancellation Checked before every row of sub-images.
+     * @throws java.util.concurrent.CancellationException If the conversion is cancelled.
+     */
+    public SubCellConverter(PaddedImage paddedImage, int resolution, int sampleCols, int sampleRows,
+                            Cancellation cancellation) {
+        this.sampleRows = sampleRows;
+        this.sampleCols = sampleCols;
+        int width = paddedImage.getWidth();
+        int height = paddedImage.getHeight();
+        int subImageWidth = width / resolution;
+        int subImageHeight = height / resolution;
+        this.gridCols = width / subImageWidth;
+        this.gridRows = height / subImageHeight;
+        this.samples = new double[gridRows * gridCols * sampleRows * sampleCols];
+
+        // The pixel columns of every sample column of the row, the same for every pixel row
+        int[] colStarts = new int[gridCols * sampleCols];
+        int[] colEnds = new int[gridCols * sampleCols];
+        for (int i = 0; i < colStarts.length; i++) {
+            int cellLeft = (i / sampleCols) * subImageWidth;
+            colStarts[i] = cellLeft + (i % sampleCols) * subImageWidth / sampleCols;
+            colEnds[i] = Math.max(colStarts[i] + 1, cellLeft + (i % sampleCols + 1) * subImageWidth / sampleCols);
+        }
+        double[] rowSums = new double[gridRows];
+        try (StageTimer timer = StageStats.start(StageStats.Stage.BRIGHTNESS)) {
+            timer.image(width, height).resolution(resolution).cells(samples.length);
+            IntStream gridRowStream = IntStream.range(0, gridRows);
+            if ((long) width * height >= PARALLEL_THRESHOLD) {
+                gridRowStream = gridRowStream.parallel();
+            }
+            gridRowStream.forEach(gridRow -> {
+                cancellation.check();
+                rowSums[gridRow] = sampleGridRow(paddedImage, gridRow, subImageHeight, colStarts, colEnds);
+            });
+        }
+        double graySum = 0;
+        for (double rowSum : rowSums) {
+            graySum += rowSum;
+        }
+        // The padding is white, so the image's own sum is what is left without it
+        long imageArea = (long) paddedImage.getImageWidth() * paddedImage.getImageHeight();
+        graySum -= PaddedImage.WHITE_GRAY * ((long) width * height - imageArea);
+        this.imageBrightness = paddedImage.getLuminance().encode(graySum / (imageArea * MAX_RGB_SCORE));
+    }
+
+    /*
+     * Calculates the brightness of the samples of a row of sub-images.
+     *
+     * @param paddedImage    The padded image.
+     * @param gridRow        The row of sub-images.
+     * @param subImageHeight The height of every sub-image.
+     * @param colStarts      The first pixel column of every sample column of the row.
+     * @param colEnds        The end pixel column of every sample column of the row.
+     * @return The sum of the gray of the pixels of the row of sub-images, every pixel counted once.
+     */
+    private double sampleGridRow(PaddedImage paddedImage, int gridRow, int subImageHeight,
+                                 int[] colStarts, int[] colEnds) {
+        int width = paddedImage.getWidth();
+        float[] pixels = ROWS.get();
+        if (pixels.length < width) {
+            pixels = new float[width];
+            ROWS.set(pixels);
+        }
+        int cellTop = gridRow * subImageHeight;
+        int cellSamples = sampleRows * sampleCols;
+        Luminance luminance = paddedImage.getLuminance();
+        double[] sums = new double[colStarts.length];
+        double graySum = 0;
+        int uncountedRow = cellTop;
+        for (int sampleRow = 0; sampleRow < sampleRows; sampleRow++) {
+            int firstRow = cellTop + sampleRow * subImageHeight / sampleRows;
+            int endRow = Math.max(firstRow + 1, cellTop + (sampleRow + 1) * subImageHeight / sampleRows);
+            Arrays.fill(sums, 0);
+            for (int row = firstRow; row < endRow; row++) {
+                paddedImage.readGrayRow(row, 0, width, pixels, 0);
+                for (int i = 0; i < sums.length; i++) {
+                    double sum = 0;
+                    for (int col = colStarts[i]; col < colEnds[i]; col++) {
+                        sum += pixels[col];
+                    }
+                    sums[i] += sum;
+                }
+                // Sub-images shorter than their samples read some rows twice
+                if (row == uncountedRow) {
+                    for (int col = 0; col < width; col++) {
+                        graySum += pixels[col];
+                    }
+                    uncountedRow++;
+                }
+            }
+            for (int i = 0; i < sums.length; i++) {
+                int cell = gridRow * gridCols + i / sampleCols;
+                samples[cell * cellSamples + sampleRow * sampleCols + i % sampleCols] = luminance.encode(
+                        sums[i] / ((double) (endRow - firstRow) * (colEnds[i] - colStarts[i]) * MAX_RGB_SCORE));
+            }
+        }
+        return graySum;
+    }
+
+    /**
+     * Retrieves the brightness of the samples. The array must not be changed.
+     *
+     * @return The normalized brightness of every sample, sub-image by sub-image, each row by row.
+     */
+    public double[] getSamples() {
+        return samples;
+    }
+
+    /**
+     * @return The mean normalized brightness of the image, without its padding.
+     */
+    public double getImageBrightness() {
+        return imageBrightness;
+    }
+
+    /**
+     * @return The number of sample rows of every sub-image.
+     */
+    public int getSampleRows() {
+        return sampleRows;
+    }
+
+    /**
+     * @return The number of sample columns of every sub-image.
+     */
+    public int getSampleCols() {
+        return sampleCols;
+    }
+
+    /**
+     * @return The number of sub-image rows.
+     */
+    public int getGridRows() {
+        return gridRows;
+    }
+
+    /**
+     * @return The number of sub-image columns.
+     */
+    public int getGridCols() {
+        return gridCols;
+    }
+}
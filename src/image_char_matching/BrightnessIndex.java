@@ -0,0 +1,138 @@
+package image_char_matching;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Map;
+
+/**
+ * The BrightnessIndex class finds the characters of a charset closest to a brightness by binary
+ * search over the characters sorted by brightness, so a lookup takes logarithmic time even for
+ * charsets of thousands of characters. Characters of equal brightness are ordered by their value,
+ * and the smallest of them is always the one returned.
+ *
+ * Instances are immutable and can be shared between threads.
+ *
+ * @author inbar.el and stavzok
+ */
+public class BrightnessIndex {
+
+    /* The characters, by brightness and then by value. */
+    private final char[] chars;
+
+    /* The brightness of every character, in the same order. */
+    private final double[] brightness;
+
+    /**
+     * Constructs an index of a charset.
+     *
+     * @param brightnessMap The brightness of every character.
+     */
+    public BrightnessIndex(Map<Character, Double> brightnessMap) {
+        Character[] sorted = brightnessMap.keySet().toArray(new Character[0]);
+        Arrays.sort(sorted, Comparator.comparingDouble((Character c) -> brightnessMap.get(c))
+                .thenComparing(Comparator.naturalOrder()));
+        this.chars = new char[sorted.length];
+        this.brightness = new double[sorted.length];
+        for (int i = 0; i < sorted.length; i++) {
+            chars[i] = sorted[i];
+            brightness[i] = brightnessMap.get(sorted[i]);
+        }
+    }
+
+    /**
+     * Finds the character whose brightness is closest to a target. In case of ties, the smallest
+     * character is chosen.
+     *
+     * @param target The target brightness.
+     * @return The closest character, or '\0' if the charset is empty.
+     */
+    public char nearest(double target) {
+        int up = lowerBound(target);
+        int down = lastAtMost(target);
+        if (up == chars.length && down < 0) {
+            return '\0';
+        }
+        if (up == chars.length) {
+            return chars[down];
+        }
+        if (down < 0) {
+            return chars[up];
+        }
+        double upDifference = Math.abs(brightness[up] - target);
+        double downDifference = Math.abs(brightness[down] - target);
+        if (upDifference != downDifference) {
+            return upDifference < downDifference ? chars[up] : chars[down];
+        }
+        return (char) Math.min(chars[up], chars[down]);
+    }
+
+    /**
+     * Finds the character with the smallest brightness at least a target.
+     *
+     * @param target The target brightness.
+     * @return The character, or null if all characters are darker than the target.
+     */
+    public Character roundUp(double target) {
+        int up = lowerBound(target);
+        return up == chars.length ? null : chars[up];
+    }
+
+    /**
+     * Finds the character with the largest brightness at most a target.
+     *
+     * @param target The target brightness.
+     * @return The character, or null if all characters are brighter than the target.
+     */
+    public Character roundDown(double target) {
+        int down = lastAtMost(target);
+        return down < 0 ? null : chars[down];
+    }
+
+    /**
+     * @return The number of characters in the index.
+     */
+    public int size() {
+        return chars.length;
+    }
+
+    /*
+     * Finds the first character whose brightness is at least a target, the smallest character of
+     * its brightness.
+     *
+     * @return The index of the character, or the number of characters if there is none.
+     */
+    private int lowerBound(double target) {
+        int low = 0;
+        int high = chars.length;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (brightness[middle] < target) {
+                low = middle + 1;
+            }
+            else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    /*
+     * Finds the smallest character of the largest brightness at most a target.
+     *
+     * @return The index of the character, or -1 if there is none.
+     */
+    private int lastAtMost(double target) {
+        int low = 0;
+        int high = chars.length;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (brightness[middle] <= target) {
+                low = middle + 1;
+            }
+            else {
+                high = middle;
+            }
+        }
+        return low == 0 ? -1 : lowerBound(brightness[low - 1]);
+    }
+}
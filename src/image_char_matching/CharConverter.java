@@ -2,6 +2,7 @@ package image_char_matching;
 
 import java.awt.*;
 import java.awt.image.BufferedImage;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Inspired by, and partly copied from
@@ -16,6 +17,11 @@ public class CharConverter {
     private static final double Y_OFFSET_FACTOR = 0.75;
     private static final String FONT_NAME = "Courier New";
     public static final int DEFAULT_PIXEL_RESOLUTION = 16;
+    private static final int WHITE_RGB = 0xFFFFFF;
+    private static final int BLACK_RGB = 0x000000;
+
+    /* The font at every size rendered so far, shared by all threads. */
+    private static final ConcurrentHashMap<Integer, Font> FONTS = new ConcurrentHashMap<>();
 
     /**
      * Renders a given character, according to how it looks in the font specified in the
@@ -24,25 +30,64 @@ public class CharConverter {
      */
     public static boolean[][] convertToBoolArray(char c) {
         BufferedImage img = getBufferedImage(c, FONT_NAME, DEFAULT_PIXEL_RESOLUTION);
+        int[] pixels = img.getRGB(0, 0, DEFAULT_PIXEL_RESOLUTION, DEFAULT_PIXEL_RESOLUTION,
+                null, 0, DEFAULT_PIXEL_RESOLUTION);
         boolean[][] matrix = new boolean[DEFAULT_PIXEL_RESOLUTION][DEFAULT_PIXEL_RESOLUTION];
         for(int y = 0 ; y < DEFAULT_PIXEL_RESOLUTION ; y++) {
             for(int x = 0 ; x < DEFAULT_PIXEL_RESOLUTION ; x++) {
-                matrix[y][x] = img.getRGB(x, y) == 0; //is the color black
+                matrix[y][x] = pixels[y * DEFAULT_PIXEL_RESOLUTION + x] == 0; //is the color black
             }
         }
         return matrix;
     }
 
+    /**
+     * Checks whether the font has a glyph for a character, so that rendering it doesn't draw
+     * a placeholder box. Safe to call from several threads.
+     *
+     * @param c The character.
+     * @return True if the character is displayed by the font.
+     */
+    public static boolean canDisplay(char c) {
+        return font(DEFAULT_PIXEL_RESOLUTION).canDisplay(c);
+    }
+
+    /**
+     * Renders a given character in the same font and position as convertToBoolArray,
+     * as black on white RGB pixels of a square tile whose dimension in pixels is specified.
+     *
+     * @param c            The character to render.
+     * @param pixelsPerRow The width and height of the tile.
+     * @return The RGB pixels of the tile, row by row.
+     */
+    public static int[] convertToGlyphPixels(char c, int pixelsPerRow) {
+        BufferedImage img = getBufferedImage(c, FONT_NAME, pixelsPerRow);
+        int[] pixels = img.getRGB(0, 0, pixelsPerRow, pixelsPerRow, null, 0, pixelsPerRow);
+        for (int i = 0; i < pixels.length; i++) {
+            pixels[i] = pixels[i] == 0 ? WHITE_RGB : BLACK_RGB;
+        }
+        return pixels;
+    }
+
     private static BufferedImage getBufferedImage(char c, String fontName, int pixelsPerRow) {
         String charStr = Character.toString(c);
-        Font font = new Font(fontName, Font.PLAIN, pixelsPerRow);
+        Font font = fontName.equals(FONT_NAME) ? font(pixelsPerRow) : new Font(fontName, Font.PLAIN, pixelsPerRow);
         BufferedImage img = new BufferedImage(pixelsPerRow, pixelsPerRow, BufferedImage.TYPE_INT_ARGB);
         Graphics g = img.getGraphics();
         g.setFont(font);
         int xOffset = (int)Math.round(pixelsPerRow *X_OFFSET_FACTOR);
         int yOffset = (int)Math.round(pixelsPerRow *Y_OFFSET_FACTOR);
         g.drawString(charStr, xOffset, yOffset);
+        g.dispose();
         return img;
     }
 
+    /*
+     * Retrieves the font at a size, creating it once, so rendering many characters doesn't
+     * look the font up for every one of them.
+     */
+    private static Font font(int pixelsPerRow) {
+        return FONTS.computeIfAbsent(pixelsPerRow, size -> new Font(FONT_NAME, Font.PLAIN, size));
+    }
+
 }
@@ -0,0 +1,97 @@
+package image_char_matching;
+
+import image.EdgeConverter;
+
+/**
+ * The EdgeGlyphMatcher class draws the strong edges of an image with directional glyphs:
+ * '|' for vertical edges, '-' for horizontal ones, '_' for horizontal edges near the bottom of
+ * their sub-image, and '/' and '\' for diagonal ones. Sub-images without a strong, straight
+ * edge are left to brightness matching.
+ *
+ * @author inbar.el and stavzok
+ */
+public class EdgeGlyphMatcher {
+
+    /**
+     * Marks a sub-image without a glyph, to be matched by brightness.
+     */
+    public static final char NO_GLYPH = '\0';
+
+    /* The directional glyphs. */
+    private static final char VERTICAL = '|';
+    private static final char RISING = '/';
+    private static final char HORIZONTAL = '-';
+    private static final char FALLING = '\\';
+    private static final char LOW_HORIZONTAL = '_';
+
+    /* Default minimal edge strength and coherence of a sub-image drawn with a glyph. */
+    private static final double DEFAULT_STRENGTH_THRESHOLD = 0.3;
+    private static final double DEFAULT_COHERENCE_THRESHOLD = 0.5;
+
+    /* Horizontal edges lower than this, as a fraction of the sub-image, are drawn with '_'. */
+    private static final double LOW_EDGE_ROW = 0.75;
+
+    /* Half the angle covered by every glyph: the four orientations split the half circle. */
+    private static final double HALF_SECTOR = Math.PI / 8;
+
+    private final double strengthThreshold;
+    private final double coherenceThreshold;
+
+    /**
+     * Constructs a matcher with the default thresholds.
+     */
+    public EdgeGlyphMatcher() {
+        this(DEFAULT_STRENGTH_THRESHOLD, DEFAULT_COHERENCE_THRESHOLD);
+    }
+
+    /**
+     * Constructs a matcher.
+     *
+     * @param strengthThreshold  The minimal edge strength of a sub-image drawn with a glyph, between 0 and 1.
+     * @param coherenceThreshold The minimal coherence of a sub-image drawn with a glyph, between 0 and 1.
+     */
+    public EdgeGlyphMatcher(double strengthThreshold, double coherenceThreshold) {
+        this.strengthThreshold = strengthThreshold;
+        this.coherenceThreshold = coherenceThreshold;
+    }
+
+    /**
+     * Matches every sub-image with a strong, straight edge to the glyph of its direction.
+     *
+     * @param edges The edges of the sub-images.
+     * @return The glyph of every sub-image, or NO_GLYPH, row by row.
+     */
+    public char[] match(EdgeConverter edges) {
+        double[] strength = edges.getStrength();
+        double[] orientation = edges.getOrientation();
+        double[] coherence = edges.getCoherence();
+        double[] edgeRow = edges.getEdgeRow();
+        char[] glyphs = new char[strength.length];
+        for (int cell = 0; cell < glyphs.length; cell++) {
+            if (strength[cell] < strengthThreshold || coherence[cell] < coherenceThreshold) {
+                glyphs[cell] = NO_GLYPH;
+            }
+            else {
+                glyphs[cell] = glyph(orientation[cell], edgeRow[cell]);
+            }
+        }
+        return glyphs;
+    }
+
+    /*
+     * Chooses the glyph of an edge.
+     *
+     * @param orientation The angle of the gradient across the edge, between -pi/2 and pi/2.
+     * @param edgeRow     Where the edge lies, 0 at the top of the sub-image and 1 at its bottom.
+     * @return The glyph drawing the edge.
+     */
+    private char glyph(double orientation, double edgeRow) {
+        if (Math.abs(orientation) < HALF_SECTOR) {
+            return VERTICAL;
+        }
+        if (Math.abs(orientation) > 3 * HALF_SECTOR) {
+            return edgeRow > LOW_EDGE_ROW ? LOW_HORIZONTAL : HORIZONTAL;
+        }
+        return orientation > 0 ? RISING : FALLING;
+    }
+}
@@ -0,0 +1,235 @@
+package image_char_matching;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.stream.Collectors;
+
+/**
+ * The GlyphIndex class finds the character whose glyph looks most like a sub-image, comparing
+ * feature vectors such as the coverage of a grid of blocks of the glyph, by Euclidean distance.
+ * The features are kept in a k-d tree, split at every level along the dimension in which its
+ * glyphs differ most, so a lookup visits a logarithmic number of glyphs on typical charsets
+ * instead of all of them. A subtree is skipped when the distance from the query to the box
+ * holding it, updated one dimension at a time, exceeds the closest distance found so far.
+ * Glyphs with the same features are kept once, as the smallest of their characters.
+ *
+ * The search is exact up to rounding: in case of ties, the smallest character is chosen.
+ * Instances are immutable and can be shared between threads.
+ *
+ * @author inbar.el and stavzok
+ */
+public class GlyphIndex {
+
+    /* Number of glyphs from which a subtree is split rather than scanned. */
+    private static final int LEAF_SIZE = 8;
+
+    /* Number of features of every glyph. */
+    private final int dimensions;
+
+    /* The characters and their features, in tree order. */
+    private final char[] chars;
+    private final double[] features;
+
+    /*
+     * The dimension split at every node. The node of a range of the tree order is its middle,
+     * with the glyphs before it on the low side and those after it on the high side.
+     */
+    private final int[] splitDimensions;
+
+    /*
+     * The state of a single lookup: the closest glyph so far and its squared distance, and the
+     * offset of the query from the box of the current subtree in every dimension.
+     */
+    private static final class Search {
+        private final double[] query;
+        private final double[] offsets;
+        private int best = -1;
+        private double bestDistance = Double.POSITIVE_INFINITY;
+
+        private Search(int dimensions) {
+            this.query = new double[dimensions];
+            this.offsets = new double[dimensions];
+        }
+    }
+
+    /**
+     * Constructs an index of glyphs.
+     *
+     * @param chars    The characters.
+     * @param features The features of every character, in the same order, all of the same length.
+     */
+    public GlyphIndex(char[] chars, double[][] features) {
+        this.dimensions = features.length == 0 ? 0 : features[0].length;
+        Integer[] order = distinctGlyphs(chars, features);
+        double[][] rotated = new double[features.length][];
+        for (int i = 0; i < features.length; i++) {
+            rotated[i] = features[i].clone();
+            rotate(rotated[i]);
+        }
+        this.splitDimensions = new int[order.length];
+        build(order, rotated, 0, order.length);
+        this.chars = new char[order.length];
+        this.features = new double[order.length * dimensions];
+        for (int i = 0; i < order.length; i++) {
+            this.chars[i] = chars[order[i]];
+            System.arraycopy(rotated[order[i]], 0, this.features, i * dimensions, dimensions);
+        }
+    }
+
+    /*
+     * Rotates features in place by an orthonormal Walsh-Hadamard transform, when their number is
+     * a power of two. The rotation keeps all distances, but puts the mean and the coarse
+     * differences between halves of a glyph, where glyphs differ most, in a few coefficients,
+     * so the tree splits on them and prunes far more than on single blocks.
+     */
+    private static void rotate(double[] features) {
+        int length = features.length;
+        if (length == 0 || Integer.bitCount(length) != 1) {
+            return;
+        }
+        for (int half = 1; half < length; half *= 2) {
+            for (int block = 0; block < length; block += 2 * half) {
+                for (int i = block; i < block + half; i++) {
+                    double sum = features[i] + features[i + half];
+                    features[i + half] = features[i] - features[i + half];
+                    features[i] = sum;
+                }
+            }
+        }
+        double scale = 1 / Math.sqrt(length);
+        for (int i = 0; i < length; i++) {
+            features[i] *= scale;
+        }
+    }
+
+    /*
+     * Finds the glyphs to index: of glyphs with the same features, only the smallest character.
+     *
+     * @return The indices of the glyphs.
+     */
+    private static Integer[] distinctGlyphs(char[] chars, double[][] features) {
+        HashMap<List<Double>, Integer> smallest = new HashMap<>();
+        for (int i = 0; i < chars.length; i++) {
+            List<Double> key = Arrays.stream(features[i]).boxed().collect(Collectors.toList());
+            Integer other = smallest.get(key);
+            if (other == null || chars[i] < chars[other]) {
+                smallest.put(key, i);
+            }
+        }
+        return smallest.values().toArray(new Integer[0]);
+    }
+
+    /*
+     * Arranges a range of the tree order into a subtree: the glyphs are sorted along the
+     * dimension of largest spread, the middle one becomes the node and both halves are
+     * arranged in turn. Small ranges are left as leaves, scanned in full.
+     */
+    private void build(Integer[] order, double[][] features, int from, int to) {
+        if (to - from <= LEAF_SIZE) {
+            return;
+        }
+        int splitDimension = 0;
+        double largestSpread = -1;
+        for (int dimension = 0; dimension < dimensions; dimension++) {
+            double min = Double.POSITIVE_INFINITY;
+            double max = Double.NEGATIVE_INFINITY;
+            for (int i = from; i < to; i++) {
+                min = Math.min(min, features[order[i]][dimension]);
+                max = Math.max(max, features[order[i]][dimension]);
+            }
+            if (max - min > largestSpread) {
+                largestSpread = max - min;
+                splitDimension = dimension;
+            }
+        }
+        int dimension = splitDimension;
+        Arrays.sort(order, from, to, (a, b) -> Double.compare(features[a][dimension], features[b][dimension]));
+        int middle = (from + to) >>> 1;
+        splitDimensions[middle] = splitDimension;
+        build(order, features, from, middle);
+        build(order, features, middle + 1, to);
+    }
+
+    /**
+     * Finds the character whose features are closest to a query.
+     *
+     * @param query  An array holding the query.
+     * @param offset The index of the first feature of the query in the array.
+     * @return The closest character, or '\0' if the index is empty.
+     */
+    public char nearest(double[] query, int offset) {
+        if (chars.length == 0) {
+            return '\0';
+        }
+        Search search = new Search(dimensions);
+        System.arraycopy(query, offset, search.query, 0, dimensions);
+        rotate(search.query);
+        search(search.query, 0, 0, chars.length, 0, search);
+        return chars[search.best];
+    }
+
+    /*
+     * Searches a subtree, the side of the query first, and the other side only if its box is
+     * no farther than the closest glyph so far.
+     *
+     * @param boxDistance The squared distance from the query to the box of the subtree.
+     */
+    private void search(double[] query, int offset, int from, int to, double boxDistance, Search search) {
+        if (to - from <= LEAF_SIZE) {
+            for (int node = from; node < to; node++) {
+                consider(query, offset, node, search);
+            }
+            return;
+        }
+        int node = (from + to) >>> 1;
+        int dimension = splitDimensions[node];
+        double difference = query[offset + dimension] - features[node * dimensions + dimension];
+        boolean lowFirst = difference < 0;
+        search(query, offset, lowFirst ? from : node + 1, lowFirst ? node : to, boxDistance, search);
+        consider(query, offset, node, search);
+
+        // The far side's box is at least the splitting plane away in this dimension
+        double oldOffset = search.offsets[dimension];
+        double farDistance = boxDistance - oldOffset * oldOffset + difference * difference;
+        if (farDistance <= search.bestDistance) {
+            search.offsets[dimension] = difference;
+            search(query, offset, lowFirst ? node + 1 : from, lowFirst ? to : node, farDistance, search);
+            search.offsets[dimension] = oldOffset;
+        }
+    }
+
+    /*
+     * Makes a glyph the closest so far if it is closer than the current one, or as close and
+     * a smaller character.
+     */
+    private void consider(double[] query, int offset, int node, Search search) {
+        double distance = 0;
+        int first = node * dimensions;
+        for (int dimension = 0; dimension < dimensions; dimension++) {
+            double difference = query[offset + dimension] - features[first + dimension];
+            distance += difference * difference;
+            if (distance > search.bestDistance) {
+                return;
+            }
+        }
+        if (distance < search.bestDistance || chars[node] < chars[search.best]) {
+            search.best = node;
+            search.bestDistance = distance;
+        }
+    }
+
+    /**
+     * @return The number of features of every glyph.
+     */
+    public int getDimensions() {
+        return dimensions;
+    }
+
+    /**
+     * @return The number of distinct glyphs in the index.
+     */
+    public int size() {
+        return chars.length;
+    }
+}
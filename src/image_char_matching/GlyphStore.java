@@ -0,0 +1,138 @@
+package image_char_matching;
+
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.IntStream;
+
+/**
+ * The GlyphStore class keeps the brightness and shape of every character rendered so far, so
+ * every matcher of the process, in any session or thread, renders a glyph at most once. The
+ * glyphs depend only on the character, since CharConverter renders a single font, and never
+ * change once stored, so lookups read a concurrent map without taking a lock. Characters
+ * missing from the store are rendered by the thread that asks for them, outside of any lock;
+ * two threads asking for the same new character at once may both render it, and keep the
+ * first result.
+ *
+ * @author inbar.el and stavzok
+ */
+public class GlyphStore {
+
+    /**
+     * The store shared by all matchers of the process.
+     */
+    public static final GlyphStore SHARED = new GlyphStore();
+
+    /* Number of missing glyphs from which they are rendered in parallel. */
+    private static final int PARALLEL_THRESHOLD = 64;
+
+    /**
+     * The brightness and shape of a character's glyph. Instances are immutable.
+     */
+    public static final class Glyph {
+        private final double brightness;
+        private final double[] shape;
+
+        private Glyph(boolean[][] bitmap) {
+            this.brightness = calculateBrightness(bitmap);
+            this.shape = calculateShape(bitmap);
+        }
+
+        /**
+         * @return The share of the glyph's pixels that are drawn, between 0 and 1.
+         */
+        public double getBrightness() {
+            return brightness;
+        }
+
+        /**
+         * Retrieves the shape of the glyph. The array must not be changed.
+         *
+         * @return The share of drawn pixels in every block of a grid of SubImgCharMatcher.SHAPE_GRID
+         * blocks per side, row by row.
+         */
+        public double[] getShape() {
+            return shape;
+        }
+    }
+
+    /* The glyphs rendered so far. */
+    private final ConcurrentHashMap<Character, Glyph> glyphs = new ConcurrentHashMap<>();
+
+    /**
+     * Retrieves the glyphs of characters, rendering those not stored yet, in parallel for many
+     * of them.
+     *
+     * @param chars The characters.
+     * @return The glyph of every character, in the order of the collection.
+     */
+    public Glyph[] getGlyphs(Collection<Character> chars) {
+        Character[] toFind = chars.toArray(new Character[0]);
+        Glyph[] found = new Glyph[toFind.length];
+        int[] missing = new int[toFind.length];
+        int missingCount = 0;
+        for (int i = 0; i < toFind.length; i++) {
+            found[i] = glyphs.get(toFind[i]);
+            if (found[i] == null) {
+                missing[missingCount++] = i;
+            }
+        }
+        IntStream indices = IntStream.range(0, missingCount).map(k -> missing[k]);
+        if (missingCount >= PARALLEL_THRESHOLD) {
+            indices = indices.parallel();
+        }
+        indices.forEach(i -> {
+            Glyph rendered = new Glyph(CharConverter.convertToBoolArray(toFind[i]));
+            Glyph stored = glyphs.putIfAbsent(toFind[i], rendered);
+            found[i] = stored != null ? stored : rendered;
+        });
+        return found;
+    }
+
+    /**
+     * @return The number of glyphs stored.
+     */
+    public int size() {
+        return glyphs.size();
+    }
+
+    /*
+     * Calculates the brightness of a glyph, the share of its pixels that are drawn.
+     *
+     * @param bitmap The boolean representation of the character.
+     * @return The calculated brightness value of the character.
+     */
+    private static double calculateBrightness(boolean[][] bitmap) {
+        int count = 0;
+        for (int i = 0; i < bitmap.length; i++) {
+            for (int j = 0; j < bitmap[i].length; j++) {
+                if (bitmap[i][j]) {
+                    count++;
+                }
+            }
+        }
+        return count / ((double) bitmap.length * bitmap[0].length);
+    }
+
+    /*
+     * Calculates the brightness of every block of a glyph, its shape.
+     *
+     * @param bitmap The boolean representation of the character.
+     * @return The brightness of every block, row by row.
+     */
+    private static double[] calculateShape(boolean[][] bitmap) {
+        int grid = SubImgCharMatcher.SHAPE_GRID;
+        double[] shape = new double[grid * grid];
+        for (int i = 0; i < bitmap.length; i++) {
+            for (int j = 0; j < bitmap[i].length; j++) {
+                if (bitmap[i][j]) {
+                    shape[(i * grid / bitmap.length) * grid + j * grid / bitmap[i].length]++;
+                }
+            }
+        }
+        double blockSize = (double) bitmap.length * bitmap[0].length / shape.length;
+        for (int block = 0; block < shape.length; block++) {
+            shape[block] /= blockSize;
+        }
+        return shape;
+    }
+}
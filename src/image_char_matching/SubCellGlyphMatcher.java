@@ -0,0 +1,114 @@
+package image_char_matching;
+
+import image.SubCellConverter;
+import pipeline_stats.StageStats;
+import pipeline_stats.StageTimer;
+
+/**
+ * The SubCellGlyphMatcher class draws every sub-image with a Unicode char made of smaller
+ * marks, a braille char of 2x4 dots or a block char of 2x2 quadrants, marking the samples of
+ * the sub-image darker than the image. The marked samples form a bit pattern that selects the
+ * char directly, so there is no search over a charset, and every char shows several samples
+ * instead of one.
+ *
+ * @author inbar.el and stavzok
+ */
+public class SubCellGlyphMatcher {
+
+    /**
+     * The kinds of chars a sub-image can be drawn with.
+     */
+    public enum Pattern {
+        /* Braille chars, 2 columns of 4 dots. */
+        BRAILLE(2, 4),
+        /* Block chars, 2 columns of 2 quadrants. */
+        QUADRANTS(2, 2);
+
+        private final int sampleCols;
+        private final int sampleRows;
+
+        Pattern(int sampleCols, int sampleRows) {
+            this.sampleCols = sampleCols;
+            this.sampleRows = sampleRows;
+        }
+
+        /**
+         * @return The number of sample columns of every sub-image.
+         */
+        public int getSampleCols() {
+            return sampleCols;
+        }
+
+        /**
+         * @return The number of sample rows of every sub-image.
+         */
+        public int getSampleRows() {
+            return sampleRows;
+        }
+    }
+
+    /* The braille char without dots; every dot adds its bit to it. */
+    private static final char BRAILLE_BLANK = '\u2800';
+
+    /*
+     * Bit of the braille dot of every sample, row by row: dots 1 to 3 and 7 run down the left
+     * column and dots 4 to 6 and 8 down the right one.
+     */
+    private static final int[] BRAILLE_BITS = {0x01, 0x08, 0x02, 0x10, 0x04, 0x20, 0x40, 0x80};
+
+    /* Bit of the quadrant of every sample, row by row. */
+    private static final int[] QUADRANT_BITS = {0x1, 0x2, 0x4, 0x8};
+
+    /* Block char of every quadrant pattern. */
+    private static final char[] QUADRANT_CHARS = {' ', '\u2598', '\u259D', '\u2580', '\u2596', '\u258C',
+            '\u259E', '\u259B', '\u2597', '\u259A', '\u2590', '\u259C', '\u2584', '\u2599', '\u259F', '\u2588'};
+
+    private final Pattern pattern;
+
+    /**
+     * Constructs a matcher.
+     *
+     * @param pattern The kind of chars to draw with.
+     */
+    public SubCellGlyphMatcher(Pattern pattern) {
+        this.pattern = pattern;
+    }
+
+    /**
+     * @return The kind of chars drawn with.
+     */
+    public Pattern getPattern() {
+        return pattern;
+    }
+
+    /**
+     * Matches every sub-image to the char marking its samples darker than the image.
+     *
+     * @param subCells The samples of the sub-images, split by this matcher's pattern.
+     * @return The chars of the sub-images, row by row.
+     */
+    public char[][] match(SubCellConverter subCells) {
+        double[] samples = subCells.getSamples();
+        double threshold = subCells.getImageBrightness();
+        int cellSamples = pattern.getSampleCols() * pattern.getSampleRows();
+        int[] sampleBits = pattern == Pattern.BRAILLE ? BRAILLE_BITS : QUADRANT_BITS;
+        char[][] chars = new char[subCells.getGridRows()][subCells.getGridCols()];
+        try (StageTimer timer = StageStats.start(StageStats.Stage.MATCH)) {
+            timer.resolution(subCells.getGridCols()).cells((long) chars.length * subCells.getGridCols());
+            for (int row = 0; row < chars.length; row++) {
+                for (int col = 0; col < chars[row].length; col++) {
+                    int first = (row * chars[row].length + col) * cellSamples;
+                    int bits = 0;
+                    for (int sample = 0; sample < cellSamples; sample++) {
+                        if (samples[first + sample] < threshold) {
+                            bits |= sampleBits[sample];
+                        }
+                    }
+                    chars[row][col] = pattern == Pattern.BRAILLE ?
+                            (char) (BRAILLE_BLANK + bits) : QUADRANT_CHARS[bits];
+                }
+            }
+        }
+        return chars;
+    }
+}
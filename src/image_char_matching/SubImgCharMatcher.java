@@ -1,16 +1,44 @@
 package image_char_matching;
+import image.Cancellation;
+import image.SubCellConverter;
+import pipeline_stats.StageStats;
+import pipeline_stats.StageTimer;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
+import java.util.stream.IntStream;
 
 /**
  * The SubImgCharMatcher class calculates and manages the brightness values
- * of ASCII characters to match them to sub-image brightness values.
+ * of characters to match them to sub-image brightness values.
+ * The glyphs of the characters are shared by all matchers and rendered in parallel the first
+ * time any matcher uses them, and lookups go through indices rather than scanning the charset,
+ * so charsets of thousands of characters, such as whole Unicode blocks, stay fast.
  *
  * @author inbar.el and stavzok
  */
 public class SubImgCharMatcher {
 
+    /**
+     * Number of rows and columns of blocks whose coverage makes up the shape of a glyph.
+     */
+    public static final int SHAPE_GRID = 4;
+
+    /*
+     * How many times the mean brightness of a shape counts as much as the way it is spread
+     * over the blocks. Glyphs are strokes on a background while sub-images are mostly smooth,
+     * so without it mid-tones would match sparse glyphs, which differ least from a smooth block.
+     */
+    private static final double TONE_WEIGHT = 4;
+
+    /* Number of sub-images from which shapes are matched in parallel. */
+    private static final int PARALLEL_CELLS = 1 << 14;
+
     /* Set of characters being used for matching. */
     private HashSet<Character> charSet;
 
@@ -20,9 +48,15 @@ public class SubImgCharMatcher {
     /* Map to store the normalized brightness values for each character. */
     private HashMap<Character, Double> normalizedBrightnessMap;
 
-    /* The maximum and minimum brightness values for normalization. */
-    private double maxBrightness;
-    private double minBrightness;
+    /*
+     * Map to store the brightness of every block of every character's glyph, row by row. The
+     * arrays belong to the shared glyphs and are never changed.
+     */
+    private final HashMap<Character, double[]> shapeMap = new HashMap<>();
+
+    /* Indices of the normalized characters, built when first needed after every change. */
+    private volatile BrightnessIndex brightnessIndex;
+    private volatile GlyphIndex glyphIndex;
 
     /**
      * Constructs a SubImgCharMatcher instance.
@@ -41,34 +75,24 @@ public class SubImgCharMatcher {
     }
 
     /*
-     * Calculates the brightness of a single character by analyzing its boolean representation.
-     *
-     * @param c The character whose brightness is to be calculated.
-     * @return The calculated brightness value of the character.
-     */
-    private double calculateSingleCharBrightness(char c) {
-        boolean[][] tempArray;
-        tempArray = CharConverter.convertToBoolArray(c);
-        int count = 0;
-        for (int i = 0; i < tempArray.length; i++) {
-            for (int j = 0; j < tempArray[i].length; j++) {
-                if (tempArray[i][j]) {
-                    count++;
-                }
-            }
-        }
-        double brightness = count / ((double) tempArray.length * tempArray[0].length);
-        brightnessMap.put(c, brightness);
-        return brightness;
-
+     * Calculates brightness values for all characters in the set.
+     */
+    private void calculateBrightness() {
+        calculateBrightness(charSet);
     }
 
     /*
-     * Calculates brightness values for all characters in the set.
+     * Stores the brightness and shape of the glyphs of characters, taken from the glyphs shared
+     * by all matchers, which renders those no matcher has used yet.
+     *
+     * @param chars The characters.
      */
-    private void calculateBrightness() {
-        for (char c : charSet) { // Iterate over the HashSet
-            calculateSingleCharBrightness(c);
+    private void calculateBrightness(Collection<Character> chars) {
+        Character[] toFind = chars.toArray(new Character[0]);
+        GlyphStore.Glyph[] glyphs = GlyphStore.SHARED.getGlyphs(Arrays.asList(toFind));
+        for (int i = 0; i < toFind.length; i++) {
+            brightnessMap.put(toFind[i], glyphs[i].getBrightness());
+            shapeMap.put(toFind[i], glyphs[i].getShape());
         }
     }
 
@@ -78,20 +102,34 @@ public class SubImgCharMatcher {
      */
     public void normalizeBrightness() {
         System.out.println("Normalizing...");
-        minBrightness = Collections.min(brightnessMap.values());
-        maxBrightness = Collections.max(brightnessMap.values());
-        for (HashMap.Entry<Character, Double> entry : brightnessMap.entrySet()) {
-            Character key = entry.getKey();
-            Double value = entry.getValue();
-            Double newCharBrightness =
-                    (value - minBrightness) / (maxBrightness - minBrightness);
-            normalizedBrightnessMap.put(key, newCharBrightness);
+        normalizedBrightnessMap = normalize(brightnessMap);
+        brightnessIndex = new BrightnessIndex(normalizedBrightnessMap);
+        glyphIndex = null;
+    }
+
+    /**
+     * Scales brightness values to a range between 0 and 1, without changing any matcher.
+     * Meant for normalizing a charset ahead of time, on another thread.
+     *
+     * @param brightnessMap The raw brightness of every character, at least two of them.
+     * @return A new map of the normalized brightness of every character.
+     */
+    public static HashMap<Character, Double> normalize(HashMap<Character, Double> brightnessMap) {
+        try (StageTimer timer = StageStats.start(StageStats.Stage.NORMALIZE)) {
+            timer.charsetSize(brightnessMap.size()).cells(brightnessMap.size());
+            double min = Collections.min(brightnessMap.values());
+            double max = Collections.max(brightnessMap.values());
+            HashMap<Character, Double> normalized = new HashMap<>();
+            for (HashMap.Entry<Character, Double> entry : brightnessMap.entrySet()) {
+                normalized.put(entry.getKey(), (entry.getValue() - min) / (max - min));
+            }
+            return normalized;
         }
     }
 
     /**
      * Finds the closest matching character for a given brightness value.
-     * The method iterates through the normalized brightness map and determines
+     * The method searches the normalized brightness values and determines
      * the character whose brightness value is closest to the provided target.
      * In case of ties (equal differences), the lexicographically smaller character is chosen.
      *
@@ -100,16 +138,128 @@ public class SubImgCharMatcher {
      *         Returns '\0' (null character) if the map is empty or no match is found.
      */
     public char getCharByImageBrightness(double brightness){
-        char closestChar = '\0'; // Default value (null character)
-        double minDifference = Double.MAX_VALUE; // Start with the largest possible difference
-        for (HashMap.Entry<Character, Double> entry : normalizedBrightnessMap.entrySet()) {
-            double difference = Math.abs(entry.getValue() - brightness); // Absolute difference
-            if (difference < minDifference || (difference == minDifference && entry.getKey() < closestChar)) {
-                minDifference = difference;
-                closestChar = entry.getKey(); // Update the closest character
+        return brightnessIndex().nearest(brightness);
+    }
+
+    /**
+     * Finds the character with the smallest normalized brightness at least the given one.
+     * Of characters of equal brightness, the lexicographically smallest is chosen.
+     *
+     * @param brightness The target brightness value to match, between 0 and 1.
+     * @return The character, or null if every character is darker.
+     */
+    public Character getCharRoundedUp(double brightness) {
+        return brightnessIndex().roundUp(brightness);
+    }
+
+    /**
+     * Finds the character with the largest normalized brightness at most the given one.
+     * Of characters of equal brightness, the lexicographically smallest is chosen.
+     *
+     * @param brightness The target brightness value to match, between 0 and 1.
+     * @return The character, or null if every character is brighter.
+     */
+    public Character getCharRoundedDown(double brightness) {
+        return brightnessIndex().roundDown(brightness);
+    }
+
+    /*
+     * Retrieves the index of the normalized brightness values, building it if they changed.
+     */
+    private BrightnessIndex brightnessIndex() {
+        BrightnessIndex index = brightnessIndex;
+        if (index == null) {
+            index = new BrightnessIndex(normalizedBrightnessMap);
+            brightnessIndex = index;
+        }
+        return index;
+    }
+
+    /**
+     * Retrieves the index of the shapes of the normalized characters, building it if they
+     * changed. The brightness of every block is normalized like the brightness of the whole
+     * glyph, so a sub-image of even brightness matches the character it would match by
+     * brightness alone.
+     *
+     * @return The index, with SHAPE_GRID * SHAPE_GRID features per character.
+     */
+    public GlyphIndex getGlyphIndex() {
+        GlyphIndex index = glyphIndex;
+        if (index == null) {
+            List<Character> chars = new ArrayList<>(normalizedBrightnessMap.keySet());
+            double min = Double.POSITIVE_INFINITY;
+            double max = Double.NEGATIVE_INFINITY;
+            for (char c : chars) {
+                min = Math.min(min, brightnessMap.get(c));
+                max = Math.max(max, brightnessMap.get(c));
+            }
+            double range = max > min ? max - min : 1;
+            char[] indexChars = new char[chars.size()];
+            double[][] shapes = new double[chars.size()][];
+            for (int i = 0; i < indexChars.length; i++) {
+                indexChars[i] = chars.get(i);
+                shapes[i] = shapeMap.get(indexChars[i]).clone();
+                for (int block = 0; block < shapes[i].length; block++) {
+                    shapes[i][block] = (shapes[i][block] - min) / range;
+                }
+                weighTone(shapes[i], 0);
+            }
+            index = new GlyphIndex(indexChars, shapes);
+            glyphIndex = index;
+        }
+        return index;
+    }
+
+    /*
+     * Scales the mean of a shape by TONE_WEIGHT, leaving the differences of its blocks from the
+     * mean as they are, so distances between shapes weigh a difference in tone more.
+     *
+     * @param shape  An array holding the shape.
+     * @param offset The index of the first block of the shape in the array.
+     */
+    private static void weighTone(double[] shape, int offset) {
+        int blocks = SHAPE_GRID * SHAPE_GRID;
+        double mean = 0;
+        for (int block = 0; block < blocks; block++) {
+            mean += shape[offset + block];
+        }
+        mean /= blocks;
+        for (int block = 0; block < blocks; block++) {
+            shape[offset + block] += (TONE_WEIGHT - 1) * mean;
+        }
+    }
+
+    /**
+     * Matches every sub-image to the character whose glyph is closest in shape, comparing the
+     * brightness of SHAPE_GRID by SHAPE_GRID blocks. Large grids are matched in parallel.
+     *
+     * @param subCells     The blocks of the sub-images, SHAPE_GRID by SHAPE_GRID of them each.
+     * @param cancellation Checked before every row of sub-images.
+     * @return The characters of the sub-images, row by row.
+     * @throws java.util.concurrent.CancellationException If the matching is cancelled.
+     */
+    public char[][] matchShapes(SubCellConverter subCells, Cancellation cancellation) {
+        GlyphIndex index = getGlyphIndex();
+        double[] samples = subCells.getSamples();
+        int cellSamples = subCells.getSampleRows() * subCells.getSampleCols();
+        int cols = subCells.getGridCols();
+        char[][] chars = new char[subCells.getGridRows()][cols];
+        try (StageTimer timer = StageStats.start(StageStats.Stage.MATCH)) {
+            timer.resolution(cols).charsetSize(index.size()).cells((long) chars.length * cols);
+            IntStream rows = IntStream.range(0, chars.length);
+            if ((long) chars.length * cols >= PARALLEL_CELLS) {
+                rows = rows.parallel();
             }
+            rows.forEach(row -> {
+                cancellation.check();
+                double[] shapes = Arrays.copyOfRange(samples, row * cols * cellSamples, (row + 1) * cols * cellSamples);
+                for (int col = 0; col < cols; col++) {
+                    weighTone(shapes, col * cellSamples);
+                    chars[row][col] = index.nearest(shapes, col * cellSamples);
+                }
+            });
         }
-        return closestChar;
+        return chars;
     }
 
     /**
@@ -118,13 +268,23 @@ public class SubImgCharMatcher {
      * @param c The character to be added.
      */
     public void addChar(char c){
-        int oldSize = charSet.size();
-        charSet.add(c);
-        int newSize = charSet.size();
-        if (oldSize != newSize) {
-            double charBrightness = calculateSingleCharBrightness(c);
-            brightnessMap.put(c, charBrightness);
+        addChars(List.of(c));
+    }
+
+    /**
+     * Adds characters to the set and calculates the brightness values of the new ones,
+     * rendering their glyphs in parallel.
+     *
+     * @param chars The characters to be added.
+     */
+    public void addChars(Collection<Character> chars) {
+        List<Character> added = new ArrayList<>();
+        for (Character c : chars) {
+            if (charSet.add(c)) {
+                added.add(c);
+            }
         }
+        calculateBrightness(added);
     }
 
     /**
@@ -134,9 +294,12 @@ public class SubImgCharMatcher {
      */
     public void removeChar(char c){
         charSet.remove(c);
-        Double charBrightness = normalizedBrightnessMap.get(c);
-        normalizedBrightnessMap.remove(c);
+        if (normalizedBrightnessMap.remove(c) != null) {
+            brightnessIndex = null;
+            glyphIndex = null;
+        }
         brightnessMap.remove(c);
+        shapeMap.remove(c);
     }
 
     /**
@@ -146,6 +309,8 @@ public class SubImgCharMatcher {
      */
     public void setNormalizedBrightnessMap(HashMap<Character, Double> newNormalizedBrightnessMap) {
         normalizedBrightnessMap = newNormalizedBrightnessMap;
+        brightnessIndex = null;
+        glyphIndex = null;
     }
 
     /**
@@ -0,0 +1,53 @@
+package pipeline_stats;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Flight Recorder event of one run of a pipeline stage. The event is disabled by default, so it
+ * costs next to nothing unless a recording enables it, e.g. with
+ * -XX:StartFlightRecording:settings=profile,+ascii_art.Stage#enabled=true or through
+ * a JFC file. Fields that don't apply to a stage are left at 0.
+ *
+ * @author inbar.el and stavzok
+ */
+@Name("ascii_art.Stage")
+@Label("ASCII Art Stage")
+@Category({"ASCII Art", "Pipeline"})
+@Description("One run of a stage of the ASCII art conversion")
+@Enabled(false)
+@StackTrace(false)
+class StageEvent extends Event {
+
+    @Label("Stage")
+    String stage;
+
+    @Label("Image Width")
+    @Description("Width in pixels of the image the stage worked on")
+    int imageWidth;
+
+    @Label("Image Height")
+    @Description("Height in pixels of the image the stage worked on")
+    int imageHeight;
+
+    @Label("Resolution")
+    int resolution;
+
+    @Label("Charset Size")
+    int charsetSize;
+
+    @Label("Cells")
+    @Description("Number of sub-images or chars the stage handled")
+    long cells;
+
+    @Label("Allocated")
+    @Description("Bytes allocated by the thread during the stage")
+    @DataAmount
+    long allocatedBytes;
+}
@@ -0,0 +1,195 @@
+package pipeline_stats;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * StageStats accumulates, for every stage of the conversion pipeline, how many times it ran,
+ * how long it took (monotonic time) and how many bytes the running thread allocated in it.
+ * The counters are global and thread-safe; a render's own numbers are the difference between
+ * snapshots taken before and after it.
+ *
+ * @author inbar.el and stavzok
+ */
+public final class StageStats {
+
+    /**
+     * The instrumented stages of the pipeline.
+     */
+    public enum Stage {
+        /* Decoding the image file into pixels. */
+        DECODE,
+        /* Padding the image to powers of two. */
+        PAD,
+        /* Calculating the brightness of the sub-images. */
+        BRIGHTNESS,
+        /* Finding the edges of the sub-images. */
+        EDGES,
+        /* Adjusting the contrast of the sub-images. */
+        CONTRAST,
+        /* Normalizing the brightness of the charset. */
+        NORMALIZE,
+        /* Matching sub-images to chars. */
+        MATCH,
+        /* Handing the chars to the output. */
+        OUTPUT
+    }
+
+    /* Number of counters per stage: runs, nanoseconds and allocated bytes. */
+    private static final int COUNTERS = 3;
+    private static final int RUNS = 0;
+    private static final int NANOS = 1;
+    private static final int BYTES = 2;
+
+    private static final double NANOS_PER_MILLI = 1_000_000.0;
+    private static final double BYTES_PER_KILOBYTE = 1024.0;
+
+    /* The counters of all stages. */
+    private static final AtomicLongArray counters = new AtomicLongArray(Stage.values().length * COUNTERS);
+
+    /* The JVM's thread bean, if it can count allocated bytes per thread. */
+    private static final com.sun.management.ThreadMXBean threadBean = allocationBean();
+
+    private StageStats() {
+    }
+
+    /**
+     * Values of all counters at one point in time.
+     */
+    public static final class Snapshot {
+        private final long[] values;
+
+        private Snapshot(long[] values) {
+            this.values = values;
+        }
+
+        /**
+         * @return The number of times the stage ran.
+         */
+        public long getRuns(Stage stage) {
+            return values[stage.ordinal() * COUNTERS + RUNS];
+        }
+
+        /**
+         * @return The total time spent in the stage, in nanoseconds.
+         */
+        public long getNanos(Stage stage) {
+            return values[stage.ordinal() * COUNTERS + NANOS];
+        }
+
+        /**
+         * @return The total bytes allocated in the stage.
+         */
+        public long getBytes(Stage stage) {
+            return values[stage.ordinal() * COUNTERS + BYTES];
+        }
+
+        /**
+         * Subtracts an earlier snapshot from this one.
+         *
+         * @param earlier The earlier snapshot.
+         * @return The counters accumulated between the two snapshots.
+         */
+        public Snapshot since(Snapshot earlier) {
+            long[] difference = new long[values.length];
+            for (int i = 0; i < values.length; i++) {
+                difference[i] = values[i] - earlier.values[i];
+            }
+            return new Snapshot(difference);
+        }
+    }
+
+    /*
+     * Finds the thread bean, enabling allocation counting if it is supported.
+     */
+    private static com.sun.management.ThreadMXBean allocationBean() {
+        if (ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean bean &&
+                bean.isThreadAllocatedMemorySupported()) {
+            bean.setThreadAllocatedMemoryEnabled(true);
+            return bean;
+        }
+        return null;
+    }
+
+    /**
+     * @return The number of bytes allocated by the current thread so far, or 0 if the JVM
+     *         can't count them.
+     */
+    public static long allocatedBytes() {
+        return threadBean == null ? 0 : threadBean.getCurrentThreadAllocatedBytes();
+    }
+
+    /**
+     * Records one run of a stage.
+     *
+     * @param stage The stage.
+     * @param nanos The time the run took, in nanoseconds.
+     * @param bytes The bytes allocated during the run.
+     */
+    public static void record(Stage stage, long nanos, long bytes) {
+        int base = stage.ordinal() * COUNTERS;
+        counters.incrementAndGet(base + RUNS);
+        counters.addAndGet(base + NANOS, nanos);
+        counters.addAndGet(base + BYTES, bytes);
+    }
+
+    /**
+     * Starts timing a run of a stage, to be recorded when the returned timer is closed.
+     *
+     * @param stage The stage.
+     * @return The running timer.
+     */
+    public static StageTimer start(Stage stage) {
+        return new StageTimer(stage);
+    }
+
+    /**
+     * @return The current values of all counters.
+     */
+    public static Snapshot snapshot() {
+        long[] values = new long[counters.length()];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = counters.get(i);
+        }
+        return new Snapshot(values);
+    }
+
+    /**
+     * Formats a table of the time and allocations of every stage.
+     *
+     * @param lastRender The counters of the last render.
+     * @param total      The counters since start.
+     * @return The table, one line per stage.
+     */
+    public static String formatTable(Snapshot lastRender, Snapshot total) {
+        StringBuilder table = new StringBuilder(String.format("%-10s %12s %14s %8s %12s %14s%n",
+                "stage", "last ms", "last KB", "runs", "total ms", "total KB"));
+        for (Stage stage : Stage.values()) {
+            table.append(String.format("%-10s %12.3f %14.1f %8d %12.3f %14.1f%n",
+                    stage.name().toLowerCase(),
+                    lastRender.getNanos(stage) / NANOS_PER_MILLI,
+                    lastRender.getBytes(stage) / BYTES_PER_KILOBYTE,
+                    total.getRuns(stage),
+                    total.getNanos(stage) / NANOS_PER_MILLI,
+                    total.getBytes(stage) / BYTES_PER_KILOBYTE));
+        }
+        return table.toString();
+    }
+
+    /**
+     * Formats the counters of a render as a single machine-readable line of key=value pairs,
+     * with times in nanoseconds and allocations in bytes.
+     *
+     * @param render The counters of the render.
+     * @return The line.
+     */
+    public static String formatLine(Snapshot render) {
+        StringBuilder line = new StringBuilder("render");
+        for (Stage stage : Stage.values()) {
+            String name = stage.name().toLowerCase();
+            line.append(' ').append(name).append("_ns=").append(render.getNanos(stage))
+                    .append(' ').append(name).append("_bytes=").append(render.getBytes(stage));
+        }
+        return line.toString();
+    }
+}
@@ -0,0 +1,115 @@
+package pipeline_stats;
+
+/**
+ * Times one run of a pipeline stage, from its creation until it is closed.
+ * Meant to be used in a try-with-resources statement around the stage.
+ * The run is recorded in StageStats and, if a Flight Recorder recording enables it,
+ * as a StageEvent carrying the details given to the timer.
+ *
+ * @author inbar.el and stavzok
+ */
+public class StageTimer implements AutoCloseable {
+
+    private final StageStats.Stage stage;
+    private final long startNanos;
+    private final long startBytes;
+
+    /* Time and allocations of interleaved stages, not counted in this one. */
+    private long excludedNanos;
+    private long excludedBytes;
+
+    /* The Flight Recorder event of the run, committed only if enabled. */
+    private final StageEvent event = new StageEvent();
+
+    /* Details of the run, copied to the event. */
+    private int imageWidth;
+    private int imageHeight;
+    private int resolution;
+    private int charsetSize;
+    private long cells;
+
+    /*
+     * Starts timing a stage on the current thread.
+     */
+    StageTimer(StageStats.Stage stage) {
+        this.stage = stage;
+        this.startBytes = StageStats.allocatedBytes();
+        this.startNanos = System.nanoTime();
+        event.begin();
+    }
+
+    /**
+     * Sets the size of the image the stage works on.
+     *
+     * @param width  The width in pixels.
+     * @param height The height in pixels.
+     * @return This timer.
+     */
+    public StageTimer image(int width, int height) {
+        this.imageWidth = width;
+        this.imageHeight = height;
+        return this;
+    }
+
+    /**
+     * @param resolution The resolution the stage works at.
+     * @return This timer.
+     */
+    public StageTimer resolution(int resolution) {
+        this.resolution = resolution;
+        return this;
+    }
+
+    /**
+     * @param charsetSize The number of chars in the charset.
+     * @return This timer.
+     */
+    public StageTimer charsetSize(int charsetSize) {
+        this.charsetSize = charsetSize;
+        return this;
+    }
+
+    /**
+     * @param cells The number of sub-images or chars the stage handles.
+     * @return This timer.
+     */
+    public StageTimer cells(long cells) {
+        this.cells = cells;
+        return this;
+    }
+
+    /**
+     * Excludes the time and allocations of another stage interleaved with this one, such as
+     * matching rows while they are written. The Flight Recorder event still spans the whole run.
+     *
+     * @param nanos The time of the other stage, in nanoseconds.
+     * @param bytes The bytes allocated by the other stage.
+     * @return This timer.
+     */
+    public StageTimer exclude(long nanos, long bytes) {
+        this.excludedNanos += nanos;
+        this.excludedBytes += bytes;
+        return this;
+    }
+
+    /**
+     * Records the run of the stage.
+     */
+    @Override
+    public void close() {
+        long nanos = System.nanoTime() - startNanos - excludedNanos;
+        long bytes = StageStats.allocatedBytes() - startBytes - excludedBytes;
+        StageStats.record(stage, nanos, bytes);
+        event.end();
+        if (event.shouldCommit()) {
+            event.stage = stage.name();
+            event.imageWidth = imageWidth;
+            event.imageHeight = imageHeight;
+            event.resolution = resolution;
+            event.charsetSize = charsetSize;
+            event.cells = cells;
+            event.allocatedBytes = bytes;
+            event.commit();
+        }
+    }
+}